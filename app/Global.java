@@ -0,0 +1,145 @@
+import controllers.ChangeFeed;
+import controllers.DatabaseExecutor;
+import controllers.EntityFormatters;
+import controllers.IdempotencyStore;
+import controllers.InstrumentedAction;
+import controllers.LowStockFeed;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import models.BusinessIds;
+import models.EntityCache;
+import models.LowStockMonitor;
+import models.ProductSearch;
+import models.QuantityWriteBehind;
+import models.ReservationLedger;
+import models.TagIndex;
+import models.WarehouseLocator;
+import play.Application;
+import play.GlobalSettings;
+import play.mvc.Action;
+import play.mvc.Http.Request;
+
+/**
+ * The {@link GlobalSettings} of the warehouse application.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class Global extends GlobalSettings {
+
+  /**
+   * Registers the form formatters once instead of on every request, sizes the entity caches and
+   * the idempotency key store and drops anything cached from a previous database. Also loads the
+   * tag index, rebuilds the product search index, replays the write-behind journal, reloads the
+   * held reservations, finds the stock items below their reorder point, indexes the warehouses by
+   * zipcode and starts the database thread pool, the stock change feed, the reservation sweeper,
+   * the low stock monitor and the warehouse locator.
+   * 
+   * @param app The starting {@link Application}.
+   */
+  @Override
+  public void onStart(Application app) {
+    BusinessIds.clear();
+    Integer maxSize = app.configuration().getInt("cache.entities.maxSize");
+    Integer timeToLive = app.configuration().getInt("cache.entities.ttl");
+    EntityCache.configureAll((maxSize == null) ? EntityCache.DEFAULT_MAX_SIZE : maxSize,
+        (timeToLive == null) ? EntityCache.DEFAULT_TIME_TO_LIVE : timeToLive * 1000L);
+    Integer idempotencyKeys = app.configuration().getInt("idempotency.maxKeys");
+    Integer idempotencyTimeToLive = app.configuration().getInt("idempotency.ttl");
+    IdempotencyStore.configure(
+        (idempotencyKeys == null) ? IdempotencyStore.DEFAULT_MAX_SIZE : idempotencyKeys,
+        (idempotencyTimeToLive == null) ? IdempotencyStore.DEFAULT_TIME_TO_LIVE
+            : idempotencyTimeToLive * 1000L);
+    EntityFormatters.register();
+    TagIndex.rebuild();
+    String searchPath = app.configuration().getString("search.index.path");
+    try {
+      ProductSearch.start((searchPath == null) ? "target/search-index" : searchPath);
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Could not build the product search index", e);
+    }
+    Integer threads = app.configuration().getInt("database.executor.threads");
+    Integer queueSize = app.configuration().getInt("database.executor.queueSize");
+    DatabaseExecutor.start((threads == null) ? DatabaseExecutor.DEFAULT_THREADS : threads,
+        (queueSize == null) ? DatabaseExecutor.DEFAULT_QUEUE_SIZE : queueSize);
+    Integer pollInterval = app.configuration().getInt("stockitems.changes.pollInterval");
+    ChangeFeed.start((pollInterval == null) ? ChangeFeed.DEFAULT_POLL_INTERVAL : pollInterval);
+    startWriteBehind(app);
+    Integer sweepInterval = app.configuration().getInt("reservations.sweepInterval");
+    ReservationLedger.start((sweepInterval == null) ? ReservationLedger.DEFAULT_SWEEP_INTERVAL
+        : sweepInterval);
+    Integer alertInterval = app.configuration().getInt("alerts.lowStock.pollInterval");
+    LowStockMonitor.start((alertInterval == null) ? LowStockMonitor.DEFAULT_POLL_INTERVAL
+        : alertInterval, LowStockFeed.INSTANCE);
+    Integer locatorInterval = app.configuration().getInt("warehouses.locator.pollInterval");
+    WarehouseLocator.start((locatorInterval == null) ? WarehouseLocator.DEFAULT_POLL_INTERVAL
+        : locatorInterval);
+  }
+
+  /**
+   * Stops the warehouse locator, the low stock monitor and its stream and the reservation
+   * sweeper, flushes the quantity adjustments written behind, stops the stock change feed and the
+   * database thread pool and closes the product search index.
+   * 
+   * @param app The stopping {@link Application}.
+   */
+  @Override
+  public void onStop(Application app) {
+    WarehouseLocator.stop();
+    LowStockMonitor.stop();
+    LowStockFeed.stop();
+    ReservationLedger.stop();
+    QuantityWriteBehind.stop();
+    ChangeFeed.stop();
+    DatabaseExecutor.stop();
+    ProductSearch.stop();
+  }
+
+  /**
+   * Replays the write-behind journal left by a crash and, if configured, starts writing quantity
+   * adjustments behind.
+   * 
+   * @param app The starting {@link Application}.
+   */
+  private void startWriteBehind(Application app) {
+    String path = app.configuration().getString("stockitems.writeBehind.journal");
+    path = (path == null) ? "target/write-behind" : path;
+    Boolean enabled = app.configuration().getBoolean("stockitems.writeBehind.enabled");
+    Integer interval = app.configuration().getInt("stockitems.writeBehind.interval");
+    Integer threshold = app.configuration().getInt("stockitems.writeBehind.threshold");
+    try {
+      if (Boolean.TRUE.equals(enabled)) {
+        QuantityWriteBehind.start(path,
+            (interval == null) ? QuantityWriteBehind.DEFAULT_FLUSH_INTERVAL : interval,
+            (threshold == null) ? QuantityWriteBehind.DEFAULT_FLUSH_THRESHOLD : threshold);
+      }
+      else if (new File(path).isDirectory()) {
+        QuantityWriteBehind.recover(path);
+      }
+    }
+    catch (IOException e) {
+      throw new IllegalStateException("Could not replay the write-behind journal", e);
+    }
+  }
+
+  /**
+   * Wraps every action in controllers with an {@link InstrumentedAction} that records its latency
+   * and SQL statements.
+   * 
+   * @param request The request being served.
+   * @param actionMethod The action method that will serve it.
+   * @return The action to run.
+   */
+  @Override
+  @SuppressWarnings("rawtypes")
+  public Action onRequest(Request request, Method actionMethod) {
+    Class<?> controller = actionMethod.getDeclaringClass();
+    Package controllerPackage = controller.getPackage();
+    if (controllerPackage != null && "controllers".equals(controllerPackage.getName())) {
+      return new InstrumentedAction(controller.getSimpleName() + "." + actionMethod.getName());
+    }
+    return super.onRequest(request, actionMethod);
+  }
+}
@@ -0,0 +1,25 @@
+package controllers;
+
+import models.LowStockMonitor;
+import play.mvc.Controller;
+import play.mvc.Result;
+
+/**
+ * Reports the {@link models.StockItem}s that are below their reorder point, as found by the
+ * {@link LowStockMonitor}. The list can be narrowed with the product and warehouse query
+ * parameters; the stream sends a low or restocked event each time a reorder point is crossed.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class Alerts extends Controller {
+
+  public static Result lowStock() {
+    return Helpers.render(LowStockMonitor.findLow(request().getQueryString("product"),
+        request().getQueryString("warehouse")), "No low stock");
+  }
+
+  public static Result lowStockStream() {
+    return ok(LowStockFeed.subscribe()).as("text/event-stream");
+  }
+}
@@ -1,5 +1,6 @@
 package controllers;
 
+import models.EntityCache;
 import play.mvc.Controller;
 import play.mvc.Result;
 import views.html.index;
@@ -21,4 +22,19 @@ public class Application extends Controller {
     return ok(index.render("Your new application is ready."));
   }
 
+  /**
+   * Reports the hits, misses, evictions and size of each entity cache.
+   * 
+   * @return The OK {@link Result} status with one line per cache.
+   */
+  public static Result cacheStats() {
+    StringBuilder stats = new StringBuilder();
+    for (EntityCache<?> cache : EntityCache.getAll()) {
+      stats.append(String.format("[Cache %s hits=%d misses=%d evictions=%d size=%d]%n",
+          cache.getName(), cache.getHits(), cache.getMisses(), cache.getEvictions(),
+          cache.getSize()));
+    }
+    return ok(stats.toString());
+  }
+
 }
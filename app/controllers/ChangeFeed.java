@@ -0,0 +1,163 @@
+package controllers;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import models.JsonFields;
+import models.StockMovement;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import play.mvc.Results;
+
+/**
+ * Streams the {@link StockMovement} journal to Server-Sent Events subscribers. A single poller
+ * thread reads the journal and pushes each new entry to every subscriber, so the database sees one
+ * query per poll however many clients are listening. Subscribers that start from an older
+ * position are caught up a batch per poll.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class ChangeFeed {
+
+  /**
+   * The poll interval used unless configured otherwise, in milliseconds.
+   */
+  public static final long DEFAULT_POLL_INTERVAL = 500;
+
+  /**
+   * The most journal entries read per poll for each subscriber position.
+   */
+  private static final int BATCH_SIZE = 1000;
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private static final EventSubscribers<Subscriber> subscribers = new EventSubscribers<>();
+
+  private static ScheduledExecutorService poller;
+
+  private ChangeFeed() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Starts polling the journal.
+   * 
+   * @param interval The time between polls in milliseconds.
+   */
+  public static synchronized void start(long interval) {
+    stop();
+    poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "change-feed");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    poller.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          poll();
+        }
+        catch (RuntimeException e) {
+          play.Logger.error("Polling the stock movement journal failed", e);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops polling and disconnects every subscriber.
+   */
+  public static synchronized void stop() {
+    if (poller != null) {
+      poller.shutdownNow();
+      poller = null;
+    }
+    subscribers.closeAll();
+  }
+
+  /**
+   * @return the number of connected subscribers
+   */
+  public static int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  /**
+   * Creates the event stream of a new subscriber.
+   * 
+   * @param since The sequence number of the last journal entry the subscriber has seen.
+   * @return The chunks to send as the response body.
+   */
+  static Results.Chunks<String> subscribe(final long since) {
+    return subscribers.subscribe(new EventSubscribers.Factory<Subscriber>() {
+      @Override
+      public Subscriber create(Results.Chunks.Out<String> out) {
+        return new Subscriber(out, since);
+      }
+    });
+  }
+
+  private static void poll() {
+    Map<Long, List<Subscriber>> byPosition = new HashMap<>();
+    for (Subscriber subscriber : subscribers.getSubscribers()) {
+      List<Subscriber> atPosition = byPosition.get(subscriber.position);
+      if (atPosition == null) {
+        atPosition = new ArrayList<>();
+        byPosition.put(subscriber.position, atPosition);
+      }
+      atPosition.add(subscriber);
+    }
+
+    for (Map.Entry<Long, List<Subscriber>> position : byPosition.entrySet()) {
+      List<StockMovement> movements = StockMovement.findSince(position.getKey(), BATCH_SIZE);
+      StringBuilder events = new StringBuilder();
+      for (StockMovement movement : movements) {
+        events.append("id: " + movement.getSequenceNumber() + "\n");
+        events.append("data: " + json(movement) + "\n\n");
+      }
+      if (movements.isEmpty()) {
+        continue;
+      }
+      for (Subscriber subscriber : position.getValue()) {
+        subscribers.send(subscriber, events.toString());
+        subscriber.position = movements.get(movements.size() - 1).getSequenceNumber();
+      }
+    }
+  }
+
+  private static String json(StockMovement movement) {
+    StringWriter buffer = new StringWriter();
+    try (JsonGenerator json = JSON_FACTORY.createJsonGenerator(buffer)) {
+      movement.writeJson(json, JsonFields.ALL);
+    }
+    catch (IOException e) {
+      // Writing to memory does not fail.
+      throw new IllegalStateException(e);
+    }
+    return buffer.toString();
+  }
+
+  /**
+   * A connected client and the last journal entry it was sent. Only the poller thread reads and
+   * advances the position.
+   */
+  private static class Subscriber extends EventSubscribers.Subscriber {
+    private long position;
+
+    Subscriber(Results.Chunks.Out<String> out, long position) {
+      super(out);
+      this.position = position;
+    }
+  }
+}
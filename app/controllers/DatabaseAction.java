@@ -0,0 +1,36 @@
+package controllers;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import play.mvc.Action;
+import play.mvc.Http;
+import play.mvc.Result;
+
+/**
+ * Runs the actions of a controller on the {@link DatabaseExecutor} instead of the request thread.
+ * Applied with <code>@With(DatabaseAction.class)</code> to the controllers that query the
+ * database.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class DatabaseAction extends Action.Simple {
+
+  @Override
+  public Result call(final Http.Context ctx) throws Throwable {
+    return DatabaseExecutor.async(new Callable<Result>() {
+      @Override
+      public Result call() throws Exception {
+        try {
+          return DatabaseAction.this.delegate.call(ctx);
+        }
+        catch (Exception | Error e) {
+          throw e;
+        }
+        catch (Throwable t) {
+          throw new ExecutionException(t);
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,198 @@
+package controllers;
+
+import akka.dispatch.ExecutionContexts;
+import akka.dispatch.Futures;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import models.QueryCounter;
+import play.libs.Akka;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+import scala.concurrent.ExecutionContext;
+
+/**
+ * The thread pool that runs all blocking database work, so that Play's request threads are never
+ * blocked on JDBC. The pool should be sized to match the connection pool: more threads would only
+ * wait for connections. Work that arrives while every thread is busy waits in a bounded queue;
+ * once the queue is full requests are rejected with SERVICE_UNAVAILABLE instead of piling up.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class DatabaseExecutor {
+
+  /**
+   * The number of threads used unless configured otherwise.
+   */
+  public static final int DEFAULT_THREADS = 20;
+
+  /**
+   * The number of tasks that may wait for a thread unless configured otherwise.
+   */
+  public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+  /**
+   * The number of tasks rejected because the queue was full.
+   */
+  private static final AtomicLong rejected = new AtomicLong();
+
+  private static ThreadPoolExecutor executor;
+
+  private static ExecutionContext context;
+
+  private DatabaseExecutor() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Starts the thread pool.
+   * 
+   * @param threads The number of threads.
+   * @param queueSize The number of tasks that may wait for a thread.
+   */
+  public static synchronized void start(int threads, int queueSize) {
+    stop();
+    executor =
+        new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new DatabaseThreadFactory());
+    context = ExecutionContexts.fromExecutorService(executor);
+  }
+
+  /**
+   * Stops the thread pool, letting queued work finish.
+   */
+  public static synchronized void stop() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+      context = null;
+    }
+  }
+
+  /**
+   * Runs the given action body on the database thread pool and returns its result asynchronously.
+   * The HTTP context and the query counting scope of the request are carried over to the database
+   * thread.
+   * 
+   * @param body The body of the action.
+   * @return An asynchronous {@link Result}, or SERVICE_UNAVAILABLE if the pool is saturated.
+   */
+  public static Result async(final Callable<Result> body) {
+    final Http.Context ctx = Http.Context.current();
+    final QueryCounter.Scope scope = QueryCounter.getScope();
+    Callable<Result> task = new Callable<Result>() {
+      @Override
+      public Result call() throws Exception {
+        Http.Context.current.set(ctx);
+        QueryCounter.setScope(scope);
+        try {
+          return body.call();
+        }
+        finally {
+          QueryCounter.setScope(null);
+          Http.Context.current.remove();
+          IdempotentAction.complete(ctx);
+          InstrumentedAction.complete(ctx);
+        }
+      }
+    };
+    try {
+      return Controller.async(Akka.asPromise(Futures.future(task, context())));
+    }
+    catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      return Results.status(Http.Status.SERVICE_UNAVAILABLE,
+          "The database is saturated, please retry later.");
+    }
+  }
+
+  /**
+   * Runs the given work on the database thread pool, for database work that is not part of an
+   * action such as streaming a response.
+   * 
+   * @param work The work to run.
+   * @throws RejectedExecutionException If the pool is saturated.
+   */
+  public static void execute(Runnable work) {
+    try {
+      executor().execute(work);
+    }
+    catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      throw e;
+    }
+  }
+
+  /**
+   * @return true if the pool can take another task without rejecting it
+   */
+  public static boolean hasCapacity() {
+    ThreadPoolExecutor current = executor();
+    return current.getQueue().remainingCapacity() > 0;
+  }
+
+  /**
+   * @return the number of tasks waiting for a thread
+   */
+  public static int getQueueDepth() {
+    ThreadPoolExecutor current = executor;
+    return (current == null) ? 0 : current.getQueue().size();
+  }
+
+  /**
+   * @return the number of threads currently running a task
+   */
+  public static int getActiveThreads() {
+    ThreadPoolExecutor current = executor;
+    return (current == null) ? 0 : current.getActiveCount();
+  }
+
+  /**
+   * @return the number of threads in the pool
+   */
+  public static int getThreads() {
+    ThreadPoolExecutor current = executor;
+    return (current == null) ? 0 : current.getMaximumPoolSize();
+  }
+
+  /**
+   * @return the number of tasks rejected because the queue was full
+   */
+  public static long getRejected() {
+    return rejected.get();
+  }
+
+  private static synchronized ThreadPoolExecutor executor() {
+    if (executor == null) {
+      start(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+    return executor;
+  }
+
+  private static synchronized ExecutionContext context() {
+    executor();
+    return context;
+  }
+
+  /**
+   * Names the database threads so they can be told apart in thread dumps.
+   */
+  private static class DatabaseThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "database-" + this.count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package controllers;
+
+import java.text.ParseException;
+import java.util.Locale;
+import play.data.format.Formatters;
+
+/**
+ * The {@link Formatters} that bind the business IDs submitted in forms to the entities they refer
+ * to. They are registered once when the application starts.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class EntityFormatters {
+
+  private EntityFormatters() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Registers the {@link models.Warehouse} and {@link models.Product} formatters.
+   */
+  public static void register() {
+    Formatters.register(models.Warehouse.class, new WarehouseFormatter());
+    Formatters.register(models.Product.class, new ProductFormatter());
+  }
+
+  /**
+   * Binds a warehouseId to a reference to the {@link models.Warehouse}.
+   */
+  private static class WarehouseFormatter extends Formatters.SimpleFormatter<models.Warehouse> {
+
+    @Override
+    public models.Warehouse parse(String text, Locale locale) throws ParseException {
+      return models.Warehouse.findReference(text);
+    }
+
+    @Override
+    public String print(models.Warehouse warehouse, Locale locale) {
+      return warehouse.getWarehouseId();
+    }
+  }
+
+  /**
+   * Binds a productId to a reference to the {@link models.Product}.
+   */
+  private static class ProductFormatter extends Formatters.SimpleFormatter<models.Product> {
+
+    @Override
+    public models.Product parse(String text, Locale locale) throws ParseException {
+      return models.Product.findReference(text);
+    }
+
+    @Override
+    public String print(models.Product product, Locale locale) {
+      return product.getProductId();
+    }
+  }
+}
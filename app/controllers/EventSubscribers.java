@@ -0,0 +1,191 @@
+package controllers;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import play.libs.F;
+import play.mvc.Results;
+
+/**
+ * The clients subscribed to a Server-Sent Events stream. A subscriber whose connection fails is
+ * dropped, and a keep-alive comment is sent to every subscriber that has gone
+ * {@link #KEEP_ALIVE} milliseconds without a message so that proxies do not close idle
+ * connections. A single daemon thread sends the keep-alives of every stream.
+ * 
+ * @author Christopher Foo
+ * 
+ * @param <S> The type of the subscribers.
+ */
+final class EventSubscribers<S extends EventSubscribers.Subscriber> {
+
+  /**
+   * How long a subscriber may go without a message before a keep-alive comment is sent, in
+   * milliseconds.
+   */
+  static final long KEEP_ALIVE = 15000;
+
+  /**
+   * Every stream, for the keep-alive thread.
+   */
+  private static final List<EventSubscribers<?>> streams = new CopyOnWriteArrayList<>();
+
+  private static ScheduledExecutorService keepAlives;
+
+  private final List<S> subscribers = new CopyOnWriteArrayList<>();
+
+  EventSubscribers() {
+    streams.add(this);
+    startKeepAlives();
+  }
+
+  /**
+   * Creates the event stream of a new subscriber.
+   * 
+   * @param factory Creates the subscriber once the response is ready.
+   * @return The chunks to send as the response body.
+   */
+  Results.Chunks<String> subscribe(final Factory<S> factory) {
+    return new Results.StringChunks() {
+      @Override
+      public void onReady(Results.Chunks.Out<String> out) {
+        final S subscriber = factory.create(out);
+        out.onDisconnected(new F.Callback0() {
+          @Override
+          public void invoke() {
+            EventSubscribers.this.subscribers.remove(subscriber);
+          }
+        });
+        EventSubscribers.this.subscribers.add(subscriber);
+      }
+    };
+  }
+
+  /**
+   * @return the connected subscribers
+   */
+  List<S> getSubscribers() {
+    return this.subscribers;
+  }
+
+  /**
+   * @return the number of connected subscribers
+   */
+  int size() {
+    return this.subscribers.size();
+  }
+
+  /**
+   * @return true if no client is subscribed
+   */
+  boolean isEmpty() {
+    return this.subscribers.isEmpty();
+  }
+
+  /**
+   * Writes events to one subscriber, dropping it if the client has gone away.
+   * 
+   * @param subscriber The subscriber.
+   * @param events The events, each terminated by a blank line.
+   * @return true if the events were written.
+   */
+  boolean send(S subscriber, String events) {
+    try {
+      subscriber.out.write(events);
+      subscriber.lastSent = System.currentTimeMillis();
+      return true;
+    }
+    catch (RuntimeException e) {
+      // The client has gone away.
+      this.subscribers.remove(subscriber);
+      return false;
+    }
+  }
+
+  /**
+   * Writes events to every subscriber.
+   * 
+   * @param events The events, each terminated by a blank line.
+   */
+  void broadcast(String events) {
+    for (S subscriber : this.subscribers) {
+      send(subscriber, events);
+    }
+  }
+
+  /**
+   * Disconnects every subscriber.
+   */
+  void closeAll() {
+    for (S subscriber : this.subscribers) {
+      subscriber.out.close();
+    }
+    this.subscribers.clear();
+  }
+
+  private void keepAlive(long now) {
+    for (S subscriber : this.subscribers) {
+      if (now - subscriber.lastSent > KEEP_ALIVE) {
+        send(subscriber, ": keep-alive\n\n");
+      }
+    }
+  }
+
+  private static synchronized void startKeepAlives() {
+    if (keepAlives != null) {
+      return;
+    }
+    keepAlives = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "event-keep-alive");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long interval = KEEP_ALIVE / 3;
+    keepAlives.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        long now = System.currentTimeMillis();
+        for (EventSubscribers<?> stream : streams) {
+          try {
+            stream.keepAlive(now);
+          }
+          catch (RuntimeException e) {
+            play.Logger.error("Sending event stream keep-alives failed", e);
+          }
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Creates the subscriber of a newly connected client.
+   * 
+   * @param <S> The type of the subscribers.
+   */
+  interface Factory<S> {
+
+    /**
+     * @param out The chunks of the client's response.
+     * @return The subscriber.
+     */
+    S create(Results.Chunks.Out<String> out);
+  }
+
+  /**
+   * A connected client and when it was last sent a message.
+   */
+  static class Subscriber {
+    // Package-private: members of a type variable cannot reach private fields.
+    final Results.Chunks.Out<String> out;
+    volatile long lastSent = System.currentTimeMillis();
+
+    Subscriber(Results.Chunks.Out<String> out) {
+      this.out = out;
+    }
+  }
+}
@@ -1,11 +1,66 @@
 package controllers;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Query;
+import com.avaje.ebean.QueryResultVisitor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import models.BulkDelete;
+import models.JsonFields;
+import models.JsonWritable;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import play.Play;
 import play.data.Form;
 import play.data.validation.ValidationError;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
 
 public class Helpers {
+
+  /**
+   * The number of rows returned by a collection index when no limit is given. Index requests
+   * without paging parameters used to return the whole table; they now get this first page and
+   * follow the {@link #NEXT_CURSOR_HEADER} for the rest.
+   */
+  public static final int DEFAULT_PAGE_SIZE = 100;
+
+  /**
+   * The largest number of rows a single page may contain.
+   */
+  public static final int MAX_PAGE_SIZE = 1000;
+
+  /**
+   * The response header carrying the cursor of the next page.
+   */
+  public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+  /**
+   * The content type of JSON responses.
+   */
+  public static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+  /**
+   * The content type of plain text responses.
+   */
+  public static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+
+  /**
+   * The factory of the streaming generators that write JSON responses.
+   */
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
   private Helpers(){
     // Empty Private constructor to prevent instantiation.
   }
@@ -21,4 +76,430 @@ public class Helpers {
     }
     return errorString.toString();
   }
+
+  /**
+   * Renders one page of a collection index. Pages are keyed on the primary key: the
+   * <code>after</code> query parameter is the primary key of the last row already seen and
+   * <code>limit</code> is the page size. The cursor of the following page is returned in the
+   * {@link #NEXT_CURSOR_HEADER} header. With <code>stream=true</code> the rows after the cursor are
+   * written out in chunks while the query is iterated instead, every remaining row unless a
+   * <code>limit</code> is given. Play's chunked responses have no back-pressure: chunks the client
+   * has not read yet are buffered, so a slow client reading a large stream makes the server buffer
+   * it. Such clients should page instead. Clients that accept JSON get a JSON array limited to the
+   * <code>fields</code> query parameter, if given.
+   * 
+   * @param query The query selecting the rows of the collection.
+   * @param emptyMessage The message returned when there are no rows.
+   * @return The OK {@link Result} with the rows, or BAD_REQUEST if the paging parameters are bad.
+   */
+  public static <T extends JsonWritable> Result index(Query<T> query, String emptyMessage) {
+    return index(query, null, emptyMessage);
+  }
+
+  /**
+   * Renders one page of a collection index like {@link #index(Query, String)}, limited to the rows
+   * whose primary keys are set in the given bitmap. A page is read with a single primary key
+   * lookup of the next <code>limit</code> keys in the bitmap.
+   * 
+   * @param query The query selecting the rows of the collection.
+   * @param keys The primary keys of the rows to include or null to include every row.
+   * @param emptyMessage The message returned when there are no rows.
+   * @return The OK {@link Result} with the rows, or BAD_REQUEST if the paging parameters are bad.
+   */
+  public static <T extends JsonWritable> Result index(Query<T> query, BitSet keys,
+      String emptyMessage) {
+    long after;
+    int limit;
+    try {
+      after = Long.parseLong(queryString("after", "0"));
+      limit = Integer.parseInt(queryString("limit", String.valueOf(DEFAULT_PAGE_SIZE)));
+    }
+    catch (NumberFormatException e) {
+      return Results.badRequest("after and limit must be numbers.");
+    }
+    if (limit < 1 || limit > MAX_PAGE_SIZE) {
+      return Results.badRequest("limit must be between 1 and " + MAX_PAGE_SIZE + ".");
+    }
+    query.where().gt("primaryKey", after);
+    query.orderBy("primaryKey asc");
+
+    if ("true".equals(queryString("stream", "false"))) {
+      // The rows are written from another task on the pool once Play is ready for them, so refuse
+      // now rather than after a chunked OK has been started.
+      if (!DatabaseExecutor.hasCapacity()) {
+        return Results.status(Http.Status.SERVICE_UNAVAILABLE,
+            "The database is saturated, please retry later.");
+      }
+      int streamLimit = (queryString("limit", null) == null) ? Integer.MAX_VALUE : limit;
+      if (keys == null && streamLimit != Integer.MAX_VALUE) {
+        query.setMaxRows(streamLimit);
+      }
+      return acceptsJson()
+          ? Results.ok(streamJson(query, keys, streamLimit, fields())).as(JSON_CONTENT_TYPE)
+          : Results.ok(stream(query, keys, streamLimit));
+    }
+
+    List<T> rows;
+    if (keys == null) {
+      rows = query.setMaxRows(limit).findList();
+    }
+    else {
+      List<Long> page = page(keys, after, limit);
+      rows = page.isEmpty() ? new ArrayList<T>() : query.where().in("primaryKey", page).findList();
+    }
+    if (rows.size() == limit) {
+      Object lastKey = Ebean.getServer(null).getBeanId(rows.get(rows.size() - 1));
+      Controller.response().setHeader(NEXT_CURSOR_HEADER, String.valueOf(lastKey));
+    }
+    return render(rows, emptyMessage);
+  }
+
+  /**
+   * Renders a list of models, as a JSON array limited to the <code>fields</code> query parameter
+   * if the client accepts JSON and with its toString() otherwise.
+   * 
+   * @param rows The models to render.
+   * @param emptyMessage The message returned when there are no models.
+   * @return The OK {@link Result}.
+   */
+  public static Result render(List<? extends JsonWritable> rows, String emptyMessage) {
+    if (acceptsJson()) {
+      return json(rows);
+    }
+    return rows.isEmpty() ? Results.ok(emptyMessage) : Results.ok(rows.toString());
+  }
+
+  /**
+   * Parses the <code>ids</code> query parameter of a multi-get, a comma separated list of
+   * business IDs.
+   * 
+   * @return The IDs in request order, or null if the parameter is not given.
+   */
+  public static List<String> ids() {
+    String ids = Controller.request().getQueryString("ids");
+    if (ids == null) {
+      return null;
+    }
+    List<String> parsed = new ArrayList<>();
+    for (String id : ids.split(",")) {
+      if (!id.trim().isEmpty()) {
+        parsed.add(id.trim());
+      }
+    }
+    return parsed;
+  }
+
+  /**
+   * Renders the result of a multi-get: one entry per requested ID in request order, with a
+   * not-found marker for each ID that matched nothing.
+   * 
+   * @param kind The kind of model, for example "Product".
+   * @param idField The name of the business ID field, for example "productId".
+   * @param ids The requested IDs.
+   * @param found The models found, keyed by business ID.
+   * @return The OK {@link Result}. Callers answer {@link #tooManyIds()} themselves, before loading
+   *         anything, when more than {@link #MAX_PAGE_SIZE} IDs are requested.
+   */
+  public static Result multiGet(String kind, String idField, List<String> ids,
+      Map<String, ? extends JsonWritable> found) {
+    List<JsonWritable> rows = new ArrayList<>();
+    for (String id : ids) {
+      JsonWritable model = found.get(id);
+      rows.add((model == null) ? new NotFound(kind, idField, id) : model);
+    }
+    return render(rows, "No " + kind + "s requested");
+  }
+
+  /**
+   * @return BAD_REQUEST if a multi-get asks for more IDs than fit in a page
+   */
+  public static Result tooManyIds() {
+    return Results.badRequest("At most " + MAX_PAGE_SIZE + " ids may be requested at once.");
+  }
+
+  /**
+   * Renders a single model, as JSON limited to the <code>fields</code> query parameter if the
+   * client accepts JSON and with its toString() otherwise.
+   * 
+   * @param model The model to render.
+   * @return The OK {@link Result}.
+   */
+  public static Result render(JsonWritable model) {
+    byte[] body;
+    String contentType;
+    if (acceptsJson()) {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      try (JsonGenerator json = JSON_FACTORY.createJsonGenerator(buffer, JsonEncoding.UTF8)) {
+        model.writeJson(json, fields());
+      }
+      catch (IOException e) {
+        // Writing to memory does not fail.
+        throw new IllegalStateException(e);
+      }
+      body = buffer.toByteArray();
+      contentType = JSON_CONTENT_TYPE;
+    }
+    else {
+      body = model.toString().getBytes(StandardCharsets.UTF_8);
+      contentType = TEXT_CONTENT_TYPE;
+    }
+    // A rendered model is a successful response, so keep it for retries of an idempotent create.
+    IdempotentAction.record(Http.Status.OK, contentType, body);
+    return Results.ok(body).as(contentType);
+  }
+
+  /**
+   * @return true if the Accept header of the request asks for JSON
+   */
+  public static boolean acceptsJson() {
+    String accept = Controller.request().getHeader(Controller.ACCEPT);
+    return accept != null && accept.contains("application/json");
+  }
+
+  /**
+   * Writes a page of rows as a JSON array.
+   * 
+   * @param rows The rows.
+   * @return The OK {@link Result} with the array.
+   */
+  private static Result json(List<? extends JsonWritable> rows) {
+    JsonFields fields = fields();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (JsonGenerator json = JSON_FACTORY.createJsonGenerator(buffer, JsonEncoding.UTF8)) {
+      json.writeStartArray();
+      for (JsonWritable row : rows) {
+        row.writeJson(json, fields);
+      }
+      json.writeEndArray();
+    }
+    catch (IOException e) {
+      // Writing to memory does not fail.
+      throw new IllegalStateException(e);
+    }
+    return Results.ok(buffer.toByteArray()).as(JSON_CONTENT_TYPE);
+  }
+
+  /**
+   * Writes out each row of the query, one per line, as Ebean visits them so that only the current
+   * row is held in memory while the client keeps up.
+   * 
+   * @param query The query selecting the rows.
+   * @param keys The primary keys of the rows to write or null to write every row.
+   * @param limit The most rows to write.
+   * @return The chunks to send as the response body.
+   */
+  private static <T> Results.Chunks<String> stream(final Query<T> query, final BitSet keys,
+      final int limit) {
+    return new Results.StringChunks() {
+      @Override
+      public void onReady(final Results.Chunks.Out<String> out) {
+        // Play calls onReady on its own threads, so iterate the query on the database pool.
+        executeOrClose(out, new Runnable() {
+          @Override
+          public void run() {
+            try {
+              query.findVisit(new QueryResultVisitor<T>() {
+                private int written;
+
+                @Override
+                public boolean accept(T row) {
+                  if (selected(keys, row)) {
+                    out.write(row.toString() + "\n");
+                    this.written++;
+                  }
+                  return this.written < limit;
+                }
+              });
+            }
+            finally {
+              out.close();
+            }
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Writes out the rows of the query as a JSON array, generating each row straight into the
+   * response chunks as Ebean visits them.
+   * 
+   * @param query The query selecting the rows.
+   * @param keys The primary keys of the rows to write or null to write every row.
+   * @param limit The most rows to write.
+   * @param fields The fields of each row to write.
+   * @return The chunks to send as the response body.
+   */
+  private static <T extends JsonWritable> Results.Chunks<byte[]> streamJson(final Query<T> query,
+      final BitSet keys, final int limit, final JsonFields fields) {
+    return new Results.ByteChunks() {
+      @Override
+      public void onReady(final Results.Chunks.Out<byte[]> out) {
+        executeOrClose(out, new Runnable() {
+          @Override
+          public void run() {
+            try (JsonGenerator json =
+                JSON_FACTORY.createJsonGenerator(new ChunksOutputStream(out), JsonEncoding.UTF8)) {
+              json.writeStartArray();
+              query.findVisit(new QueryResultVisitor<T>() {
+                private int written;
+
+                @Override
+                public boolean accept(T row) {
+                  try {
+                    if (selected(keys, row)) {
+                      row.writeJson(json, fields);
+                      this.written++;
+                    }
+                    return this.written < limit;
+                  }
+                  catch (IOException e) {
+                    throw new IllegalStateException(e);
+                  }
+                }
+              });
+              json.writeEndArray();
+            }
+            catch (IOException e) {
+              throw new IllegalStateException(e);
+            }
+            finally {
+              out.close();
+            }
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Runs the writer of a chunked response on the database pool. The OK has already been sent when
+   * Play is ready for the chunks, so if the pool fills up in between the response is ended early
+   * instead of leaving the client waiting for chunks that never come.
+   * 
+   * @param out The chunks of the response.
+   * @param writer The work that writes the chunks and closes them.
+   */
+  private static void executeOrClose(Results.Chunks.Out<?> out, Runnable writer) {
+    try {
+      DatabaseExecutor.execute(writer);
+    }
+    catch (RejectedExecutionException e) {
+      out.close();
+    }
+  }
+
+  /**
+   * Gets the first keys set in the bitmap after the cursor.
+   * 
+   * @param keys The primary keys as bit positions.
+   * @param after The primary key of the last row already seen.
+   * @param limit The most keys to return.
+   * @return The keys in ascending order.
+   */
+  private static List<Long> page(BitSet keys, long after, int limit) {
+    List<Long> page = new ArrayList<>();
+    if (after >= Integer.MAX_VALUE) {
+      return page;
+    }
+    int key = keys.nextSetBit((int) Math.max(after + 1, 0));
+    while (key >= 0 && page.size() < limit) {
+      page.add((long) key);
+      key = keys.nextSetBit(key + 1);
+    }
+    return page;
+  }
+
+  /**
+   * A streamed listing visits every row after the cursor, so rows outside the bitmap are skipped
+   * as they arrive instead of sending every key to the database.
+   */
+  private static boolean selected(BitSet keys, Object row) {
+    if (keys == null) {
+      return true;
+    }
+    Object key = Ebean.getServer(null).getBeanId(row);
+    return key instanceof Number && keys.get(((Number) key).intValue());
+  }
+
+  /**
+   * @return the number of stock items an asynchronous delete removes per transaction
+   */
+  static int deleteChunkSize() {
+    Integer chunkSize = Play.application().configuration().getInt("delete.chunkSize");
+    return (chunkSize == null) ? BulkDelete.DEFAULT_CHUNK_SIZE : chunkSize;
+  }
+
+  /**
+   * Gets a field of the form posted with the request.
+   * 
+   * @param key The name of the field.
+   * @return The first value of the field, or null if the request has no such field.
+   */
+  static String formValue(String key) {
+    Map<String, String[]> form = Controller.request().body().asFormUrlEncoded();
+    String[] values = (form == null) ? null : form.get(key);
+    return (values == null || values.length == 0) ? null : values[0];
+  }
+
+  private static JsonFields fields() {
+    return JsonFields.parse(Controller.request().getQueryString("fields"));
+  }
+
+  private static String queryString(String key, String defaultValue) {
+    String value = Controller.request().getQueryString(key);
+    return (value == null || value.isEmpty()) ? defaultValue : value;
+  }
+
+  /**
+   * The marker of a requested ID that matched nothing in a multi-get.
+   */
+  private static class NotFound implements JsonWritable {
+    private final String kind;
+    private final String idField;
+    private final String id;
+
+    NotFound(String kind, String idField, String id) {
+      this.kind = kind;
+      this.idField = idField;
+      this.id = id;
+    }
+
+    @Override
+    public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+      json.writeStartObject();
+      json.writeStringField(this.idField, this.id);
+      json.writeBooleanField("notFound", true);
+      json.writeEndObject();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("[%s %s not found]", this.kind, this.id);
+    }
+  }
+
+  /**
+   * Sends everything written to it as response chunks. The JSON generator buffers its output, so
+   * each write is already a reasonably sized chunk.
+   */
+  private static class ChunksOutputStream extends OutputStream {
+    private final Results.Chunks.Out<byte[]> out;
+
+    ChunksOutputStream(Results.Chunks.Out<byte[]> out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) {
+      this.out.write(new byte[] {(byte) b});
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      if (length > 0) {
+        this.out.write(Arrays.copyOfRange(bytes, offset, offset + length));
+      }
+    }
+  }
 }
@@ -0,0 +1,177 @@
+package controllers;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, time-expiring store of the responses to requests sent with an Idempotency-Key
+ * header. A key is reserved when its first request starts and holds the response once that request
+ * succeeds, so that retries are answered from memory without touching the entity tables. Keys are
+ * evicted when the store is full (oldest first) or once they are older than the time to live.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class IdempotencyStore {
+
+  /**
+   * The maximum number of keys held unless configured otherwise.
+   */
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  /**
+   * How long a key is remembered unless configured otherwise, in milliseconds.
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = 24 * 60 * 60 * 1000;
+
+  /**
+   * The reserved and completed keys in insertion order. Guarded by itself.
+   */
+  private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > maxSize;
+    }
+  };
+
+  /**
+   * The number of requests answered from the store.
+   */
+  private static final AtomicLong replays = new AtomicLong();
+
+  private static volatile int maxSize = DEFAULT_MAX_SIZE;
+
+  private static volatile long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+  private IdempotencyStore() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Sets the size and time to live of the store and clears it.
+   * 
+   * @param size The maximum number of keys held.
+   * @param ttl How long a key is remembered, in milliseconds.
+   */
+  public static void configure(int size, long ttl) {
+    synchronized (entries) {
+      maxSize = size;
+      timeToLive = ttl;
+      entries.clear();
+    }
+  }
+
+  /**
+   * Reserves the given key for a new request unless it is already known.
+   * 
+   * @param key The key, including the method and path of the request.
+   * @param fingerprint A digest of the request body.
+   * @return The existing entry of the key, or null if the key was reserved for this request.
+   */
+  static Entry reserve(String key, String fingerprint) {
+    synchronized (entries) {
+      long now = System.currentTimeMillis();
+      Entry entry = entries.get(key);
+      if (entry != null && entry.expires > now) {
+        if (entry.isComplete()) {
+          replays.incrementAndGet();
+        }
+        return entry;
+      }
+      entries.remove(key);
+      entries.put(key, new Entry(fingerprint, now + timeToLive));
+      return null;
+    }
+  }
+
+  /**
+   * Stores the response to the request that reserved the given key.
+   * 
+   * @param key The reserved key.
+   * @param status The status of the response.
+   * @param contentType The content type of the response.
+   * @param body The body of the response.
+   */
+  static void complete(String key, int status, String contentType, byte[] body) {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        entry.status = status;
+        entry.contentType = contentType;
+        entry.body = body;
+      }
+    }
+  }
+
+  /**
+   * Forgets a key whose request did not succeed, so that it can be retried.
+   * 
+   * @param key The reserved key.
+   */
+  static void release(String key) {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && !entry.isComplete()) {
+        entries.remove(key);
+      }
+    }
+  }
+
+  /**
+   * @return the number of keys currently held
+   */
+  public static int getSize() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the number of requests answered from the store
+   */
+  public static long getReplays() {
+    return replays.get();
+  }
+
+  /**
+   * The request a key was first used for and, once it succeeded, its response.
+   */
+  static class Entry {
+    private final String fingerprint;
+    private final long expires;
+    private int status;
+    private String contentType;
+    private volatile byte[] body;
+
+    private Entry(String fingerprint, long expires) {
+      this.fingerprint = fingerprint;
+      this.expires = expires;
+    }
+
+    /**
+     * @return true once the response of the request is stored
+     */
+    boolean isComplete() {
+      return this.body != null;
+    }
+
+    String getFingerprint() {
+      return this.fingerprint;
+    }
+
+    int getStatus() {
+      return this.status;
+    }
+
+    String getContentType() {
+      return this.contentType;
+    }
+
+    byte[] getBody() {
+      return this.body;
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package controllers;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import org.codehaus.jackson.JsonNode;
+import play.mvc.Action;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+
+/**
+ * Makes a create action safe to retry. A request sent with an {@link #KEY_HEADER} header that has
+ * already succeeded is answered with the stored response instead of running the action again,
+ * while a retry that arrives before the first attempt has finished is turned away with CONFLICT.
+ * Requests without the header run as usual. Applied with
+ * <code>@With(IdempotentAction.class)</code> to the actions that create entities.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class IdempotentAction extends Action.Simple {
+
+  /**
+   * The request header carrying the client's key for the request.
+   */
+  public static final String KEY_HEADER = "Idempotency-Key";
+
+  /**
+   * The response header set on responses answered from the {@link IdempotencyStore}.
+   */
+  public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+  /**
+   * The longest key accepted.
+   */
+  private static final int MAX_KEY_LENGTH = 255;
+
+  /**
+   * The key of the reserved store key of the current request in the context arguments.
+   */
+  private static final String RESERVED = "idempotency.key";
+
+  @Override
+  public Result call(Http.Context ctx) throws Throwable {
+    String key = ctx.request().getHeader(KEY_HEADER);
+    if (key == null || key.isEmpty()) {
+      return this.delegate.call(ctx);
+    }
+    if (key.length() > MAX_KEY_LENGTH) {
+      return Results.badRequest(KEY_HEADER + " must be at most " + MAX_KEY_LENGTH
+          + " characters.");
+    }
+
+    // Keys are scoped to the endpoint so that one key cannot replay another endpoint's response.
+    String storeKey = ctx.request().method() + " " + ctx.request().path() + " " + key;
+    String fingerprint = fingerprint(ctx.request());
+    IdempotencyStore.Entry entry = IdempotencyStore.reserve(storeKey, fingerprint);
+    if (entry != null) {
+      if (!entry.getFingerprint().equals(fingerprint)) {
+        return Results.status(Http.Status.UNPROCESSABLE_ENTITY, "The " + KEY_HEADER + " '"
+            + key + "' was already used for a different request.");
+      }
+      if (!entry.isComplete()) {
+        return Results.status(Http.Status.CONFLICT, "A request with the " + KEY_HEADER + " '"
+            + key + "' is still in progress.");
+      }
+      ctx.response().setHeader(REPLAYED_HEADER, "true");
+      return Results.status(entry.getStatus(), entry.getBody()).as(entry.getContentType());
+    }
+
+    ctx.args.put(RESERVED, storeKey);
+    Result result = null;
+    try {
+      result = this.delegate.call(ctx);
+      return result;
+    }
+    finally {
+      if (!(result instanceof Results.AsyncResult)) {
+        complete(ctx);
+      }
+    }
+  }
+
+  /**
+   * Stores the response of the current request if it reserved an idempotency key. Called by the
+   * helpers that render a successful create.
+   * 
+   * @param status The status of the response.
+   * @param contentType The content type of the response.
+   * @param body The body of the response.
+   */
+  static void record(int status, String contentType, byte[] body) {
+    Http.Context ctx = Http.Context.current.get();
+    if (ctx != null && ctx.args.get(RESERVED) instanceof String) {
+      IdempotencyStore.complete((String) ctx.args.remove(RESERVED), status, contentType, body);
+    }
+  }
+
+  /**
+   * Releases the idempotency key of a finished request whose response was not recorded, so that
+   * a request that failed can be retried with the same key.
+   * 
+   * @param ctx The context of the request.
+   */
+  static void complete(Http.Context ctx) {
+    if (ctx != null && ctx.args.get(RESERVED) instanceof String) {
+      IdempotencyStore.release((String) ctx.args.remove(RESERVED));
+    }
+  }
+
+  /**
+   * Digests the body of a request, with form fields in a fixed order, so that reusing a key for a
+   * different request can be detected.
+   */
+  private static String fingerprint(Http.Request request) {
+    StringBuilder canonical = new StringBuilder();
+    Map<String, String[]> form = request.body().asFormUrlEncoded();
+    JsonNode json = request.body().asJson();
+    if (form != null) {
+      for (Map.Entry<String, String[]> field : new TreeMap<>(form).entrySet()) {
+        canonical.append(field.getKey()).append('=')
+            .append(Arrays.toString(field.getValue())).append('&');
+      }
+    }
+    else if (json != null) {
+      canonical.append(json.toString());
+    }
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-256").digest(canonical.toString().getBytes("UTF-8"));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      // Every JVM supports SHA-256 and UTF-8.
+      throw new IllegalStateException(e);
+    }
+  }
+}
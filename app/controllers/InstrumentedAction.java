@@ -0,0 +1,84 @@
+package controllers;
+
+import models.QueryCounter;
+import play.mvc.Action;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+
+/**
+ * Wraps a controller action to record its latency and the ORM queries and rows it triggers in
+ * the {@link RequestMetrics}. Applied to every action in controllers by the Global settings.
+ * Actions that hand their work to the {@link DatabaseExecutor} are recorded once that work is
+ * done rather than when the action returns.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class InstrumentedAction extends Action.Simple {
+
+  /**
+   * The key of the {@link Timer} of the current request in the context arguments.
+   */
+  private static final String TIMER = "metrics.timer";
+
+  /**
+   * The controller and action being instrumented, for example "Product.index".
+   */
+  private final String route;
+
+  /**
+   * Creates a new {@link InstrumentedAction} for the given route.
+   * 
+   * @param route The controller and action being instrumented.
+   */
+  public InstrumentedAction(String route) {
+    this.route = route;
+  }
+
+  @Override
+  public Result call(Http.Context ctx) throws Throwable {
+    Timer timer = new Timer(this.route);
+    ctx.args.put(TIMER, timer);
+    QueryCounter.setScope(timer.scope);
+    Result result = null;
+    try {
+      result = this.delegate.call(ctx);
+      return result;
+    }
+    finally {
+      QueryCounter.setScope(null);
+      if (!(result instanceof Results.AsyncResult)) {
+        timer.stop();
+      }
+    }
+  }
+
+  /**
+   * Records the metrics of an asynchronous request whose work has finished.
+   * 
+   * @param ctx The context of the request.
+   */
+  static void complete(Http.Context ctx) {
+    if (ctx != null && ctx.args.get(TIMER) instanceof Timer) {
+      ((Timer) ctx.args.get(TIMER)).stop();
+    }
+  }
+
+  /**
+   * The latency and queries of a single request.
+   */
+  private static class Timer {
+    private final String route;
+    private final QueryCounter.Scope scope = new QueryCounter.Scope();
+    private final long start = System.nanoTime();
+
+    Timer(String route) {
+      this.route = route;
+    }
+
+    void stop() {
+      RequestMetrics.record(this.route, System.nanoTime() - this.start, this.scope);
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package controllers;
+
+import java.util.concurrent.RejectedExecutionException;
+import models.BulkDelete;
+import play.mvc.Controller;
+import play.mvc.Result;
+
+/**
+ * Reports the progress of the long-running jobs started by other controllers.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class Jobs extends Controller {
+
+  public static Result details(String jobId) {
+    BulkDelete.Job job = BulkDelete.findJob(jobId);
+    return (job == null) ? notFound("No job found") : Helpers.render(job);
+  }
+
+  /**
+   * Runs a job on the database thread pool and answers ACCEPTED with the location of its
+   * progress.
+   * 
+   * @param job The job to run.
+   * @return The ACCEPTED {@link Result}, or SERVICE_UNAVAILABLE if the pool is saturated.
+   */
+  static Result start(BulkDelete.Job job) {
+    try {
+      DatabaseExecutor.execute(job);
+    }
+    catch (RejectedExecutionException e) {
+      return status(SERVICE_UNAVAILABLE, "The database is saturated, please retry later.");
+    }
+    String location = routes.Jobs.details(job.getJobId()).url();
+    response().setHeader(LOCATION, location);
+    return status(ACCEPTED, "Started " + job + ", see " + location);
+  }
+}
@@ -0,0 +1,85 @@
+package controllers;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import models.JsonFields;
+import models.LowStockAlert;
+import models.LowStockMonitor;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import play.mvc.Results;
+
+/**
+ * Pushes the reorder point crossings found by the {@link LowStockMonitor} to Server-Sent Events
+ * subscribers as they happen. Each crossing is rendered once and written to every subscriber; idle
+ * subscribers get the same keep-alives as the {@link ChangeFeed}.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class LowStockFeed implements LowStockMonitor.Listener {
+
+  /**
+   * The feed passed to the {@link LowStockMonitor}.
+   */
+  public static final LowStockFeed INSTANCE = new LowStockFeed();
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private static final EventSubscribers<EventSubscribers.Subscriber> subscribers =
+      new EventSubscribers<>();
+
+  private LowStockFeed() {
+    // Private constructor, use INSTANCE.
+  }
+
+  /**
+   * Disconnects every subscriber.
+   */
+  public static void stop() {
+    subscribers.closeAll();
+  }
+
+  /**
+   * @return the number of connected subscribers
+   */
+  public static int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  /**
+   * Creates the event stream of a new subscriber.
+   * 
+   * @return The chunks to send as the response body.
+   */
+  static Results.Chunks<String> subscribe() {
+    return subscribers.subscribe(new EventSubscribers.Factory<EventSubscribers.Subscriber>() {
+      @Override
+      public EventSubscribers.Subscriber create(Results.Chunks.Out<String> out) {
+        return new EventSubscribers.Subscriber(out);
+      }
+    });
+  }
+
+  @Override
+  public void crossed(LowStockAlert alert) {
+    if (subscribers.isEmpty()) {
+      return;
+    }
+    String event = "event: " + (alert.isLow() ? "low" : "restocked") + "\n"
+        + "data: " + json(alert) + "\n\n";
+    subscribers.broadcast(event);
+  }
+
+  private static String json(LowStockAlert alert) {
+    StringWriter buffer = new StringWriter();
+    try (JsonGenerator json = JSON_FACTORY.createJsonGenerator(buffer)) {
+      alert.writeJson(json, JsonFields.ALL);
+    }
+    catch (IOException e) {
+      // Writing to memory does not fail.
+      throw new IllegalStateException(e);
+    }
+    return buffer.toString();
+  }
+}
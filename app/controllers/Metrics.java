@@ -0,0 +1,144 @@
+package controllers;
+
+import com.jolbox.bonecp.BoneCPDataSource;
+import javax.sql.DataSource;
+import models.EntityCache;
+import models.LowStockMonitor;
+import models.QuantityWriteBehind;
+import models.QueryCounter;
+import models.ReservationLedger;
+import models.WarehouseLocator;
+import play.db.DB;
+import play.mvc.Controller;
+import play.mvc.Result;
+
+/**
+ * Exposes the request, database and cache metrics of the application in the Prometheus text
+ * format.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class Metrics extends Controller {
+
+  public static Result index() {
+    StringBuilder out = new StringBuilder();
+    RequestMetrics.appendTo(out);
+    appendDatabase(out);
+    appendExecutor(out);
+    appendCaches(out);
+    appendIdempotency(out);
+    appendReservations(out);
+    appendWriteBehind(out);
+    appendLowStock(out);
+    appendWarehouseLocator(out);
+    return ok(out.toString()).as("text/plain; version=0.0.4");
+  }
+
+  private static void appendDatabase(StringBuilder out) {
+    out.append("# HELP ebean_queries_total Queries executed by Ebean, including lazy loads.\n");
+    out.append("# TYPE ebean_queries_total counter\n");
+    out.append("ebean_queries_total " + QueryCounter.getCount() + "\n");
+    out.append("# HELP ebean_rows_loaded_total Rows loaded into models by Ebean.\n");
+    out.append("# TYPE ebean_rows_loaded_total counter\n");
+    out.append("ebean_rows_loaded_total " + QueryCounter.getRows() + "\n");
+
+    DataSource dataSource = DB.getDataSource();
+    if (dataSource instanceof BoneCPDataSource) {
+      BoneCPDataSource pool = (BoneCPDataSource) dataSource;
+      out.append("# HELP db_pool_connections_leased Connections currently in use.\n");
+      out.append("# TYPE db_pool_connections_leased gauge\n");
+      out.append("db_pool_connections_leased " + pool.getTotalLeased() + "\n");
+      out.append("# HELP db_pool_connections_max The most connections the pool will open.\n");
+      out.append("# TYPE db_pool_connections_max gauge\n");
+      out.append("db_pool_connections_max "
+          + (pool.getPartitionCount() * pool.getMaxConnectionsPerPartition()) + "\n");
+    }
+  }
+
+  private static void appendExecutor(StringBuilder out) {
+    out.append("# HELP db_executor_threads Threads in the database thread pool.\n");
+    out.append("# TYPE db_executor_threads gauge\n");
+    out.append("db_executor_threads " + DatabaseExecutor.getThreads() + "\n");
+    out.append("# HELP db_executor_active_threads Database threads currently running a task.\n");
+    out.append("# TYPE db_executor_active_threads gauge\n");
+    out.append("db_executor_active_threads " + DatabaseExecutor.getActiveThreads() + "\n");
+    out.append("# HELP db_executor_queue_depth Tasks waiting for a database thread.\n");
+    out.append("# TYPE db_executor_queue_depth gauge\n");
+    out.append("db_executor_queue_depth " + DatabaseExecutor.getQueueDepth() + "\n");
+    out.append("# HELP db_executor_rejected_total Tasks rejected because the queue was full.\n");
+    out.append("# TYPE db_executor_rejected_total counter\n");
+    out.append("db_executor_rejected_total " + DatabaseExecutor.getRejected() + "\n");
+  }
+
+  private static void appendCaches(StringBuilder out) {
+    out.append("# HELP entity_cache_hits_total Lookups answered from an entity cache.\n");
+    out.append("# TYPE entity_cache_hits_total counter\n");
+    for (EntityCache<?> cache : EntityCache.getAll()) {
+      out.append("entity_cache_hits_total{cache=\"" + cache.getName() + "\"} " + cache.getHits()
+          + "\n");
+    }
+    out.append("# HELP entity_cache_misses_total Lookups that went to the database.\n");
+    out.append("# TYPE entity_cache_misses_total counter\n");
+    for (EntityCache<?> cache : EntityCache.getAll()) {
+      out.append("entity_cache_misses_total{cache=\"" + cache.getName() + "\"} "
+          + cache.getMisses() + "\n");
+    }
+    out.append("# HELP entity_cache_evictions_total Entries evicted for size or age.\n");
+    out.append("# TYPE entity_cache_evictions_total counter\n");
+    for (EntityCache<?> cache : EntityCache.getAll()) {
+      out.append("entity_cache_evictions_total{cache=\"" + cache.getName() + "\"} "
+          + cache.getEvictions() + "\n");
+    }
+    out.append("# HELP entity_cache_size Entries currently cached.\n");
+    out.append("# TYPE entity_cache_size gauge\n");
+    for (EntityCache<?> cache : EntityCache.getAll()) {
+      out.append("entity_cache_size{cache=\"" + cache.getName() + "\"} " + cache.getSize() + "\n");
+    }
+  }
+
+  private static void appendIdempotency(StringBuilder out) {
+    out.append("# HELP idempotency_keys Idempotency keys currently remembered.\n");
+    out.append("# TYPE idempotency_keys gauge\n");
+    out.append("idempotency_keys " + IdempotencyStore.getSize() + "\n");
+    out.append("# HELP idempotency_replays_total Requests answered from a stored response.\n");
+    out.append("# TYPE idempotency_replays_total counter\n");
+    out.append("idempotency_replays_total " + IdempotencyStore.getReplays() + "\n");
+  }
+
+  private static void appendReservations(StringBuilder out) {
+    out.append("# HELP reservations_active Reservations currently holding stock.\n");
+    out.append("# TYPE reservations_active gauge\n");
+    out.append("reservations_active " + ReservationLedger.getActiveCount() + "\n");
+    out.append("# HELP reservations_expired_total Reservations released because they expired.\n");
+    out.append("# TYPE reservations_expired_total counter\n");
+    out.append("reservations_expired_total " + ReservationLedger.getExpired() + "\n");
+  }
+
+  private static void appendWriteBehind(StringBuilder out) {
+    out.append("# HELP write_behind_pending Stock items with adjustments waiting to be written.\n");
+    out.append("# TYPE write_behind_pending gauge\n");
+    out.append("write_behind_pending " + QuantityWriteBehind.getPendingCount() + "\n");
+    out.append("# HELP write_behind_flushes_total Journal segments flushed to the database.\n");
+    out.append("# TYPE write_behind_flushes_total counter\n");
+    out.append("write_behind_flushes_total " + QuantityWriteBehind.getFlushes() + "\n");
+  }
+
+  private static void appendLowStock(StringBuilder out) {
+    out.append("# HELP low_stock_items Stock items below their reorder point.\n");
+    out.append("# TYPE low_stock_items gauge\n");
+    out.append("low_stock_items " + LowStockMonitor.getLowCount() + "\n");
+    out.append("# HELP low_stock_crossings_total Reorder points crossed in either direction.\n");
+    out.append("# TYPE low_stock_crossings_total counter\n");
+    out.append("low_stock_crossings_total " + LowStockMonitor.getCrossings() + "\n");
+    out.append("# HELP low_stock_subscribers Clients streaming low stock alerts.\n");
+    out.append("# TYPE low_stock_subscribers gauge\n");
+    out.append("low_stock_subscribers " + LowStockFeed.getSubscriberCount() + "\n");
+  }
+
+  private static void appendWarehouseLocator(StringBuilder out) {
+    out.append("# HELP warehouse_locator_warehouses Warehouses indexed by zipcode.\n");
+    out.append("# TYPE warehouse_locator_warehouses gauge\n");
+    out.append("warehouse_locator_warehouses " + WarehouseLocator.getWarehouseCount() + "\n");
+  }
+}
@@ -1,22 +1,161 @@
 package controllers;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import javax.persistence.PersistenceException;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.codehaus.jackson.node.ObjectNode;
 import play.data.Form;
+import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Result;
+import play.mvc.With;
 
+@With(DatabaseAction.class)
 public class Product extends Controller {
+
+  /**
+   * The response header carrying the number of products matching a search.
+   */
+  public static final String SEARCH_TOTAL_HEADER = "X-Total-Count";
   
   public static Result index() {
-    List<models.Product> products = models.Product.find().findList();
-    return ok(products.isEmpty() ? "No products" : products.toString());
+    List<String> ids = Helpers.ids();
+    if (ids != null) {
+      if (ids.size() > Helpers.MAX_PAGE_SIZE) {
+        return Helpers.tooManyIds();
+      }
+      return Helpers.multiGet("Product", "productId", ids, models.Product.findByBusinessIds(ids));
+    }
+    String tags = request().getQueryString("tags");
+    if (tags == null || tags.isEmpty()) {
+      return Helpers.index(models.Product.find().query(), "No products");
+    }
+    String match = request().getQueryString("match");
+    if (match != null && !"all".equals(match) && !"any".equals(match)) {
+      return badRequest("match must be all or any.");
+    }
+    boolean matchAll = !"any".equals(match);
+    List<String> tagIds = Arrays.asList(tags.split(","));
+    BitSet keys = models.TagIndex.findProducts(tagIds, matchAll);
+    if (keys == null) {
+      return Helpers.index(models.Product.findTagged(tagIds, matchAll), "No products");
+    }
+    return Helpers.index(models.Product.find().query(), keys, "No products");
+  }
+
+  public static Result search(String q) {
+    int offset;
+    int limit;
+    try {
+      String offsetParameter = request().getQueryString("offset");
+      String limitParameter = request().getQueryString("limit");
+      offset = (offsetParameter == null) ? 0 : Integer.parseInt(offsetParameter);
+      limit =
+          (limitParameter == null) ? Helpers.DEFAULT_PAGE_SIZE : Integer.parseInt(limitParameter);
+    }
+    catch (NumberFormatException e) {
+      return badRequest("offset and limit must be numbers.");
+    }
+    if (offset < 0 || limit < 1 || limit > Helpers.MAX_PAGE_SIZE) {
+      return badRequest("offset must not be negative and limit must be between 1 and "
+          + Helpers.MAX_PAGE_SIZE + ".");
+    }
+
+    models.ProductSearch.Page page;
+    try {
+      page = models.ProductSearch.search(q, offset, limit);
+    }
+    catch (ParseException e) {
+      return badRequest("Invalid search query: " + e.getMessage());
+    }
+    catch (IOException e) {
+      return internalServerError("The product search index could not be read.");
+    }
+
+    // Load the matches in one query and put them back in ranked order.
+    Map<String, models.Product> found = new HashMap<>();
+    if (!page.getProductIds().isEmpty()) {
+      for (models.Product product : models.Product.find().where()
+          .in("productId", page.getProductIds()).findList()) {
+        found.put(product.getProductId(), product);
+      }
+    }
+    List<models.Product> products = new ArrayList<>();
+    for (String productId : page.getProductIds()) {
+      if (found.containsKey(productId)) {
+        products.add(found.get(productId));
+      }
+    }
+    response().setHeader(SEARCH_TOTAL_HEADER, String.valueOf(page.getTotalHits()));
+    return Helpers.render(products, "No products");
   }
 
   public static Result details(String productId) {
-    models.Product product = models.Product.find().where().eq("productId", productId).findUnique();
-    return (product == null) ? notFound("No product found") : ok(product.toString());
+    models.Product product = models.Product.findByBusinessId(productId);
+    return (product == null) ? notFound("No product found") : Helpers.render(product);
+  }
+  
+  public static Result stock(String productId) {
+    Long total = models.StockLedger.getProductTotal(productId);
+    if (total == null) {
+      return notFound("No product found");
+    }
+    if (Helpers.acceptsJson()) {
+      ObjectNode json = Json.newObject();
+      json.put("productId", productId);
+      json.put("quantity", total.longValue());
+      return ok(json);
+    }
+    return ok(String.valueOf(total));
   }
   
+  public static Result nearest(String productId) {
+    int zipcode;
+    long quantity;
+    try {
+      String zip = request().getQueryString("zip");
+      String qty = request().getQueryString("qty");
+      if (zip == null) {
+        return badRequest("zip is required.");
+      }
+      zipcode = Integer.parseInt(zip);
+      quantity = (qty == null) ? 1 : Long.parseLong(qty);
+    }
+    catch (NumberFormatException e) {
+      return badRequest("zip and qty must be numbers.");
+    }
+    if (quantity < 1) {
+      return badRequest("qty must be positive.");
+    }
+    // The primary key behind the productId is cached, so this does not normally query.
+    models.Product product = models.Product.findReference(productId);
+    if (product == null) {
+      return notFound("No product found");
+    }
+
+    models.WarehouseLocator.Match match =
+        models.WarehouseLocator.findNearest(product.getPrimaryKey(), zipcode, quantity);
+    if (match == null) {
+      return notFound("No warehouse holds " + quantity + " of " + productId);
+    }
+    if (Helpers.acceptsJson()) {
+      ObjectNode json = Json.newObject();
+      json.put("productId", productId);
+      json.put("warehouseId", match.getWarehouseId());
+      json.put("zipcode", match.getZipcode());
+      json.put("quantity", match.getQuantity());
+      return ok(json);
+    }
+    return ok(match.getWarehouseId());
+  }
+  
+  @With(IdempotentAction.class)
   public static Result newProduct() {
     // Create a Product form and bind the request variables to it.
     Form<models.Product> productForm = Form.form(models.Product.class).bindFromRequest();
@@ -28,16 +167,46 @@ public class Product extends Controller {
     
     // form is OK, so make a product and save it.
     models.Product product = productForm.get();
-    product.save();
+    try {
+      product.save();
+    }
+    catch (PersistenceException e) {
+      if (!models.BusinessIds.isDuplicate(e)) {
+        throw e;
+      }
+      // The unique index on product_id rejected a duplicate.
+      return badRequest("A product with ID '" + product.getProductId() + "' already exists.");
+    }
     
-    return ok(product.toString());
+    return Helpers.render(product);
   }
   
+  public static Result reorderPoint(String productId) {
+    // Without a value the reorder point is cleared.
+    Long reorderPoint;
+    try {
+      String value = request().getQueryString("value");
+      reorderPoint = (value == null || value.isEmpty()) ? null : Long.valueOf(value);
+    }
+    catch (NumberFormatException e) {
+      return badRequest("value must be a number.");
+    }
+    if (reorderPoint != null && reorderPoint < 0) {
+      return badRequest("value must not be negative.");
+    }
+    if (!models.LowStockMonitor.setProductReorderPoint(productId, reorderPoint)) {
+      return notFound("No product found");
+    }
+    return ok("Reorder point of " + productId + " set to " + reorderPoint);
+  }
+
   public static Result delete(String productId) {
-    models.Product product = models.Product.find().where().eq("productId", productId).findUnique();
-    if(product != null) {
-      product.delete();
+    if ("true".equals(request().getQueryString("async"))) {
+      models.BulkDelete.Job job =
+          models.BulkDelete.productDeletion(productId, Helpers.deleteChunkSize());
+      return (job == null) ? ok() : Jobs.start(job);
     }
+    models.BulkDelete.deleteProduct(productId);
     return ok();
   }
 }
@@ -0,0 +1,160 @@
+package controllers;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import models.QueryCounter;
+
+/**
+ * The latency, ORM query and row metrics recorded for each controller action, rendered in the
+ * Prometheus text format. The queries and rows are the ones Ebean runs to load models, as counted by
+ * {@link QueryCounter}; inserts, updates, deletes and SQL run through SqlUpdate, SqlQuery or plain
+ * JDBC are not counted, so these metrics are not a count of every SQL statement.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class RequestMetrics {
+
+  /**
+   * The upper bounds of the latency histogram buckets, in seconds.
+   */
+  private static final double[] LATENCY_BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+      0.25, 0.5, 1, 2.5, 5, 10};
+
+  /**
+   * The upper bounds of the ORM queries per request histogram buckets.
+   */
+  private static final double[] QUERY_BUCKETS = {0, 1, 2, 3, 5, 10, 25, 50, 100, 250};
+
+  /**
+   * The metrics of each route, keyed by controller and action name.
+   */
+  private static final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+  private RequestMetrics() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Records a completed request.
+   * 
+   * @param route The controller and action that served the request.
+   * @param nanos How long the request took, in nanoseconds.
+   * @param scope The queries and rows counted while serving the request.
+   */
+  public static void record(String route, long nanos, QueryCounter.Scope scope) {
+    RouteMetrics metrics = routes.get(route);
+    if (metrics == null) {
+      routes.putIfAbsent(route, new RouteMetrics());
+      metrics = routes.get(route);
+    }
+    metrics.latency.observe(nanos / 1e9);
+    metrics.queries.observe(scope.getQueries());
+    metrics.rows.addAndGet(scope.getRows());
+  }
+
+  /**
+   * Appends the metrics of every route in the Prometheus text format.
+   * 
+   * @param out The StringBuilder to append to.
+   */
+  static void appendTo(StringBuilder out) {
+    Map<String, RouteMetrics> sorted = new TreeMap<>(routes);
+
+    out.append("# HELP http_request_duration_seconds Request latency of each route.\n");
+    out.append("# TYPE http_request_duration_seconds histogram\n");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      route.getValue().latency.appendTo(out, "http_request_duration_seconds", route.getKey());
+    }
+
+    out.append("# HELP http_request_orm_queries Ebean model queries, including lazy loads, per"
+        + " request. Inserts, updates, deletes and raw SQL are not counted.\n");
+    out.append("# TYPE http_request_orm_queries histogram\n");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      route.getValue().queries.appendTo(out, "http_request_orm_queries", route.getKey());
+    }
+
+    out.append("# HELP http_request_orm_rows_total Rows loaded into models by the requests of each"
+        + " route.\n");
+    out.append("# TYPE http_request_orm_rows_total counter\n");
+    for (Map.Entry<String, RouteMetrics> route : sorted.entrySet()) {
+      out.append("http_request_orm_rows_total{route=\"" + route.getKey() + "\"} "
+          + route.getValue().rows.get() + "\n");
+    }
+  }
+
+  /**
+   * Formats a sample value the way Prometheus expects.
+   * 
+   * @param value The value.
+   * @return The formatted value.
+   */
+  static String format(double value) {
+    if (value == Math.rint(value) && !Double.isInfinite(value)) {
+      return String.valueOf((long) value);
+    }
+    return String.format(Locale.ROOT, "%s", value);
+  }
+
+  /**
+   * The metrics of a single route.
+   */
+  private static class RouteMetrics {
+    private final Histogram latency = new Histogram(LATENCY_BUCKETS);
+    private final Histogram queries = new Histogram(QUERY_BUCKETS);
+    private final AtomicLong rows = new AtomicLong();
+  }
+
+  /**
+   * A histogram with fixed, cumulative buckets.
+   */
+  private static class Histogram {
+    private final double[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * The sum of the observed values, stored as the bits of a double.
+     */
+    private final AtomicLong sumBits = new AtomicLong(Double.doubleToLongBits(0));
+
+    private Histogram(double[] bounds) {
+      this.bounds = bounds;
+      this.counts = new AtomicLongArray(bounds.length);
+    }
+
+    private void observe(double value) {
+      for (int i = 0; i < this.bounds.length; i++) {
+        if (value <= this.bounds[i]) {
+          this.counts.incrementAndGet(i);
+          break;
+        }
+      }
+      this.count.incrementAndGet();
+      long oldBits;
+      long newBits;
+      do {
+        oldBits = this.sumBits.get();
+        newBits = Double.doubleToLongBits(Double.longBitsToDouble(oldBits) + value);
+      } while (!this.sumBits.compareAndSet(oldBits, newBits));
+    }
+
+    private void appendTo(StringBuilder out, String name, String route) {
+      long cumulative = 0;
+      for (int i = 0; i < this.bounds.length; i++) {
+        cumulative += this.counts.get(i);
+        out.append(name + "_bucket{route=\"" + route + "\",le=\"" + format(this.bounds[i]) + "\"} "
+            + cumulative + "\n");
+      }
+      out.append(name + "_bucket{route=\"" + route + "\",le=\"+Inf\"} " + this.count.get() + "\n");
+      out.append(name + "_sum{route=\"" + route + "\"} "
+          + format(Double.longBitsToDouble(this.sumBits.get())) + "\n");
+      out.append(name + "_count{route=\"" + route + "\"} " + this.count.get() + "\n");
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package controllers;
+
+import models.Reservation;
+import models.ReservationLedger;
+import play.Play;
+import play.mvc.Controller;
+import play.mvc.Result;
+import play.mvc.With;
+
+/**
+ * Holds stock item units for orders through the {@link ReservationLedger}. A reservation is posted
+ * as a form with the stockItem and quantity fields and an optional ttl in seconds, and is then
+ * committed or released.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+@With(DatabaseAction.class)
+public class Reservations extends Controller {
+
+  /**
+   * The longest a reservation may be held, in seconds.
+   */
+  private static final long MAX_TIME_TO_LIVE = 24 * 60 * 60;
+
+  @With(IdempotentAction.class)
+  public static Result reserve() {
+    String stockItemId = Helpers.formValue("stockItem");
+    if (stockItemId == null) {
+      return badRequest("stockItem and quantity are required.");
+    }
+    long quantity;
+    long timeToLive;
+    try {
+      quantity = Long.parseLong(Helpers.formValue("quantity"));
+      String ttl = Helpers.formValue("ttl");
+      timeToLive = (ttl == null) ? defaultTimeToLive() : Long.parseLong(ttl) * 1000;
+    }
+    catch (NumberFormatException e) {
+      return badRequest("quantity and ttl must be numbers.");
+    }
+    if (quantity < 1) {
+      return badRequest("quantity must be positive.");
+    }
+    if (timeToLive < 1000 || timeToLive > MAX_TIME_TO_LIVE * 1000) {
+      return badRequest("ttl must be between 1 and " + MAX_TIME_TO_LIVE + " seconds.");
+    }
+
+    Reservation reservation = ReservationLedger.reserve(stockItemId, quantity, timeToLive);
+    if (reservation != null) {
+      return Helpers.render(reservation);
+    }
+    if (ReservationLedger.getAvailable(stockItemId) == null) {
+      return notFound("No stock item found");
+    }
+    return status(CONFLICT, "Reservation of " + quantity + " of " + stockItemId
+        + " rejected: not enough stock is available.");
+  }
+
+  public static Result details(String reservationId) {
+    Reservation reservation = ReservationLedger.find(reservationId);
+    return (reservation == null) ? notFound("No reservation found") : Helpers.render(reservation);
+  }
+
+  public static Result commit(String reservationId) {
+    if (ReservationLedger.find(reservationId) == null) {
+      return notFound("No reservation found");
+    }
+    if (ReservationLedger.commit(reservationId)) {
+      return ok("Committed " + reservationId);
+    }
+    return status(CONFLICT, "Reservation " + reservationId
+        + " released: the stock item no longer has enough stock.");
+  }
+
+  public static Result release(String reservationId) {
+    ReservationLedger.release(reservationId);
+    return ok();
+  }
+
+  private static long defaultTimeToLive() {
+    Integer ttl = Play.application().configuration().getInt("reservations.ttl");
+    return (ttl == null) ? ReservationLedger.DEFAULT_TIME_TO_LIVE : ttl * 1000L;
+  }
+}
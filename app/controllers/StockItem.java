@@ -1,54 +1,132 @@
 package controllers;
 
-import java.text.ParseException;
+import com.avaje.ebean.Query;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import javax.persistence.PersistenceException;
+import org.codehaus.jackson.node.ObjectNode;
+import play.Play;
 import play.data.Form;
-import play.data.format.Formatters;
 import play.data.validation.ValidationError;
+import play.libs.Json;
+import play.mvc.BodyParser;
 import play.mvc.Controller;
+import play.mvc.Http;
 import play.mvc.Result;
+import play.mvc.With;
 
+@With(DatabaseAction.class)
 public class StockItem extends Controller {
+
+  /**
+   * The largest bulk upload accepted, in bytes.
+   */
+  private static final int BULK_MAX_LENGTH = 256 * 1024 * 1024;
+
+  /**
+   * The number of rows inserted per transaction when stockitems.bulk.chunkSize is not configured.
+   */
+  private static final int DEFAULT_BULK_CHUNK_SIZE = 1000;
   
   public static Result index() {
-    List<models.StockItem> stockItems = models.StockItem.find().findList();
-    return ok(stockItems.isEmpty() ? "No stock items" : stockItems.toString());
+    List<String> ids = Helpers.ids();
+    if (ids != null) {
+      if (ids.size() > Helpers.MAX_PAGE_SIZE) {
+        return Helpers.tooManyIds();
+      }
+      return Helpers.multiGet("StockItem", "stockItemId", ids,
+          models.StockItem.findByBusinessIds(ids));
+    }
+    Query<models.StockItem> query = models.StockItem.findWithDetails();
+    String warehouseId = request().getQueryString("warehouse");
+    String productId = request().getQueryString("product");
+    if (warehouseId != null) {
+      query.where().eq("warehouse.warehouseId", warehouseId);
+    }
+    if (productId != null) {
+      query.where().eq("product.productId", productId);
+    }
+    try {
+      String minQuantity = request().getQueryString("minQty");
+      String maxQuantity = request().getQueryString("maxQty");
+      if (minQuantity != null) {
+        query.where().ge("quantity", Long.parseLong(minQuantity));
+      }
+      if (maxQuantity != null) {
+        query.where().le("quantity", Long.parseLong(maxQuantity));
+      }
+    }
+    catch (NumberFormatException e) {
+      return badRequest("minQty and maxQty must be numbers.");
+    }
+    return Helpers.index(query, "No stock items");
   }
 
-  public static Result details(String stockItemId) {
-    models.StockItem stockitem = models.StockItem.find().where().eq("stockItemId", stockItemId).findUnique();
-    return (stockitem == null) ? notFound("No stock item found") : ok(stockitem.toString());
+  public static Result changes() {
+    long since;
+    int limit;
+    try {
+      String sinceParameter = request().getQueryString("since");
+      String limitParameter = request().getQueryString("limit");
+      since = (sinceParameter == null) ? 0 : Long.parseLong(sinceParameter);
+      limit =
+          (limitParameter == null) ? Helpers.DEFAULT_PAGE_SIZE : Integer.parseInt(limitParameter);
+    }
+    catch (NumberFormatException e) {
+      return badRequest("since and limit must be numbers.");
+    }
+    if (limit < 1 || limit > Helpers.MAX_PAGE_SIZE) {
+      return badRequest("limit must be between 1 and " + Helpers.MAX_PAGE_SIZE + ".");
+    }
+    List<models.StockMovement> movements = models.StockMovement.findSince(since, limit);
+    // Always hand back a cursor so that consumers can poll again from where they stopped.
+    long next = movements.isEmpty() ? since
+        : movements.get(movements.size() - 1).getSequenceNumber();
+    response().setHeader(Helpers.NEXT_CURSOR_HEADER, String.valueOf(next));
+    return Helpers.render(movements, "No changes");
   }
-  
-  public static Result newStockItem() {
-    
-    Formatters.register(models.Warehouse.class, new Formatters.SimpleFormatter<models.Warehouse>(){
-
-      @Override
-      public models.Warehouse parse(String text, Locale locale) throws ParseException {
-        return models.Warehouse.find().where().eq("warehouseId", text).findUnique();
-      }
 
-      @Override
-      public String print(models.Warehouse t, Locale locale) {
-        return t.toString();
-      }
-    });
-    
-    Formatters.register(models.Product.class, new Formatters.SimpleFormatter<models.Product>() {
+  public static Result changeStream() {
+    // EventSource clients resume from the last event they received when reconnecting.
+    String since = request().getHeader("Last-Event-ID");
+    if (since == null) {
+      since = request().getQueryString("since");
+    }
+    try {
+      return ok(ChangeFeed.subscribe((since == null) ? 0 : Long.parseLong(since))).as(
+          "text/event-stream");
+    }
+    catch (NumberFormatException e) {
+      return badRequest("since must be a number.");
+    }
+  }
 
-      @Override
-      public models.Product parse(String text, Locale locale) throws ParseException {
-        return models.Product.find().where().eq("productId", text).findUnique();
-      }
+  public static Result details(String stockItemId) {
+    // Include any adjustments still waiting to be written behind.
+    models.StockItem stockitem = models.QuantityWriteBehind.findByBusinessId(stockItemId);
+    return (stockitem == null) ? notFound("No stock item found") : Helpers.render(stockitem);
+  }
+  
+  public static Result available(String stockItemId) {
+    Long available = models.ReservationLedger.getAvailable(stockItemId);
+    if (available == null) {
+      return notFound("No stock item found");
+    }
+    if (Helpers.acceptsJson()) {
+      ObjectNode json = Json.newObject();
+      json.put("stockItemId", stockItemId);
+      json.put("available", available.longValue());
+      return ok(json);
+    }
+    return ok(String.valueOf(available));
+  }
 
-      @Override
-      public String print(models.Product t, Locale locale) {
-        return t.toString();
-      }
-    });
+  @With(IdempotentAction.class)
+  public static Result newStockItem() {
     
     // Create a StockItem form and bind the request variables to it.
     Form<models.StockItem> stockitemForm = Form.form(models.StockItem.class).bindFromRequest();
@@ -68,13 +146,107 @@ public class StockItem extends Controller {
     
     // form is OK, so make a stock item and save it.
     models.StockItem stockitem = stockitemForm.get();
-    stockitem.save();
+    try {
+      stockitem.save();
+    }
+    catch (PersistenceException e) {
+      if (!models.BusinessIds.isDuplicate(e)) {
+        throw e;
+      }
+      return badRequest("A stock item with ID '" + stockitem.getStockItemId()
+          + "' already exists.");
+    }
     
-    return ok(stockitem.toString());
+    return Helpers.render(stockitem);
   }
   
+  @BodyParser.Of(value = BodyParser.Raw.class, maxLength = BULK_MAX_LENGTH)
+  public static Result bulk() {
+    Integer chunkSize = Play.application().configuration().getInt("stockitems.bulk.chunkSize");
+    models.StockItemImport stockItemImport =
+        new models.StockItemImport((chunkSize == null) ? DEFAULT_BULK_CHUNK_SIZE : chunkSize);
+    try {
+      Http.RequestBody body = request().body();
+      if (body.asJson() != null) {
+        stockItemImport.readJson(body.asJson());
+      }
+      else if (body.asRaw() != null) {
+        // Read the upload from its buffer file so only one row at a time is in memory.
+        try (InputStream input = new FileInputStream(body.asRaw().asFile())) {
+          String contentType = request().getHeader(CONTENT_TYPE);
+          if (contentType != null && contentType.startsWith("application/json")) {
+            stockItemImport.readJson(input);
+          }
+          else {
+            stockItemImport.readCsv(new InputStreamReader(input, "UTF-8"));
+          }
+        }
+      }
+      else {
+        return badRequest("Expected a CSV or JSON array of stock items.");
+      }
+    }
+    catch (IOException e) {
+      return badRequest(e.getMessage());
+    }
+
+    StringBuilder report = new StringBuilder();
+    report.append("Imported " + stockItemImport.getImported() + " of " + stockItemImport.getRows()
+        + " stock items.\n");
+    for (String error : stockItemImport.getErrors()) {
+      report.append(error + "\n");
+    }
+    return ok(report.toString());
+  }
+
+  public static Result adjust(String stockItemId, Long delta) {
+    // The non-negative guard is on unless explicitly disabled.
+    boolean nonNegative = !"false".equals(request().getQueryString("nonNegative"));
+    Long expectedVersion;
+    try {
+      String version = request().getQueryString("version");
+      expectedVersion = (version == null) ? null : Long.valueOf(version);
+    }
+    catch (NumberFormatException e) {
+      return badRequest("version must be a number.");
+    }
+
+    // Without a version check the adjustment may be written behind, if that is enabled.
+    boolean applied =
+        (expectedVersion == null) ? models.QuantityWriteBehind.adjust(stockItemId, delta,
+            nonNegative) : models.StockItem.adjustQuantity(stockItemId, delta, nonNegative,
+            expectedVersion);
+    if (applied) {
+      return ok("Adjusted " + stockItemId + " by " + delta);
+    }
+    if (models.StockItem.findByBusinessId(stockItemId) == null) {
+      return notFound("No stock item found");
+    }
+    return status(CONFLICT, "Adjustment of " + stockItemId + " by " + delta
+        + " rejected: the quantity would become negative or the version has changed.");
+  }
+
+  public static Result reorderPoint(String stockItemId) {
+    // Without a value the reorder point is cleared.
+    Long reorderPoint;
+    try {
+      String value = request().getQueryString("value");
+      reorderPoint = (value == null || value.isEmpty()) ? null : Long.valueOf(value);
+    }
+    catch (NumberFormatException e) {
+      return badRequest("value must be a number.");
+    }
+    if (reorderPoint != null && reorderPoint < 0) {
+      return badRequest("value must not be negative.");
+    }
+    if (!models.LowStockMonitor.setStockItemReorderPoint(stockItemId, reorderPoint)) {
+      return notFound("No stock item found");
+    }
+    return ok("Reorder point of " + stockItemId + " set to " + reorderPoint);
+  }
+
   public static Result delete(String stockItemId) {
-    models.StockItem stockitem = models.StockItem.find().where().eq("stockItemId", stockItemId).findUnique();
+    models.StockItem stockitem = models.StockItem.findByBusinessId(stockItemId);
     if(stockitem != null) {
       stockitem.delete();
     }
@@ -1,33 +1,51 @@
 package controllers;
 
 import java.util.List;
+import javax.persistence.PersistenceException;
 import play.data.Form;
 import play.mvc.Controller;
 import play.mvc.Result;
+import play.mvc.With;
 
+@With(DatabaseAction.class)
 public class Tag extends Controller {
   public static Result index() {
-    List<models.Tag> Tags = models.Tag.find().findList();
-    return ok(Tags.isEmpty() ? "No Tags" : Tags.toString());
+    List<String> ids = Helpers.ids();
+    if (ids != null) {
+      if (ids.size() > Helpers.MAX_PAGE_SIZE) {
+        return Helpers.tooManyIds();
+      }
+      return Helpers.multiGet("Tag", "tagId", ids, models.Tag.findByBusinessIds(ids));
+    }
+    return Helpers.index(models.Tag.find().query(), "No Tags");
   }
   
   public static Result details(String tagId) {
-    models.Tag tag = models.Tag.find().where().eq("tagId", tagId).findUnique();
-    return (tag == null) ? notFound("No Tag found") : ok(tag.toString());
+    models.Tag tag = models.Tag.findByBusinessId(tagId);
+    return (tag == null) ? notFound("No Tag found") : Helpers.render(tag);
   }
   
+  @With(IdempotentAction.class)
   public static Result newTag() {
     Form<models.Tag> tagForm = Form.form(models.Tag.class).bindFromRequest();
     if(tagForm.hasErrors()) {
       return badRequest("Tag name cannot be 'Tag'.");
     }
     models.Tag tag = tagForm.get();
-    tag.save();
-    return ok(tag.toString());
+    try {
+      tag.save();
+    }
+    catch (PersistenceException e) {
+      if (!models.BusinessIds.isDuplicate(e)) {
+        throw e;
+      }
+      return badRequest("A tag with ID '" + tag.getTagId() + "' already exists.");
+    }
+    return Helpers.render(tag);
   }
   
   public static Result delete(String tagId) {
-    models.Tag tag = models.Tag.find().where().eq("tagId", tagId).findUnique();
+    models.Tag tag = models.Tag.findByBusinessId(tagId);
     if(tag != null) {
       tag.delete();
     }
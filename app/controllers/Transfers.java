@@ -0,0 +1,109 @@
+package controllers;
+
+import java.util.ArrayList;
+import java.util.List;
+import models.StockTransfer;
+import org.codehaus.jackson.JsonNode;
+import play.mvc.Controller;
+import play.mvc.Result;
+import play.mvc.With;
+
+/**
+ * Moves stock between warehouses. A single transfer is posted as a form with the product, from,
+ * to and quantity fields; a batch is posted as a JSON array of objects with the same fields and
+ * is applied all or nothing.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+@With(DatabaseAction.class)
+public class Transfers extends Controller {
+
+  /**
+   * The most transfers accepted in one batch.
+   */
+  public static final int MAX_TRANSFERS = 10000;
+
+  @With(IdempotentAction.class)
+  public static Result transfer() {
+    List<StockTransfer> transfers = new ArrayList<>();
+    String error;
+    JsonNode json = request().body().asJson();
+    if (json != null) {
+      error = parse(json.isArray() ? json : null, transfers);
+    }
+    else if (request().body().asFormUrlEncoded() != null) {
+      error = parse(Helpers.formValue("product"), Helpers.formValue("from"),
+          Helpers.formValue("to"), Helpers.formValue("quantity"), transfers);
+    }
+    else {
+      error = "Expected a transfer form or a JSON array of transfers.";
+    }
+    if (error != null) {
+      return badRequest(error);
+    }
+    if (transfers.isEmpty() || transfers.size() > MAX_TRANSFERS) {
+      return badRequest("Between 1 and " + MAX_TRANSFERS + " transfers may be made at once.");
+    }
+
+    StockTransfer.Outcome outcome = StockTransfer.apply(transfers);
+    if (outcome.isApplied()) {
+      return Helpers.render(outcome);
+    }
+    StockTransfer refused = outcome.getRefused();
+    if (outcome.getFailure() == StockTransfer.Failure.UNKNOWN_STOCK_ITEM) {
+      return notFound("No stock item of " + refused.getProductId() + " in "
+          + refused.getFromWarehouseId() + " or " + refused.getToWarehouseId()
+          + ", no transfers made.");
+    }
+    return status(CONFLICT, "Not enough stock of " + refused.getProductId() + " in "
+        + refused.getFromWarehouseId() + ", no transfers made.");
+  }
+
+  /**
+   * Reads a JSON array of transfers.
+   * 
+   * @return An error message or null if every transfer is valid.
+   */
+  private static String parse(JsonNode array, List<StockTransfer> transfers) {
+    if (array == null) {
+      return "Expected a JSON array of transfers.";
+    }
+    for (JsonNode transfer : array) {
+      String error =
+          parse(transfer.path("product").getTextValue(), transfer.path("from").getTextValue(),
+              transfer.path("to").getTextValue(), transfer.path("quantity").asText(), transfers);
+      if (error != null) {
+        return "Transfer " + (transfers.size() + 1) + ": " + error;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Validates one transfer and adds it to the list.
+   * 
+   * @return An error message or null if the transfer is valid.
+   */
+  private static String parse(String productId, String from, String to, String quantity,
+      List<StockTransfer> transfers) {
+    if (productId == null || from == null || to == null) {
+      return "product, from and to are required.";
+    }
+    if (from.equals(to)) {
+      return "from and to must be different warehouses.";
+    }
+    long parsed;
+    try {
+      parsed = Long.parseLong(quantity);
+    }
+    catch (NumberFormatException e) {
+      return "quantity must be a number.";
+    }
+    if (parsed < 1) {
+      return "quantity must be positive.";
+    }
+    transfers.add(new StockTransfer(productId, from, to, parsed));
+    return null;
+  }
+}
@@ -1,22 +1,48 @@
 package controllers;
 
 import java.util.List;
+import javax.persistence.PersistenceException;
+import org.codehaus.jackson.node.ObjectNode;
 import play.data.Form;
+import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Result;
+import play.mvc.With;
 
+@With(DatabaseAction.class)
 public class Warehouse extends Controller {
   public static Result index() {
-    List<models.Warehouse> warehouses = models.Warehouse.find().findList();
-    return ok(warehouses.isEmpty() ? "No warehouses" : warehouses.toString());
+    List<String> ids = Helpers.ids();
+    if (ids != null) {
+      if (ids.size() > Helpers.MAX_PAGE_SIZE) {
+        return Helpers.tooManyIds();
+      }
+      return Helpers.multiGet("Warehouse", "warehouseId", ids,
+          models.Warehouse.findByBusinessIds(ids));
+    }
+    return Helpers.index(models.Warehouse.find().query(), "No warehouses");
   }
 
   public static Result details(String warehouseId) {
-    models.Warehouse warehouse =
-        models.Warehouse.find().where().eq("warehouseId", warehouseId).findUnique();
-    return (warehouse == null) ? notFound("No warehouse found") : ok(warehouse.toString());
+    models.Warehouse warehouse = models.Warehouse.findByBusinessId(warehouseId);
+    return (warehouse == null) ? notFound("No warehouse found") : Helpers.render(warehouse);
   }
 
+  public static Result stock(String warehouseId) {
+    Long total = models.StockLedger.getWarehouseTotal(warehouseId);
+    if (total == null) {
+      return notFound("No warehouse found");
+    }
+    if (Helpers.acceptsJson()) {
+      ObjectNode json = Json.newObject();
+      json.put("warehouseId", warehouseId);
+      json.put("quantity", total.longValue());
+      return ok(json);
+    }
+    return ok(String.valueOf(total));
+  }
+
+  @With(IdempotentAction.class)
   public static Result newWarehouse() {
     // Create a Warehouse form and bind the request variables to it.
     Form<models.Warehouse> warehouseForm = Form.form(models.Warehouse.class).bindFromRequest();
@@ -40,18 +66,27 @@ public class Warehouse extends Controller {
     models.Warehouse warehouse = warehouseForm.get();
     models.Address address = addressForm.get();
     address.setWarehouse(warehouse);
-    warehouse.save();
+    try {
+      warehouse.save();
+    }
+    catch (PersistenceException e) {
+      if (!models.BusinessIds.isDuplicate(e)) {
+        throw e;
+      }
+      // Uniqueness is enforced by the unique index on warehouse_id.
+      return badRequest("A warehouse with ID '" + warehouse.getWarehouseId() + "' already exists.");
+    }
     address.save();
-    return ok(warehouse.toString());
+    return Helpers.render(warehouse);
   }
 
   public static Result delete(String warehouseId) {
-    models.Warehouse warehouse =
-        models.Warehouse.find().where().eq("warehouseId", warehouseId).findUnique();
-    if (warehouse != null) {
-      System.out.println(warehouse);
-      warehouse.delete();
+    if ("true".equals(request().getQueryString("async"))) {
+      models.BulkDelete.Job job =
+          models.BulkDelete.warehouseDeletion(warehouseId, Helpers.deleteChunkSize());
+      return (job == null) ? ok() : Jobs.start(job);
     }
+    models.BulkDelete.deleteWarehouse(warehouseId);
     return ok();
   }
 }
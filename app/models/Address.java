@@ -1,9 +1,11 @@
 package models;
 
+import java.io.IOException;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.OneToOne;
+import org.codehaus.jackson.JsonGenerator;
 import play.data.validation.Constraints.MaxLength;
 import play.data.validation.Constraints.Min;
 import play.data.validation.Constraints.MinLength;
@@ -17,7 +19,7 @@ import play.db.ebean.Model;
  * 
  */
 @Entity
-public class Address extends Model {
+public class Address extends Model implements JsonWritable {
 
   /**
    * Automatically generated serial ID.
@@ -79,6 +81,19 @@ public class Address extends Model {
     this.warehouse = warehouse;
   }
 
+  /**
+   * Copies this {@link Address} for a detached copy of its {@link Warehouse}.
+   * 
+   * @param warehouse The copy of the Warehouse.
+   * @return A copy of this Address that is not attached to Ebean.
+   */
+  Address detachedCopy(Warehouse warehouse) {
+    Address copy =
+        new Address(this.streetAddress, this.city, this.state, this.zipcode, warehouse);
+    copy.primaryKey = this.primaryKey;
+    return copy;
+  }
+
   /**
    * Returns a {@link Finder} that can be used to execute queries on the {@link Address} table.
    * 
@@ -88,6 +103,37 @@ public class Address extends Model {
     return new Finder<Long, Address>(Long.class, Address.class);
   }
 
+  /**
+   * Saves this {@link Address} and drops its {@link Warehouse} from the cache, since a cached
+   * Warehouse renders its Address. The Warehouse is indexed at the zipcode saved.
+   */
+  @Override
+  public void save() {
+    super.save();
+    if (this.warehouse != null) {
+      Warehouse.invalidate(this.warehouse.getWarehouseId());
+      WarehouseLocator.addressSaved(this);
+    }
+  }
+
+  @Override
+  public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+    json.writeStartObject();
+    if (fields.includes("streetAddress")) {
+      json.writeStringField("streetAddress", this.streetAddress);
+    }
+    if (fields.includes("city")) {
+      json.writeStringField("city", this.city);
+    }
+    if (fields.includes("state")) {
+      json.writeStringField("state", this.state);
+    }
+    if (fields.includes("zipcode")) {
+      json.writeNumberField("zipcode", this.zipcode);
+    }
+    json.writeEndObject();
+  }
+
   @Override
   public String toString() {
     return String.format("[Address %s %s %s %s %d]", (this.warehouse == null) ? "NULL"
@@ -0,0 +1,372 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+import com.avaje.ebean.Transaction;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * Deletes a {@link Warehouse} or {@link Product} together with its {@link StockItem}s using a few
+ * set-based statements instead of loading and deleting each StockItem through the cascade. The
+ * stock totals, caches and indexes that the cascade would have maintained are updated here.
+ * 
+ * <p>
+ * A large Warehouse can instead be deleted by a {@link Job} that removes its StockItems in chunks,
+ * one short transaction per chunk, so that other writes are never blocked for long.
+ * </p>
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class BulkDelete {
+
+  /**
+   * The number of StockItems a {@link Job} deletes per transaction unless configured otherwise.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+  /**
+   * The number of finished jobs whose progress is kept.
+   */
+  private static final int MAX_JOBS = 100;
+
+  /**
+   * The most recent jobs keyed by jobId.
+   */
+  private static final Map<String, Job> jobs = new LinkedHashMap<String, Job>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Job> eldest) {
+      return size() > MAX_JOBS && eldest.getValue().isFinished();
+    }
+  };
+
+  private BulkDelete() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Deletes a {@link Warehouse}, its {@link Address} and its {@link StockItem}s in one
+   * transaction.
+   * 
+   * @param warehouseId The warehouseId of the Warehouse.
+   * @return true if the Warehouse was deleted, false if there is no such Warehouse.
+   */
+  public static boolean deleteWarehouse(String warehouseId) {
+    return delete(Owner.WAREHOUSE, warehouseId);
+  }
+
+  /**
+   * Deletes a {@link Product}, its {@link Tag} associations and its {@link StockItem}s in one
+   * transaction.
+   * 
+   * @param productId The productId of the Product.
+   * @return true if the Product was deleted, false if there is no such Product.
+   */
+  public static boolean deleteProduct(String productId) {
+    return delete(Owner.PRODUCT, productId);
+  }
+
+  /**
+   * Creates a {@link Job} that deletes a {@link Warehouse} in chunks. The caller runs the job.
+   * 
+   * @param warehouseId The warehouseId of the Warehouse.
+   * @param chunkSize The number of StockItems to delete per transaction.
+   * @return The job or null if there is no such Warehouse.
+   */
+  public static Job warehouseDeletion(String warehouseId, int chunkSize) {
+    return createJob(Owner.WAREHOUSE, warehouseId, chunkSize);
+  }
+
+  /**
+   * Creates a {@link Job} that deletes a {@link Product} in chunks. The caller runs the job.
+   * 
+   * @param productId The productId of the Product.
+   * @param chunkSize The number of StockItems to delete per transaction.
+   * @return The job or null if there is no such Product.
+   */
+  public static Job productDeletion(String productId, int chunkSize) {
+    return createJob(Owner.PRODUCT, productId, chunkSize);
+  }
+
+  /**
+   * Finds a recent {@link Job}.
+   * 
+   * @param jobId The jobId of the Job.
+   * @return The Job or null if there is no such Job.
+   */
+  public static Job findJob(String jobId) {
+    synchronized (jobs) {
+      return jobs.get(jobId);
+    }
+  }
+
+  private static boolean delete(Owner owner, String id) {
+    EbeanServer server = Ebean.getServer(null);
+    Long key;
+    Transaction transaction = server.beginTransaction();
+    try {
+      key = findKey(server, transaction, owner, id);
+      if (key == null) {
+        return false;
+      }
+      deleteStockItems(server, transaction, owner, key, Long.MAX_VALUE);
+      deleteOwner(server, transaction, owner, key);
+      transaction.commit();
+    }
+    finally {
+      transaction.end();
+    }
+    owner.deleted(id, key);
+    return true;
+  }
+
+  private static Job createJob(Owner owner, String id, int chunkSize) {
+    EbeanServer server = Ebean.getServer(null);
+    Transaction transaction = server.beginTransaction();
+    try {
+      Long key = findKey(server, transaction, owner, id);
+      if (key == null) {
+        return null;
+      }
+      SqlQuery count =
+          server.createSqlQuery("select count(*) as total from stock_item where "
+              + owner.column() + " = :key");
+      count.setParameter("key", key);
+      Job job = new Job(owner, id, key, chunkSize, server.findUnique(count, transaction)
+          .getLong("total"));
+      synchronized (jobs) {
+        jobs.put(job.getJobId(), job);
+      }
+      return job;
+    }
+    finally {
+      transaction.end();
+    }
+  }
+
+  private static Long findKey(EbeanServer server, Transaction transaction, Owner owner,
+      String id) {
+    SqlQuery query =
+        server.createSqlQuery("select primary_key from " + owner.table + " where "
+            + owner.table + "_id = :id");
+    query.setParameter("id", id);
+    SqlRow row = server.findUnique(query, transaction);
+    return (row == null) ? null : row.getLong("primary_key");
+  }
+
+  private static int deleteStockItems(EbeanServer server, Transaction transaction, Owner owner,
+      Long key, long upToKey) {
+    StockLedger.stockItemsDeleted(server, transaction, owner.table, key, upToKey);
+    SqlUpdate delete =
+        server.createSqlUpdate("delete from stock_item where " + owner.column()
+            + " = :key and primary_key <= :upTo");
+    delete.setParameter("key", key);
+    delete.setParameter("upTo", upToKey);
+    return server.execute(delete, transaction);
+  }
+
+  private static void deleteOwner(EbeanServer server, Transaction transaction, Owner owner,
+      Long key) {
+    // The stock total row goes with the owner through its on delete cascade.
+    SqlUpdate children =
+        server.createSqlUpdate("delete from " + owner.children + " where " + owner.column()
+            + " = :key");
+    children.setParameter("key", key);
+    server.execute(children, transaction);
+    SqlUpdate delete =
+        server.createSqlUpdate("delete from " + owner.table + " where primary_key = :key");
+    delete.setParameter("key", key);
+    server.execute(delete, transaction);
+  }
+
+  /**
+   * The kinds of rows that own StockItems.
+   */
+  private static enum Owner {
+    PRODUCT("product", "product_tag"), WAREHOUSE("warehouse", "address");
+
+    /**
+     * The table of the owner.
+     */
+    private final String table;
+
+    /**
+     * The table, other than stock_item, whose rows refer to the owner.
+     */
+    private final String children;
+
+    private Owner(String table, String children) {
+      this.table = table;
+      this.children = children;
+    }
+
+    String column() {
+      return this.table + "_primary_key";
+    }
+
+    void deleted(String id, Long key) {
+      if (this == PRODUCT) {
+        Product.deleted(id, key);
+      }
+      else {
+        Warehouse.deleted(id, key);
+      }
+    }
+  }
+
+  /**
+   * The state of a {@link Job}.
+   */
+  public static enum State {
+    RUNNING, DONE, FAILED
+  }
+
+  /**
+   * A deletion that removes the StockItems of its owner in chunks, one transaction per chunk,
+   * and then the owner itself. Its progress can be read while it runs.
+   */
+  public static class Job implements Runnable, JsonWritable {
+    private final String jobId = UUID.randomUUID().toString();
+    private final Owner owner;
+    private final String id;
+    private final Long key;
+    private final int chunkSize;
+    private final long total;
+    private final AtomicLong deleted = new AtomicLong();
+    private volatile State state = State.RUNNING;
+    private volatile String error;
+
+    Job(Owner owner, String id, Long key, int chunkSize, long total) {
+      this.owner = owner;
+      this.id = id;
+      this.key = key;
+      this.chunkSize = chunkSize;
+      this.total = total;
+    }
+
+    @Override
+    public void run() {
+      EbeanServer server = Ebean.getServer(null);
+      try {
+        Long upToKey;
+        do {
+          Transaction transaction = server.beginTransaction();
+          try {
+            upToKey = nextChunkEnd(server, transaction);
+            if (upToKey == null) {
+              // Also catches StockItems added since the job started.
+              this.deleted.addAndGet(deleteStockItems(server, transaction, this.owner, this.key,
+                  Long.MAX_VALUE));
+              deleteOwner(server, transaction, this.owner, this.key);
+            }
+            else {
+              this.deleted.addAndGet(deleteStockItems(server, transaction, this.owner, this.key,
+                  upToKey));
+            }
+            transaction.commit();
+          }
+          finally {
+            transaction.end();
+          }
+        }
+        while (upToKey != null);
+        this.owner.deleted(this.id, this.key);
+        this.state = State.DONE;
+      }
+      catch (RuntimeException e) {
+        play.Logger.error("Deleting " + this.owner.table + " " + this.id + " failed", e);
+        this.error = e.getMessage();
+        this.state = State.FAILED;
+      }
+    }
+
+    /**
+     * Finds the largest primary key of the next chunk of StockItems.
+     */
+    private Long nextChunkEnd(EbeanServer server, Transaction transaction) {
+      SqlQuery query =
+          server.createSqlQuery("select max(primary_key) as up_to from (select primary_key"
+              + " from stock_item where " + this.owner.column() + " = :key"
+              + " order by primary_key limit " + this.chunkSize + ")");
+      query.setParameter("key", this.key);
+      SqlRow row = server.findUnique(query, transaction);
+      return (row == null) ? null : row.getLong("up_to");
+    }
+
+    @Override
+    public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+      json.writeStartObject();
+      if (fields.includes("jobId")) {
+        json.writeStringField("jobId", this.jobId);
+      }
+      if (fields.includes(this.owner.table + "Id")) {
+        json.writeStringField(this.owner.table + "Id", this.id);
+      }
+      if (fields.includes("state")) {
+        json.writeStringField("state", this.state.name());
+      }
+      if (fields.includes("deleted")) {
+        json.writeNumberField("deleted", this.deleted.get());
+      }
+      if (fields.includes("total")) {
+        json.writeNumberField("total", this.total);
+      }
+      if (fields.includes("error") && this.error != null) {
+        json.writeStringField("error", this.error);
+      }
+      json.writeEndObject();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("[Job %s delete %s %s %s %d/%d%s]", this.jobId, this.owner.table,
+          this.id, this.state, this.deleted.get(), this.total,
+          (this.error == null) ? "" : " " + this.error);
+    }
+
+    /**
+     * @return the jobId
+     */
+    public String getJobId() {
+      return this.jobId;
+    }
+
+    /**
+     * @return the state
+     */
+    public State getState() {
+      return this.state;
+    }
+
+    /**
+     * @return the number of StockItems deleted so far
+     */
+    public long getDeleted() {
+      return this.deleted.get();
+    }
+
+    /**
+     * @return the number of StockItems when the job started
+     */
+    public long getTotal() {
+      return this.total;
+    }
+
+    /**
+     * @return true if the job is done or failed
+     */
+    public boolean isFinished() {
+      return this.state != State.RUNNING;
+    }
+  }
+}
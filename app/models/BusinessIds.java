@@ -0,0 +1,183 @@
+package models;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.persistence.PersistenceException;
+import play.db.ebean.Model.Finder;
+
+/**
+ * Shared lookup of entities by their business ID (productId, tagId, stockItemId, warehouseId).
+ * Each of these columns is backed by a unique index, so a lookup is a single index probe instead
+ * of a table scan. The primary key behind each business ID is also cached so that references to an
+ * entity, such as the ones bound from a form, can be resolved without a query.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class BusinessIds {
+
+  /**
+   * The cached primary keys, keyed by the name of the business ID property and then by business ID.
+   */
+  private static final ConcurrentMap<String, Keys> primaryKeys = new ConcurrentHashMap<>();
+
+  /**
+   * The SQLSTATE of a unique constraint violation.
+   */
+  private static final String UNIQUE_VIOLATION = "23505";
+
+  private BusinessIds() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Finds the single entity whose business ID property equals the given ID.
+   * 
+   * @param finder The {@link Finder} for the entity's table.
+   * @param property The name of the business ID property.
+   * @param id The business ID to look for.
+   * @return The matching entity or null if there is none.
+   */
+  static <T> T findUnique(Finder<Long, T> finder, String property, String id) {
+    if (id == null) {
+      return null;
+    }
+    return finder.where().eq(property, id).findUnique();
+  }
+
+  /**
+   * Finds the entities whose business ID property is one of the given IDs with a single IN query.
+   * 
+   * @param finder The {@link Finder} for the entity's table.
+   * @param property The name of the business ID property.
+   * @param ids The business IDs to look for.
+   * @return The matching entities keyed by business ID; IDs that match nothing are left out.
+   */
+  @SuppressWarnings("unchecked")
+  static <T> Map<String, T> findAll(Finder<Long, T> finder, String property,
+      Collection<String> ids) {
+    if (ids.isEmpty()) {
+      return new HashMap<>();
+    }
+    return (Map<String, T>) finder.where().in(property, ids).setMapKey(property).findMap();
+  }
+
+  /**
+   * Gets a reference to the entity whose business ID property equals the given ID. Only the
+   * primary key of a reference is loaded; the first time any other property is read the rest of the
+   * entity is lazy loaded.
+   * 
+   * @param finder The {@link Finder} for the entity's table.
+   * @param property The name of the business ID property.
+   * @param id The business ID to look for.
+   * @return A reference to the matching entity or null if there is none.
+   */
+  static <T> T findReference(Finder<Long, T> finder, String property, String id) {
+    if (id == null) {
+      return null;
+    }
+    Keys keys = keysFor(property);
+    Long primaryKey = keys.byId.get(id);
+    if (primaryKey == null) {
+      long loadGeneration;
+      synchronized (keys) {
+        loadGeneration = keys.generation;
+      }
+      List<Object> ids = finder.where().eq(property, id).findIds();
+      if (ids.isEmpty()) {
+        return null;
+      }
+      primaryKey = ((Number) ids.get(0)).longValue();
+      synchronized (keys) {
+        // An entity evicted while the key was being looked up may already be deleted.
+        if (keys.generation == loadGeneration) {
+          keys.byId.put(id, primaryKey);
+        }
+      }
+    }
+    return finder.ref(primaryKey);
+  }
+
+  /**
+   * Removes the cached primary key of the given business ID. Must be called when the entity is
+   * deleted.
+   * 
+   * @param property The name of the business ID property.
+   * @param id The business ID of the deleted entity.
+   */
+  static void evict(String property, String id) {
+    if (id != null) {
+      Keys keys = keysFor(property);
+      synchronized (keys) {
+        keys.generation++;
+        keys.byId.remove(id);
+      }
+    }
+  }
+
+  /**
+   * Tells whether an insert failed because a unique index, such as the one on a business ID,
+   * already holds the value, as opposed to any other constraint or a database failure.
+   * 
+   * @param e The exception thrown by the insert.
+   * @return true if the cause is a unique constraint violation.
+   */
+  public static boolean isDuplicate(PersistenceException e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLException
+          && UNIQUE_VIOLATION.equals(((SQLException) cause).getSQLState())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Describes why a write failed by the innermost cause, which carries the database's message.
+   * 
+   * @param e The exception thrown by the write.
+   * @return The message of the root cause.
+   */
+  public static String describe(PersistenceException e) {
+    Throwable root = e;
+    while (root.getCause() != null && root.getCause() != root) {
+      root = root.getCause();
+    }
+    return (root.getMessage() == null) ? root.toString() : root.getMessage();
+  }
+
+  /**
+   * Removes every cached primary key. Called when the application starts since the database may
+   * have been replaced.
+   */
+  public static void clear() {
+    primaryKeys.clear();
+  }
+
+  private static Keys keysFor(String property) {
+    Keys keys = primaryKeys.get(property);
+    if (keys == null) {
+      primaryKeys.putIfAbsent(property, new Keys());
+      keys = primaryKeys.get(property);
+    }
+    return keys;
+  }
+
+  /**
+   * The cached primary keys of one business ID property.
+   */
+  private static class Keys {
+    private final ConcurrentMap<String, Long> byId = new ConcurrentHashMap<>();
+
+    /**
+     * Advanced by every eviction, so that a key looked up before an eviction is not cached after
+     * it. Guarded by this.
+     */
+    private long generation = 0;
+  }
+}
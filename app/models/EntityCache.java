@@ -0,0 +1,346 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import play.db.ebean.Model.Finder;
+
+/**
+ * A bounded, read-through cache of entities keyed by their business ID. Entries are evicted when
+ * the cache is full (least recently used first) or once they are older than the time to live.
+ * Entries must be invalidated when their entity is saved or deleted.
+ * 
+ * <p>
+ * The cache never hands out the instance it holds. It keeps a detached snapshot of each entity's
+ * own properties, made by its {@link Copier}, and every lookup gets a fresh copy of the snapshot.
+ * Request threads therefore never share a bean or race on its lazy loads, and the snapshots hold
+ * no associated collections that could go stale. An entity loaded while an invalidation happens
+ * is returned but not cached, since it may have been read before the change.
+ * </p>
+ * 
+ * @author Christopher Foo
+ * 
+ * @param <T> The type of entity cached.
+ */
+public class EntityCache<T> {
+
+  /**
+   * The maximum number of entries a cache holds unless configured otherwise.
+   */
+  public static final int DEFAULT_MAX_SIZE = 10000;
+
+  /**
+   * How long an entry lives unless configured otherwise, in milliseconds.
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = 5 * 60 * 1000;
+
+  /**
+   * Every {@link EntityCache} created, so they can be configured, cleared and reported together.
+   */
+  private static final List<EntityCache<?>> caches = new ArrayList<>();
+
+  /**
+   * The size given to caches created after {@link #configureAll(int, long)}.
+   */
+  private static volatile int configuredMaxSize = DEFAULT_MAX_SIZE;
+
+  /**
+   * The time to live given to caches created after {@link #configureAll(int, long)}.
+   */
+  private static volatile long configuredTimeToLive = DEFAULT_TIME_TO_LIVE;
+
+  /**
+   * The name of the cache, used when reporting its statistics.
+   */
+  private final String name;
+
+  /**
+   * The {@link Finder} used to load entities on a miss.
+   */
+  private final Finder<Long, T> finder;
+
+  /**
+   * The name of the business ID property the cache is keyed by.
+   */
+  private final String property;
+
+  /**
+   * Makes the snapshots and the copies handed out.
+   */
+  private final Copier<T> copier;
+
+  /**
+   * The number of invalidations so far. A load that started before an invalidation is not
+   * cached. Guarded by {@link #entries}.
+   */
+  private long generation = 0;
+
+  /**
+   * The cached entries in least recently used order. Guarded by itself.
+   */
+  private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<String, Entry<T>>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+      if (size() > EntityCache.this.maxSize) {
+        EntityCache.this.evictions.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+  };
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  private volatile int maxSize = configuredMaxSize;
+
+  private volatile long timeToLive = configuredTimeToLive;
+
+  /**
+   * Creates a new {@link EntityCache} for the given entity type.
+   * 
+   * @param name The name of the cache.
+   * @param type The class of the cached entities.
+   * @param property The name of the business ID property the cache is keyed by.
+   * @param copier Copies the entity's own properties into a new, detached instance.
+   */
+  EntityCache(String name, Class<T> type, String property, Copier<T> copier) {
+    this.name = name;
+    this.finder = new Finder<Long, T>(Long.class, type);
+    this.property = property;
+    this.copier = copier;
+    synchronized (caches) {
+      caches.add(this);
+    }
+  }
+
+  /**
+   * Gets the entity with the given business ID, loading and caching it if it is not cached.
+   * 
+   * @param id The business ID of the entity.
+   * @return A detached copy of the entity or null if there is none.
+   */
+  public T get(String id) {
+    if (id == null) {
+      return null;
+    }
+    long loadGeneration;
+    synchronized (this.entries) {
+      T cached = cached(id, System.currentTimeMillis());
+      if (cached != null) {
+        return this.copier.copy(cached);
+      }
+      loadGeneration = this.generation;
+    }
+    this.misses.incrementAndGet();
+    T value = BusinessIds.findUnique(this.finder, this.property, id);
+    if (value == null) {
+      return null;
+    }
+    T snapshot = this.copier.copy(value);
+    synchronized (this.entries) {
+      if (this.generation == loadGeneration) {
+        this.entries.put(id, new Entry<T>(snapshot, System.currentTimeMillis() + this.timeToLive));
+      }
+    }
+    return this.copier.copy(snapshot);
+  }
+
+  /**
+   * Gets the entities with the given business IDs. The ones that are not cached are loaded with a
+   * single query and cached.
+   * 
+   * @param ids The business IDs of the entities.
+   * @return Detached copies of the entities keyed by business ID; IDs with no entity are left out.
+   */
+  public Map<String, T> getMany(Collection<String> ids) {
+    Map<String, T> found = new HashMap<>();
+    Set<String> missing = new LinkedHashSet<>();
+    long loadGeneration;
+    synchronized (this.entries) {
+      loadGeneration = this.generation;
+      long now = System.currentTimeMillis();
+      for (String id : ids) {
+        if (id == null || found.containsKey(id) || missing.contains(id)) {
+          continue;
+        }
+        T cached = cached(id, now);
+        if (cached == null) {
+          missing.add(id);
+        }
+        else {
+          found.put(id, cached);
+        }
+      }
+    }
+    for (Map.Entry<String, T> entry : found.entrySet()) {
+      entry.setValue(this.copier.copy(entry.getValue()));
+    }
+    if (missing.isEmpty()) {
+      return found;
+    }
+    this.misses.addAndGet(missing.size());
+    Map<String, T> snapshots = new HashMap<>();
+    for (Map.Entry<String, T> entry : BusinessIds.findAll(this.finder, this.property, missing)
+        .entrySet()) {
+      snapshots.put(entry.getKey(), this.copier.copy(entry.getValue()));
+    }
+    synchronized (this.entries) {
+      if (this.generation == loadGeneration) {
+        long expires = System.currentTimeMillis() + this.timeToLive;
+        for (Map.Entry<String, T> entry : snapshots.entrySet()) {
+          this.entries.put(entry.getKey(), new Entry<T>(entry.getValue(), expires));
+        }
+      }
+    }
+    for (Map.Entry<String, T> entry : snapshots.entrySet()) {
+      found.put(entry.getKey(), this.copier.copy(entry.getValue()));
+    }
+    return found;
+  }
+
+  /**
+   * Gets an entity from the cache, counting the hit or the expiry. Must hold the lock on
+   * {@link #entries}.
+   */
+  private T cached(String id, long now) {
+    Entry<T> entry = this.entries.get(id);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expires > now) {
+      this.hits.incrementAndGet();
+      return entry.value;
+    }
+    this.entries.remove(id);
+    this.evictions.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Removes the entity with the given business ID from the cache.
+   * 
+   * @param id The business ID of the entity.
+   */
+  public void invalidate(String id) {
+    if (id != null) {
+      synchronized (this.entries) {
+        this.entries.remove(id);
+        this.generation++;
+      }
+    }
+  }
+
+  /**
+   * Removes every entity from the cache.
+   */
+  public void clear() {
+    synchronized (this.entries) {
+      this.entries.clear();
+      this.generation++;
+    }
+  }
+
+  /**
+   * Sets the size and time to live of every {@link EntityCache} and clears them.
+   * 
+   * @param maxSize The maximum number of entries in each cache.
+   * @param timeToLive How long an entry lives, in milliseconds.
+   */
+  public static void configureAll(int maxSize, long timeToLive) {
+    configuredMaxSize = maxSize;
+    configuredTimeToLive = timeToLive;
+    for (EntityCache<?> cache : getAll()) {
+      cache.maxSize = maxSize;
+      cache.timeToLive = timeToLive;
+      cache.clear();
+    }
+  }
+
+  /**
+   * @return every EntityCache created
+   */
+  public static List<EntityCache<?>> getAll() {
+    synchronized (caches) {
+      return Collections.unmodifiableList(new ArrayList<>(caches));
+    }
+  }
+
+  /**
+   * @return the name
+   */
+  public String getName() {
+    return this.name;
+  }
+
+  /**
+   * @return the number of entries currently cached
+   */
+  public int getSize() {
+    synchronized (this.entries) {
+      return this.entries.size();
+    }
+  }
+
+  /**
+   * @return the number of lookups answered from the cache
+   */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /**
+   * @return the number of lookups that went to the database
+   */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /**
+   * @return the number of entries evicted for size or age
+   */
+  public long getEvictions() {
+    return this.evictions.get();
+  }
+
+  /**
+   * Copies the properties an entity renders, but none of its collections, into a new instance
+   * that is not attached to Ebean.
+   * 
+   * @param <T> The type of entity copied.
+   */
+  interface Copier<T> {
+
+    /**
+     * @param entity The entity to copy.
+     * @return The copy.
+     */
+    T copy(T entity);
+  }
+
+  /**
+   * A cached snapshot and the time it expires.
+   */
+  private static class Entry<T> {
+    private final T value;
+    private final long expires;
+
+    private Entry(T value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+}
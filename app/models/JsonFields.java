@@ -0,0 +1,57 @@
+package models;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The sparse field selection of a JSON response, parsed from a comma separated list such as
+ * <code>fields=productId,name</code>. The selection applies to the top-level object only; nested
+ * objects are always written in full.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class JsonFields {
+
+  /**
+   * The selection that includes every field.
+   */
+  public static final JsonFields ALL = new JsonFields(null);
+
+  /**
+   * The names of the selected fields or null if every field is selected.
+   */
+  private final Set<String> names;
+
+  private JsonFields(Set<String> names) {
+    this.names = names;
+  }
+
+  /**
+   * Parses a comma separated list of field names.
+   * 
+   * @param fields The field names or null.
+   * @return The selection, {@link #ALL} if no fields are given.
+   */
+  public static JsonFields parse(String fields) {
+    if (fields == null || fields.trim().isEmpty()) {
+      return ALL;
+    }
+    Set<String> names = new HashSet<>();
+    for (String name : fields.split(",")) {
+      if (!name.trim().isEmpty()) {
+        names.add(name.trim());
+      }
+    }
+    return names.isEmpty() ? ALL : new JsonFields(Collections.unmodifiableSet(names));
+  }
+
+  /**
+   * @param name The name of a field.
+   * @return true if the field should be written
+   */
+  public boolean includes(String name) {
+    return this.names == null || this.names.contains(name);
+  }
+}
@@ -0,0 +1,23 @@
+package models;
+
+import java.io.IOException;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * A model that can write itself as a JSON object to a streaming {@link JsonGenerator}, so that
+ * responses are serialized without building an intermediate tree or string.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public interface JsonWritable {
+
+  /**
+   * Writes this model as a JSON object.
+   * 
+   * @param json The generator to write to.
+   * @param fields The top-level fields to include.
+   * @throws IOException If the generator cannot be written to.
+   */
+  void writeJson(JsonGenerator json, JsonFields fields) throws IOException;
+}
@@ -0,0 +1,167 @@
+package models;
+
+import java.io.IOException;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * The stock level of a {@link StockItem} relative to its reorder point, as seen by the
+ * {@link LowStockMonitor}. The reorder point is the StockItem's own if it has one, otherwise that
+ * of its {@link Product}.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class LowStockAlert implements JsonWritable {
+
+  /**
+   * The primary key of the {@link StockItem}.
+   */
+  private final long stockItemKey;
+
+  /**
+   * The stockItemId of the {@link StockItem}.
+   */
+  private final String stockItemId;
+
+  /**
+   * The productId of the {@link Product} of the StockItem.
+   */
+  private final String productId;
+
+  /**
+   * The warehouseId of the {@link Warehouse} of the StockItem.
+   */
+  private final String warehouseId;
+
+  /**
+   * The quantity of the StockItem when it was last evaluated.
+   */
+  private final long quantity;
+
+  /**
+   * The reorder point the quantity was compared against, or null if none applies.
+   */
+  private final Long reorderPoint;
+
+  /**
+   * When the StockItem was evaluated, in milliseconds since the epoch.
+   */
+  private final long evaluatedAt;
+
+  /**
+   * Creates a new {@link LowStockAlert}.
+   * 
+   * @param stockItemKey The primary key of the StockItem.
+   * @param stockItemId The stockItemId of the StockItem.
+   * @param productId The productId of the Product of the StockItem.
+   * @param warehouseId The warehouseId of the Warehouse of the StockItem.
+   * @param quantity The quantity of the StockItem.
+   * @param reorderPoint The reorder point the quantity was compared against, or null if none
+   *          applies.
+   */
+  LowStockAlert(long stockItemKey, String stockItemId, String productId, String warehouseId,
+      long quantity, Long reorderPoint) {
+    this.stockItemKey = stockItemKey;
+    this.stockItemId = stockItemId;
+    this.productId = productId;
+    this.warehouseId = warehouseId;
+    this.quantity = quantity;
+    this.reorderPoint = reorderPoint;
+    this.evaluatedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * @return true if the quantity is below the reorder point; without one it never is
+   */
+  public boolean isLow() {
+    return this.reorderPoint != null && this.quantity < this.reorderPoint;
+  }
+
+  @Override
+  public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+    json.writeStartObject();
+    if (fields.includes("stockItemId")) {
+      json.writeStringField("stockItemId", this.stockItemId);
+    }
+    if (fields.includes("productId")) {
+      json.writeStringField("productId", this.productId);
+    }
+    if (fields.includes("warehouseId")) {
+      json.writeStringField("warehouseId", this.warehouseId);
+    }
+    if (fields.includes("quantity")) {
+      json.writeNumberField("quantity", this.quantity);
+    }
+    if (fields.includes("reorderPoint")) {
+      json.writeFieldName("reorderPoint");
+      if (this.reorderPoint == null) {
+        json.writeNull();
+      }
+      else {
+        json.writeNumber(this.reorderPoint);
+      }
+    }
+    if (fields.includes("low")) {
+      json.writeBooleanField("low", isLow());
+    }
+    if (fields.includes("evaluatedAt")) {
+      json.writeNumberField("evaluatedAt", this.evaluatedAt);
+    }
+    json.writeEndObject();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[LowStockAlert %s %d/%s]", this.stockItemId, this.quantity,
+        this.reorderPoint);
+  }
+
+  /**
+   * @return the primary key of the StockItem
+   */
+  public long getStockItemKey() {
+    return this.stockItemKey;
+  }
+
+  /**
+   * @return the stockItemId
+   */
+  public String getStockItemId() {
+    return this.stockItemId;
+  }
+
+  /**
+   * @return the productId
+   */
+  public String getProductId() {
+    return this.productId;
+  }
+
+  /**
+   * @return the warehouseId
+   */
+  public String getWarehouseId() {
+    return this.warehouseId;
+  }
+
+  /**
+   * @return the quantity
+   */
+  public long getQuantity() {
+    return this.quantity;
+  }
+
+  /**
+   * @return the reorderPoint
+   */
+  public Long getReorderPoint() {
+    return this.reorderPoint;
+  }
+
+  /**
+   * @return when the StockItem was evaluated, in milliseconds since the epoch
+   */
+  public long getEvaluatedAt() {
+    return this.evaluatedAt;
+  }
+}
@@ -0,0 +1,328 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches for {@link StockItem}s falling below their reorder point. Every path that changes a
+ * quantity appends to the {@link StockMovement} journal through the {@link StockLedger}, so a
+ * poller thread follows the journal and re-evaluates only the StockItems named by the new entries,
+ * with one primary key lookup per batch. The StockItems currently below their reorder point are
+ * kept in memory, and each crossing of a reorder point, in either direction, is passed to a
+ * {@link Listener}. Only committed changes are seen, so a rolled back change never raises an alert.
+ * 
+ * <p>
+ * A reorder point set on a StockItem takes precedence over one set on its {@link Product}.
+ * Changing a reorder point re-evaluates the StockItems it applies to straight away.
+ * </p>
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class LowStockMonitor {
+
+  /**
+   * The poll interval used unless configured otherwise, in milliseconds.
+   */
+  public static final long DEFAULT_POLL_INTERVAL = 250;
+
+  /**
+   * The most journal entries read per query.
+   */
+  private static final int BATCH_SIZE = 1000;
+
+  /**
+   * The most StockItems looked up per query.
+   */
+  private static final int CHUNK_SIZE = 500;
+
+  /**
+   * Reads a StockItem with the reorder point that applies to it.
+   */
+  private static final String SELECT = "select s.primary_key, s.stock_item_id, s.quantity,"
+      + " coalesce(s.reorder_point, p.reorder_point) as reorder_point, p.product_id,"
+      + " w.warehouse_id from stock_item s"
+      + " join product p on p.primary_key = s.product_primary_key"
+      + " join warehouse w on w.primary_key = s.warehouse_primary_key";
+
+  /**
+   * Orders alerts by stockItemId.
+   */
+  private static final Comparator<LowStockAlert> BY_STOCK_ITEM_ID =
+      new Comparator<LowStockAlert>() {
+        @Override
+        public int compare(LowStockAlert first, LowStockAlert second) {
+          return first.getStockItemId().compareTo(second.getStockItemId());
+        }
+      };
+
+  /**
+   * The StockItems below their reorder point keyed by primary key. Only changed while holding the
+   * class lock, so crossings are detected against a consistent state.
+   */
+  private static final Map<Long, LowStockAlert> low = new ConcurrentHashMap<>();
+
+  /**
+   * The number of reorder point crossings seen.
+   */
+  private static final AtomicLong crossings = new AtomicLong();
+
+  private static volatile Listener listener;
+
+  /**
+   * The sequence number of the last journal entry evaluated. Only used by the poller thread.
+   */
+  private static long position;
+
+  private static ScheduledExecutorService poller;
+
+  private LowStockMonitor() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Receives the crossings of reorder points.
+   */
+  public interface Listener {
+
+    /**
+     * Called when a {@link StockItem} falls below its reorder point or recovers. Called from the
+     * poller thread or the thread that changed a reorder point, so it must not block.
+     * 
+     * @param alert The new state of the StockItem.
+     */
+    void crossed(LowStockAlert alert);
+  }
+
+  /**
+   * Finds the StockItems that are below their reorder point and starts following the journal from
+   * its current end.
+   * 
+   * @param interval The time between polls in milliseconds.
+   * @param listener The {@link Listener} to pass crossings to, or null.
+   */
+  public static synchronized void start(long interval, Listener listener) {
+    stop();
+    LowStockMonitor.listener = listener;
+    // Read the end of the journal first: a change made during the scan is evaluated again by the
+    // first poll, which only reports it if the scan missed it.
+    position = StockMovement.findEnd(Ebean.getServer(null), null);
+    low.clear();
+    for (SqlRow row : Ebean.createSqlQuery(SELECT
+        + " where s.quantity < coalesce(s.reorder_point, p.reorder_point)").findList()) {
+      LowStockAlert alert = alert(row);
+      low.put(alert.getStockItemKey(), alert);
+    }
+
+    poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "low-stock-monitor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    poller.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          poll();
+        }
+        catch (RuntimeException e) {
+          play.Logger.error("Evaluating stock levels failed", e);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops following the journal.
+   */
+  public static synchronized void stop() {
+    if (poller != null) {
+      poller.shutdownNow();
+      poller = null;
+    }
+  }
+
+  /**
+   * Gets the {@link StockItem}s currently below their reorder point.
+   * 
+   * @param productId If not null, only the StockItems of this Product.
+   * @param warehouseId If not null, only the StockItems in this Warehouse.
+   * @return The alerts ordered by stockItemId.
+   */
+  public static List<LowStockAlert> findLow(String productId, String warehouseId) {
+    List<LowStockAlert> alerts = new ArrayList<>();
+    for (LowStockAlert alert : low.values()) {
+      if ((productId == null || productId.equals(alert.getProductId()))
+          && (warehouseId == null || warehouseId.equals(alert.getWarehouseId()))) {
+        alerts.add(alert);
+      }
+    }
+    Collections.sort(alerts, BY_STOCK_ITEM_ID);
+    return alerts;
+  }
+
+  /**
+   * @return the number of StockItems below their reorder point
+   */
+  public static int getLowCount() {
+    return low.size();
+  }
+
+  /**
+   * @return the number of reorder point crossings seen
+   */
+  public static long getCrossings() {
+    return crossings.get();
+  }
+
+  /**
+   * Sets or clears the reorder point of a {@link StockItem} and re-evaluates it.
+   * 
+   * @param stockItemId The stockItemId of the StockItem.
+   * @param reorderPoint The new reorder point, or null to use that of its Product.
+   * @return True if the StockItem exists.
+   */
+  public static boolean setStockItemReorderPoint(String stockItemId, Long reorderPoint) {
+    if (setReorderPoint("stock_item", "stock_item_id", stockItemId, reorderPoint) != 1) {
+      return false;
+    }
+    evaluate(Ebean.createSqlQuery(SELECT + " where s.stock_item_id = :id").setParameter("id",
+        stockItemId), null);
+    return true;
+  }
+
+  /**
+   * Sets or clears the reorder point of a {@link Product} and re-evaluates its StockItems.
+   * 
+   * @param productId The productId of the Product.
+   * @param reorderPoint The new reorder point, or null for none.
+   * @return True if the Product exists.
+   */
+  public static boolean setProductReorderPoint(String productId, Long reorderPoint) {
+    if (setReorderPoint("product", "product_id", productId, reorderPoint) != 1) {
+      return false;
+    }
+    Product.reorderPointChanged(productId);
+    evaluate(Ebean.createSqlQuery(SELECT + " where p.product_id = :id").setParameter("id",
+        productId), null);
+    return true;
+  }
+
+  /**
+   * Evaluates the StockItems named by the journal entries written since the last poll.
+   */
+  static void poll() {
+    while (true) {
+      List<SqlRow> entries =
+          StockMovement.findRowsSince("stock_item_primary_key", position, BATCH_SIZE);
+      if (entries.isEmpty()) {
+        return;
+      }
+      Set<Long> keys = new TreeSet<>();
+      for (SqlRow entry : entries) {
+        keys.add(entry.getLong("stock_item_primary_key"));
+      }
+      evaluate(keys);
+      position = entries.get(entries.size() - 1).getLong("sequence_number");
+      if (entries.size() < BATCH_SIZE) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Re-evaluates {@link StockItem}s by primary key. StockItems that no longer exist are dropped.
+   * 
+   * @param stockItemKeys The primary keys of the StockItems.
+   */
+  static void evaluate(Collection<Long> stockItemKeys) {
+    List<Long> chunk = new ArrayList<>();
+    Iterator<Long> keys = stockItemKeys.iterator();
+    while (keys.hasNext()) {
+      chunk.add(keys.next());
+      if (chunk.size() == CHUNK_SIZE || !keys.hasNext()) {
+        StringBuilder in = new StringBuilder();
+        for (Long key : chunk) {
+          // Primary keys are numbers, so they are safe to write into the statement.
+          in.append((in.length() == 0) ? "" : ",").append(key.longValue());
+        }
+        evaluate(Ebean.createSqlQuery(SELECT + " where s.primary_key in (" + in + ")"), chunk);
+        chunk.clear();
+      }
+    }
+  }
+
+  /**
+   * Compares the StockItems selected with their previous state and passes on the crossings.
+   * 
+   * @param query The query selecting the StockItems.
+   * @param expected The primary keys that were asked for, so that deleted StockItems can be
+   *          dropped, or null.
+   */
+  private static synchronized void evaluate(SqlQuery query, Collection<Long> expected) {
+    Set<Long> missing = (expected == null) ? new HashSet<Long>() : new HashSet<>(expected);
+    for (SqlRow row : query.findList()) {
+      LowStockAlert alert = alert(row);
+      missing.remove(alert.getStockItemKey());
+      boolean wasLow = low.containsKey(alert.getStockItemKey());
+      if (alert.isLow()) {
+        low.put(alert.getStockItemKey(), alert);
+      }
+      else {
+        low.remove(alert.getStockItemKey());
+      }
+      if (alert.isLow() != wasLow) {
+        crossings.incrementAndGet();
+        Listener current = listener;
+        if (current != null) {
+          current.crossed(alert);
+        }
+      }
+    }
+    for (Long key : missing) {
+      low.remove(key);
+    }
+  }
+
+  private static int setReorderPoint(String table, String column, String id, Long reorderPoint) {
+    SqlUpdate update =
+        Ebean.createSqlUpdate("update " + table + " set reorder_point = :reorderPoint where "
+            + column + " = :id");
+    if (reorderPoint == null) {
+      update.setNullParameter("reorderPoint", Types.BIGINT);
+    }
+    else {
+      update.setParameter("reorderPoint", reorderPoint);
+    }
+    update.setParameter("id", id);
+    return update.execute();
+  }
+
+  private static LowStockAlert alert(SqlRow row) {
+    return new LowStockAlert(row.getLong("primary_key"), row.getString("stock_item_id"),
+        row.getString("product_id"), row.getString("warehouse_id"), row.getLong("quantity"),
+        row.getLong("reorder_point"));
+  }
+}
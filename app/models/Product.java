@@ -1,12 +1,19 @@
 package models;
 
+import com.avaje.ebean.Query;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.ManyToMany;
 import javax.persistence.OneToMany;
+import org.codehaus.jackson.JsonGenerator;
 import play.data.validation.Constraints.Required;
 import play.db.ebean.Model;
 
@@ -16,13 +23,24 @@ import play.db.ebean.Model;
  *
  */
 @Entity
-public class Product extends Model {
+public class Product extends Model implements JsonWritable {
 
   /**
    * Automatically generated serial ID number.
    */
   private static final long serialVersionUID = -7881391014358935700L;
 
+  /**
+   * The read-through cache of {@link Product}s keyed by productId.
+   */
+  private static final EntityCache<Product> cache =
+      new EntityCache<>("product", Product.class, "productId", new EntityCache.Copier<Product>() {
+        @Override
+        public Product copy(Product product) {
+          return product.detachedCopy();
+        }
+      });
+
   /**
    * The ID number and primary key of this {@link Product}.
    */
@@ -48,6 +66,12 @@ public class Product extends Model {
    */
   private String description;
   
+  /**
+   * The quantity below which a {@link StockItem} of this {@link Product} is low on stock, unless
+   * the StockItem has its own; null for none.
+   */
+  private Long reorderPoint;
+  
   /**
    * The {@link Tag}s associated with this {@link Product}.
    */
@@ -79,7 +103,144 @@ public class Product extends Model {
   public static Finder<Long, Product> find() {
     return new Finder<Long, Product>(Long.class, Product.class);
   }
+
+  /**
+   * Finds the {@link Product} with the given productId, from the cache if possible and otherwise
+   * through the unique index on that column.
+   * 
+   * The Product returned is a detached copy holding its own properties only; its Tags and
+   * StockItems must be loaded through {@link #find()}.
+   * 
+   * @param productId The productId of the Product.
+   * @return The matching Product or null if there is none.
+   */
+  public static Product findByBusinessId(String productId) {
+    return cache.get(productId);
+  }
+
+  /**
+   * Finds the {@link Product}s with the given productIds, from the cache where possible and
+   * otherwise with a single query.
+   * 
+   * @param productIds The productIds of the Products.
+   * @return The matching Products keyed by productId; productIds with no Product are left out.
+   */
+  public static Map<String, Product> findByBusinessIds(Collection<String> productIds) {
+    return cache.getMany(productIds);
+  }
+
+  /**
+   * Builds a query of the {@link Product}s tagged with all or any of the given {@link Tag}s, for
+   * when the {@link TagIndex} cannot answer.
+   * 
+   * @param tagIds The tagIds of the Tags.
+   * @param matchAll true to find the Products with every Tag, false for those with any of them.
+   * @return The query of the matching Products.
+   */
+  public static Query<Product> findTagged(Collection<String> tagIds, boolean matchAll) {
+    Set<String> distinctIds = new LinkedHashSet<>();
+    for (String tagId : tagIds) {
+      if (!tagId.trim().isEmpty()) {
+        distinctIds.add(tagId.trim());
+      }
+    }
+    StringBuilder placeholders = new StringBuilder();
+    List<Object> values = new ArrayList<>();
+    for (String tagId : distinctIds) {
+      placeholders.append(values.isEmpty() ? "?" : ", ?");
+      values.add(tagId);
+    }
+    Query<Product> query = find().query();
+    if (distinctIds.isEmpty()) {
+      query.where().raw("1 = 0");
+      return query;
+    }
+    values.add(matchAll ? distinctIds.size() : 1);
+    query.where().raw(
+        "primaryKey in (select pt.product_primary_key from product_tag pt"
+            + " join tag tg on tg.primary_key = pt.tag_primary_key"
+            + " where tg.tag_id in (" + placeholders + ")"
+            + " group by pt.product_primary_key having count(distinct tg.tag_id) >= ?)",
+        values.toArray());
+    return query;
+  }
+
+  /**
+   * Gets a reference to the {@link Product} with the given productId. The primary key behind
+   * the productId is cached, so repeated calls do not query the database until the reference is
+   * used.
+   * 
+   * @param productId The productId of the Product.
+   * @return A reference to the matching Product or null if there is none.
+   */
+  public static Product findReference(String productId) {
+    return BusinessIds.findReference(find(), "productId", productId);
+  }
+
+  /**
+   * @return a copy of this Product's own properties that is not attached to Ebean
+   */
+  private Product detachedCopy() {
+    Product copy = new Product(this.productId, this.name, this.description);
+    copy.primaryKey = this.primaryKey;
+    copy.reorderPoint = this.reorderPoint;
+    return copy;
+  }
+
+  @Override
+  public void save() {
+    super.save();
+    cache.invalidate(this.productId);
+    TagIndex.productSaved(this.primaryKey);
+    ProductSearch.productSaved(this);
+  }
+
+  @Override
+  public void delete() {
+    super.delete();
+    deleted(this.productId, this.primaryKey);
+  }
+
+  /**
+   * Removes a deleted {@link Product} from the caches and indexes.
+   * 
+   * @param productId The productId of the Product.
+   * @param primaryKey The primary key of the Product.
+   */
+  static void deleted(String productId, Long primaryKey) {
+    BusinessIds.evict("productId", productId);
+    cache.invalidate(productId);
+    TagIndex.productDeleted(primaryKey);
+    ProductSearch.productDeleted(productId);
+  }
+
+  /**
+   * Removes a {@link Product} whose reorder point was changed in place from the cache.
+   * 
+   * @param productId The productId of the Product.
+   */
+  static void reorderPointChanged(String productId) {
+    cache.invalidate(productId);
+  }
   
+  @Override
+  public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+    json.writeStartObject();
+    if (fields.includes("productId")) {
+      json.writeStringField("productId", this.productId);
+    }
+    if (fields.includes("name")) {
+      json.writeStringField("name", this.name);
+    }
+    if (fields.includes("description")) {
+      json.writeStringField("description", this.description);
+    }
+    if (fields.includes("reorderPoint") && this.reorderPoint != null) {
+      json.writeNumberField("reorderPoint", this.reorderPoint);
+    }
+    json.writeEndObject();
+  }
+
   @Override
   public String toString() {
     return String.format("[Product %s %s %s]", this.productId, this.name, this.description);
@@ -141,6 +302,20 @@ public class Product extends Model {
     this.description = description;
   }
 
+  /**
+   * @return the reorderPoint
+   */
+  public Long getReorderPoint() {
+    return this.reorderPoint;
+  }
+
+  /**
+   * @param reorderPoint the reorderPoint to set
+   */
+  public void setReorderPoint(Long reorderPoint) {
+    this.reorderPoint = reorderPoint;
+  }
+
   /**
    * @return the tags
    */
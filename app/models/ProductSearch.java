@@ -0,0 +1,293 @@
+package models;
+
+import com.avaje.ebean.QueryResultVisitor;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * An embedded Lucene full-text index of the name and description of every {@link Product}. The
+ * index lives on local disk, is rebuilt from the product table on start and is updated in place
+ * as Products are saved and deleted. Name matches rank above description matches.
+ * 
+ * <p>
+ * Saves and deletes only add the change to the index writer; a background thread reopens the
+ * searcher at most {@link #MAX_STALE_SECONDS} later. A search waits for the changes made before
+ * it, which the reopen thread then picks up within {@link #MIN_STALE_SECONDS}, so product writes
+ * never wait for a reopen.
+ * </p>
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class ProductSearch {
+
+  /**
+   * The Lucene version whose behavior the index follows.
+   */
+  private static final Version VERSION = Version.LUCENE_4_10_4;
+
+  /**
+   * The weight of a match in each searched field.
+   */
+  private static final Map<String, Float> BOOSTS = new HashMap<>();
+
+  static {
+    BOOSTS.put("name", 2.0f);
+    BOOSTS.put("description", 1.0f);
+  }
+
+  /**
+   * The longest a change waits to become searchable when no search is waiting for it.
+   */
+  private static final double MAX_STALE_SECONDS = 1.0;
+
+  /**
+   * The longest a change waits to become searchable when a search is waiting for it.
+   */
+  private static final double MIN_STALE_SECONDS = 0.025;
+
+  private static IndexWriter writer;
+
+  private static volatile TrackingIndexWriter tracking;
+
+  private static volatile SearcherManager searchers;
+
+  private static ControlledRealTimeReopenThread<IndexSearcher> reopener;
+
+  /**
+   * The generation of the last change made to the index.
+   */
+  private static volatile long lastGeneration;
+
+  private static Analyzer analyzer;
+
+  private ProductSearch() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Opens the index in the given directory, replacing whatever it contained with the current
+   * contents of the product table.
+   * 
+   * @param path The directory of the index.
+   * @throws IOException If the index cannot be written.
+   */
+  public static synchronized void start(String path) throws IOException {
+    stop();
+    analyzer = new StandardAnalyzer(VERSION);
+    IndexWriterConfig config = new IndexWriterConfig(VERSION, analyzer);
+    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    writer = new IndexWriter(FSDirectory.open(new File(path)), config);
+
+    final IndexWriter rebuilding = writer;
+    final IOException[] failure = new IOException[1];
+    Product.find().query().select("productId,name,description")
+        .findVisit(new QueryResultVisitor<Product>() {
+          @Override
+          public boolean accept(Product product) {
+            try {
+              rebuilding.addDocument(document(product));
+              return true;
+            }
+            catch (IOException e) {
+              failure[0] = e;
+              return false;
+            }
+          }
+        });
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    writer.commit();
+    tracking = new TrackingIndexWriter(writer);
+    lastGeneration = tracking.getGeneration();
+    searchers = new SearcherManager(writer, true, null);
+    reopener =
+        new ControlledRealTimeReopenThread<>(tracking, searchers, MAX_STALE_SECONDS,
+            MIN_STALE_SECONDS);
+    reopener.setName("product-search-reopen");
+    reopener.setDaemon(true);
+    reopener.start();
+  }
+
+  /**
+   * Commits and closes the index.
+   */
+  public static synchronized void stop() {
+    try {
+      if (reopener != null) {
+        reopener.close();
+      }
+      if (searchers != null) {
+        searchers.close();
+      }
+      if (writer != null) {
+        writer.close();
+      }
+    }
+    catch (IOException e) {
+      play.Logger.warn("Could not close the product search index", e);
+    }
+    finally {
+      reopener = null;
+      searchers = null;
+      tracking = null;
+      writer = null;
+    }
+  }
+
+  /**
+   * Finds the Products matching a query, best match first.
+   * 
+   * @param text The query in Lucene's query syntax, for example <code>red -large</code>.
+   * @param offset The number of matches to skip.
+   * @param limit The most matches to return.
+   * @return The page of matches.
+   * @throws ParseException If the query cannot be parsed.
+   * @throws IOException If the index cannot be read.
+   */
+  public static Page search(String text, int offset, int limit) throws ParseException,
+      IOException {
+    SearcherManager current = searchers;
+    ControlledRealTimeReopenThread<IndexSearcher> currentReopener = reopener;
+    if (current == null || currentReopener == null) {
+      throw new IllegalStateException("The product search index is not started");
+    }
+    Query query =
+        new MultiFieldQueryParser(VERSION, new String[] {"name", "description"}, analyzer, BOOSTS)
+            .parse(text);
+    try {
+      // See every change made before this search.
+      currentReopener.waitForGeneration(lastGeneration);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    IndexSearcher searcher = current.acquire();
+    try {
+      TopDocs top = searcher.search(query, offset + limit);
+      List<String> productIds = new ArrayList<>();
+      for (int i = offset; i < top.scoreDocs.length; i++) {
+        ScoreDoc match = top.scoreDocs[i];
+        productIds.add(searcher.doc(match.doc).get("productId"));
+      }
+      return new Page(productIds, top.totalHits);
+    }
+    finally {
+      current.release(searcher);
+    }
+  }
+
+  /**
+   * Adds or replaces a saved {@link Product}.
+   * 
+   * @param product The Product.
+   */
+  static void productSaved(Product product) {
+    TrackingIndexWriter current = tracking;
+    if (current == null) {
+      return;
+    }
+    try {
+      changed(current.updateDocument(new Term("productId", product.getProductId()),
+          document(product)));
+    }
+    catch (IOException | AlreadyClosedException e) {
+      play.Logger.error("Could not index product " + product.getProductId(), e);
+    }
+  }
+
+  /**
+   * Removes a deleted {@link Product}.
+   * 
+   * @param productId The productId of the Product.
+   */
+  static void productDeleted(String productId) {
+    TrackingIndexWriter current = tracking;
+    if (current == null) {
+      return;
+    }
+    try {
+      changed(current.deleteDocuments(new Term("productId", productId)));
+    }
+    catch (IOException | AlreadyClosedException e) {
+      play.Logger.error("Could not remove product " + productId + " from the index", e);
+    }
+  }
+
+  /**
+   * Records the generation of a change so that later searches wait for it.
+   * 
+   * @param generation The generation returned by the tracking writer.
+   */
+  private static synchronized void changed(long generation) {
+    if (generation > lastGeneration) {
+      lastGeneration = generation;
+    }
+  }
+
+  private static Document document(Product product) {
+    Document document = new Document();
+    document.add(new StringField("productId", product.getProductId(), Field.Store.YES));
+    document.add(new TextField("name", nullToEmpty(product.getName()), Field.Store.NO));
+    document.add(new TextField("description", nullToEmpty(product.getDescription()),
+        Field.Store.NO));
+    return document;
+  }
+
+  private static String nullToEmpty(String value) {
+    return (value == null) ? "" : value;
+  }
+
+  /**
+   * One page of search results.
+   */
+  public static class Page {
+    private final List<String> productIds;
+    private final int totalHits;
+
+    Page(List<String> productIds, int totalHits) {
+      this.productIds = productIds;
+      this.totalHits = totalHits;
+    }
+
+    /**
+     * @return the productIds of the matches on this page, best match first
+     */
+    public List<String> getProductIds() {
+      return this.productIds;
+    }
+
+    /**
+     * @return the number of matches on every page
+     */
+    public int getTotalHits() {
+      return this.totalHits;
+    }
+  }
+}
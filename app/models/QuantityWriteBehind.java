@@ -0,0 +1,649 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+import com.avaje.ebean.Transaction;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.persistence.PersistenceException;
+
+/**
+ * Buffers quantity adjustments of {@link StockItem}s in memory and writes them behind. The
+ * adjustments of each StockItem are summed and flushed as a single UPDATE per StockItem, at a fixed
+ * interval or once enough adjustments are waiting, so a fast-moving StockItem is written once per
+ * flush rather than once per adjustment. The {@link StockLedger} totals and journal are updated by
+ * the flush, one ADJUST movement per StockItem.
+ * 
+ * <p>
+ * Every adjustment is appended to a local journal segment and forced to disk before it is
+ * acknowledged. Adjustments appended while one thread forces the segment are forced together by
+ * the next one, so concurrent adjustments share a force. Each flush closes the current segment and
+ * records its number in the write_behind_segment table in the flushing transaction, so on start the
+ * segments left by a crash are replayed exactly once. An adjustment whose force fails is reported
+ * as failed but may still be flushed.
+ * </p>
+ * 
+ * <p>
+ * {@link #findByBusinessId(String)} adds the adjustments still waiting to the quantity read from
+ * the database, so clients read their own writes. Removals of stock are held in the
+ * {@link ReservationLedger} until the flush that writes them commits, so reservations, transfers
+ * and direct adjustments, which only read the database, count them as gone. The non-negative
+ * guard of a removal is checked against the quantity read plus the additions waiting, minus the
+ * units held. The flush itself is not guarded: every removal it writes was already held.
+ * </p>
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class QuantityWriteBehind {
+
+  /**
+   * The time between flushes unless configured otherwise, in milliseconds.
+   */
+  public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+  /**
+   * The number of waiting adjustments that triggers a flush unless configured otherwise.
+   */
+  public static final int DEFAULT_FLUSH_THRESHOLD = 10000;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * Guards the waiting adjustments and the journal.
+   */
+  private static final Object lock = new Object();
+
+  /**
+   * Held for reading while a quantity is read and combined with the waiting adjustments, and for
+   * writing while a flush moves adjustments into the database, so a reader never counts an
+   * adjustment twice or not at all.
+   */
+  private static final ReadWriteLock visibility = new ReentrantReadWriteLock();
+
+  /**
+   * Allows one flush at a time.
+   */
+  private static final Object flushLock = new Object();
+
+  /**
+   * The number of segments flushed.
+   */
+  private static final AtomicLong flushes = new AtomicLong();
+
+  /**
+   * The summed adjustments of the current segment keyed by stockItemId. Guarded by lock.
+   */
+  private static Map<String, Long> pending = new HashMap<>();
+
+  /**
+   * The number of adjustments in the current segment. Guarded by lock.
+   */
+  private static int pendingCount;
+
+  /**
+   * The summed adjustments of the segment being flushed. Guarded by lock.
+   */
+  private static Map<String, Long> flushing = new HashMap<>();
+
+  /**
+   * The number of the segment being flushed, or -1. Guarded by lock.
+   */
+  private static long flushingSegment = -1;
+
+  /**
+   * The units of the removals of the current segment held in the {@link ReservationLedger}, keyed
+   * by StockItem primary key. Guarded by lock.
+   */
+  private static Map<Long, Long> pendingDebits = new HashMap<>();
+
+  /**
+   * The units of the removals of the segment being flushed held in the {@link ReservationLedger},
+   * keyed by StockItem primary key. Guarded by lock.
+   */
+  private static Map<Long, Long> flushingDebits = new HashMap<>();
+
+  /**
+   * The number of the current segment. Guarded by lock.
+   */
+  private static long segment;
+
+  /**
+   * The number of adjustments appended to the journal. Guarded by lock.
+   */
+  private static long appended;
+
+  /**
+   * The number of adjustments appended to the journal that are known to be on disk. Guarded by
+   * lock.
+   */
+  private static long forced;
+
+  /**
+   * Held while forcing the journal to disk, so that the adjustments appended meanwhile wait and
+   * are then forced together.
+   */
+  private static final Object forceLock = new Object();
+
+  private static File directory;
+
+  private static FileOutputStream segmentFile;
+
+  private static DataOutputStream journal;
+
+  private static volatile boolean enabled;
+
+  private static volatile int threshold = DEFAULT_FLUSH_THRESHOLD;
+
+  private static ScheduledExecutorService flusher;
+
+  private static final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        flush();
+      }
+      catch (RuntimeException e) {
+        play.Logger.error("Flushing the write-behind quantity adjustments failed", e);
+      }
+    }
+  };
+
+  private QuantityWriteBehind() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Replays the journal segments left in the given directory and starts buffering adjustments.
+   * 
+   * @param path The directory of the journal segments.
+   * @param interval The time between flushes in milliseconds.
+   * @param flushThreshold The number of waiting adjustments that triggers a flush.
+   * @throws IOException If the journal cannot be read or written.
+   */
+  public static synchronized void start(String path, long interval, int flushThreshold)
+      throws IOException {
+    stop();
+    long lastSegment = recover(path);
+    synchronized (lock) {
+      // Removals left by a failed flush were replayed from their segments above. Their holds are
+      // dropped when the ReservationLedger starts.
+      pending = new HashMap<>();
+      pendingCount = 0;
+      pendingDebits = new HashMap<>();
+      flushing = new HashMap<>();
+      flushingDebits = new HashMap<>();
+      flushingSegment = -1;
+      segment = lastSegment + 1;
+      openSegment();
+    }
+    threshold = flushThreshold;
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "write-behind");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleWithFixedDelay(flushTask, interval, interval, TimeUnit.MILLISECONDS);
+    enabled = true;
+  }
+
+  /**
+   * Stops buffering adjustments and flushes the ones waiting.
+   */
+  public static synchronized void stop() {
+    if (!enabled) {
+      return;
+    }
+    enabled = false;
+    flusher.shutdownNow();
+    flusher = null;
+    try {
+      flush();
+    }
+    catch (RuntimeException e) {
+      play.Logger.error("Flushing the write-behind quantity adjustments failed; their journal"
+          + " segments will be replayed on start", e);
+    }
+    synchronized (lock) {
+      closeSegment();
+      if (pendingCount == 0) {
+        segmentPath(segment).delete();
+      }
+    }
+  }
+
+  /**
+   * Replays the journal segments left in a directory by a crash, skipping those whose flush
+   * committed.
+   * 
+   * @param path The directory of the journal segments.
+   * @return The number of the last segment written, or 0 if there is none.
+   * @throws IOException If a segment cannot be read.
+   */
+  public static synchronized long recover(String path) throws IOException {
+    directory = new File(path);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    SqlRow last =
+        Ebean.createSqlQuery("select max(segment_number) as last_segment"
+            + " from write_behind_segment").findUnique();
+    Long flushed = last.getLong("last_segment");
+    long lastSegment = (flushed == null) ? 0 : flushed;
+    TreeMap<Long, File> segments = new TreeMap<>();
+    File[] files = directory.listFiles();
+    for (File file : (files == null) ? new File[0] : files) {
+      String name = file.getName();
+      if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        segments.put(Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length()
+            - SEGMENT_SUFFIX.length())), file);
+      }
+    }
+    for (Map.Entry<Long, File> segmentFile : segments.entrySet()) {
+      if (segmentFile.getKey() > lastSegment) {
+        apply(segmentFile.getKey(), read(segmentFile.getValue()));
+        lastSegment = segmentFile.getKey();
+      }
+      segmentFile.getValue().delete();
+    }
+    return lastSegment;
+  }
+
+  /**
+   * @return true if adjustments are being written behind
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Adds delta to the quantity of a {@link StockItem}. While write-behind is enabled the
+   * adjustment is journaled and buffered; otherwise it is applied immediately.
+   * 
+   * @param stockItemId The stockItemId of the StockItem.
+   * @param delta The amount to add to the quantity; negative to remove stock.
+   * @param nonNegative If true the adjustment is only accepted when the quantity stays at or above
+   *          zero, and a removal only when it stays at or above the units held by the
+   *          {@link ReservationLedger}.
+   * @return True if the adjustment was accepted, false if the StockItem does not exist or the
+   *         quantity would become negative.
+   */
+  public static boolean adjust(String stockItemId, long delta, boolean nonNegative) {
+    long appendedAs = 0;
+    boolean flushNow = false;
+    visibility.readLock().lock();
+    try {
+      while (enabled && appendedAs == 0) {
+        long readAt = System.nanoTime();
+        SqlRow row =
+            Ebean.createSqlQuery("select primary_key, quantity from stock_item"
+                + " where stock_item_id = :id").setParameter("id", stockItemId).findUnique();
+        if (row == null) {
+          return false;
+        }
+        long stockItemKey = row.getLong("primary_key");
+        synchronized (lock) {
+          if (journal == null) {
+            break;
+          }
+          long quantity = row.getLong("quantity") + waiting(stockItemId);
+          if (delta < 0) {
+            if (nonNegative) {
+              // The removals waiting are counted among the units held instead.
+              Boolean held =
+                  ReservationLedger.holdIfAvailable(stockItemKey, readAt, quantity
+                      + heldFor(stockItemKey), -delta);
+              if (held == null) {
+                continue;
+              }
+              if (!held) {
+                return false;
+              }
+            }
+            else {
+              ReservationLedger.startDebit(stockItemKey, -delta);
+            }
+            add(pendingDebits, stockItemKey, -delta);
+          }
+          else if (nonNegative && quantity + delta < 0) {
+            return false;
+          }
+          appendedAs = append(stockItemId, delta);
+          add(pending, stockItemId, delta);
+          pendingCount++;
+          flushNow = pendingCount >= threshold;
+        }
+      }
+    }
+    finally {
+      visibility.readLock().unlock();
+    }
+    if (appendedAs == 0) {
+      return StockItem.adjustQuantity(stockItemId, delta, nonNegative, null);
+    }
+    force(appendedAs);
+    ScheduledExecutorService current = flusher;
+    if (flushNow && current != null) {
+      current.execute(flushTask);
+    }
+    return true;
+  }
+
+  /**
+   * Finds a {@link StockItem} like {@link StockItem#findByBusinessId(String)}, with the
+   * adjustments still waiting to be written added to its quantity.
+   * 
+   * @param stockItemId The stockItemId of the StockItem.
+   * @return The matching StockItem or null if there is none.
+   */
+  public static StockItem findByBusinessId(String stockItemId) {
+    visibility.readLock().lock();
+    try {
+      StockItem stockItem = StockItem.findByBusinessId(stockItemId);
+      if (stockItem != null) {
+        synchronized (lock) {
+          stockItem.setQuantity(stockItem.getQuantity() + waiting(stockItemId));
+        }
+      }
+      return stockItem;
+    }
+    finally {
+      visibility.readLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the waiting adjustments to the database: the current segment is closed and its
+   * adjustments applied in one transaction. A segment whose flush fails is retried by the next
+   * flush, before any later segment.
+   */
+  public static void flush() {
+    synchronized (flushLock) {
+      long flushedSegment;
+      Map<String, Long> deltas;
+      synchronized (lock) {
+        if (flushingSegment < 0) {
+          if (journal == null || pendingCount == 0) {
+            return;
+          }
+          flushing = pending;
+          flushingDebits = pendingDebits;
+          flushingSegment = segment;
+          pending = new HashMap<>();
+          pendingDebits = new HashMap<>();
+          pendingCount = 0;
+          closeSegment();
+          segment++;
+          try {
+            openSegment();
+          }
+          catch (IOException e) {
+            throw new PersistenceException("Could not open write-behind segment " + segment, e);
+          }
+        }
+        flushedSegment = flushingSegment;
+        deltas = flushing;
+      }
+      apply(flushedSegment, deltas);
+      segmentPath(flushedSegment).delete();
+      flushes.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the number of StockItems with adjustments waiting to be written
+   */
+  public static int getPendingCount() {
+    synchronized (lock) {
+      return pending.size() + flushing.size();
+    }
+  }
+
+  /**
+   * @return the number of segments flushed
+   */
+  public static long getFlushes() {
+    return flushes.get();
+  }
+
+  /**
+   * Applies the summed adjustments of a segment with one UPDATE per {@link StockItem}, in
+   * stockItemId order, and records the segment as flushed in the same transaction.
+   */
+  private static void apply(long segmentNumber, Map<String, Long> deltas) {
+    EbeanServer server = Ebean.getServer(null);
+    Map<Long, Long> written = null;
+    visibility.writeLock().lock();
+    try {
+      Transaction transaction = server.beginTransaction();
+      StockLedger.deferChanges();
+      try {
+        for (Map.Entry<String, Long> delta : new TreeMap<>(deltas).entrySet()) {
+          if (delta.getValue() == 0) {
+            continue;
+          }
+          SqlUpdate update =
+              server.createSqlUpdate("update stock_item set quantity = quantity + :delta,"
+                  + " version = version + 1 where stock_item_id = :stockItemId");
+          update.setParameter("delta", delta.getValue());
+          update.setParameter("stockItemId", delta.getKey());
+          if (server.execute(update, transaction) != 1) {
+            play.Logger.warn("Dropped write-behind adjustment of deleted stock item "
+                + delta.getKey());
+            continue;
+          }
+          SqlRow row = StockLedger.findStockItemRow(server, transaction, delta.getKey());
+          StockLedger.stockMoved(server, transaction, StockMovement.Kind.ADJUST,
+              row.getLong("primary_key"), delta.getKey(), row.getLong("product_primary_key"),
+              row.getLong("warehouse_primary_key"), delta.getValue());
+        }
+        StockLedger.applyDeferredChanges(transaction);
+        SqlUpdate flushed =
+            server.createSqlUpdate("insert into write_behind_segment (segment_number)"
+                + " values (:segment)");
+        flushed.setParameter("segment", segmentNumber);
+        server.execute(flushed, transaction);
+        // Only the last flushed segment is needed to tell which segments to replay.
+        SqlUpdate older =
+            server.createSqlUpdate("delete from write_behind_segment"
+                + " where segment_number < :segment");
+        older.setParameter("segment", segmentNumber);
+        server.execute(older, transaction);
+        transaction.commit();
+      }
+      finally {
+        StockLedger.discardDeferredChanges();
+        transaction.end();
+      }
+      synchronized (lock) {
+        if (flushingSegment == segmentNumber) {
+          written = flushingDebits;
+          flushing = new HashMap<>();
+          flushingDebits = new HashMap<>();
+          flushingSegment = -1;
+        }
+      }
+    }
+    finally {
+      visibility.writeLock().unlock();
+    }
+    if (written != null) {
+      settle(written);
+    }
+  }
+
+  /**
+   * Reads the adjustments journaled in a segment. An adjustment cut short by a crash was never
+   * acknowledged and is ignored.
+   */
+  private static Map<String, Long> read(File file) throws IOException {
+    Map<String, Long> deltas = new HashMap<>();
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        String stockItemId;
+        long delta;
+        try {
+          stockItemId = input.readUTF();
+          delta = input.readLong();
+        }
+        catch (EOFException e) {
+          break;
+        }
+        add(deltas, stockItemId, delta);
+      }
+    }
+    return deltas;
+  }
+
+  /**
+   * Journals an adjustment, which must be passed to {@link #force(long)} before it is
+   * acknowledged. Must hold lock.
+   * 
+   * @return The number of adjustments appended so far.
+   */
+  private static long append(String stockItemId, long delta) {
+    try {
+      journal.writeUTF(stockItemId);
+      journal.writeLong(delta);
+    }
+    catch (IOException e) {
+      throw new PersistenceException("Could not journal the adjustment of " + stockItemId, e);
+    }
+    return ++appended;
+  }
+
+  /**
+   * Waits until an appended adjustment is on disk. The thread that gets to force the journal
+   * forces every adjustment appended so far, so the threads waiting behind it usually find theirs
+   * already forced.
+   * 
+   * @param appendedAs The number {@link #append(String, long)} returned for the adjustment.
+   */
+  private static void force(long appendedAs) {
+    synchronized (forceLock) {
+      FileOutputStream file;
+      long target;
+      synchronized (lock) {
+        if (forced >= appendedAs) {
+          return;
+        }
+        target = appended;
+        file = segmentFile;
+        try {
+          journal.flush();
+        }
+        catch (IOException e) {
+          throw new PersistenceException("Could not journal the adjustments", e);
+        }
+      }
+      try {
+        file.getChannel().force(false);
+      }
+      catch (ClosedChannelException e) {
+        // A flush closed the segment meanwhile, which forced it.
+        return;
+      }
+      catch (IOException e) {
+        throw new PersistenceException("Could not force the write-behind journal to disk", e);
+      }
+      synchronized (lock) {
+        forced = Math.max(forced, target);
+      }
+    }
+  }
+
+  /**
+   * Opens the current segment for appending. Must hold lock.
+   */
+  private static void openSegment() throws IOException {
+    segmentFile = new FileOutputStream(segmentPath(segment), true);
+    journal = new DataOutputStream(new BufferedOutputStream(segmentFile));
+  }
+
+  /**
+   * Forces and closes the current segment. Must hold lock.
+   */
+  private static void closeSegment() {
+    if (journal != null) {
+      try {
+        journal.flush();
+        segmentFile.getChannel().force(false);
+      }
+      catch (IOException e) {
+        play.Logger.warn("Could not force write-behind segment " + segment, e);
+      }
+      try {
+        journal.close();
+      }
+      catch (IOException e) {
+        play.Logger.warn("Could not close write-behind segment " + segment, e);
+      }
+      journal = null;
+      segmentFile = null;
+      forced = appended;
+    }
+  }
+
+  private static File segmentPath(long segmentNumber) {
+    return new File(directory, SEGMENT_PREFIX + segmentNumber + SEGMENT_SUFFIX);
+  }
+
+  /**
+   * @return the adjustments of a StockItem not yet in the database. Must hold lock.
+   */
+  private static long waiting(String stockItemId) {
+    Long current = pending.get(stockItemId);
+    Long flushed = flushing.get(stockItemId);
+    return ((current == null) ? 0 : current) + ((flushed == null) ? 0 : flushed);
+  }
+
+  /**
+   * @return the units of a StockItem's waiting removals held in the {@link ReservationLedger}.
+   *         Must hold lock.
+   */
+  private static long heldFor(Long stockItemKey) {
+    Long current = pendingDebits.get(stockItemKey);
+    Long flushed = flushingDebits.get(stockItemKey);
+    return ((current == null) ? 0 : current) + ((flushed == null) ? 0 : flushed);
+  }
+
+  /**
+   * Stops holding the units of removals in the {@link ReservationLedger}.
+   */
+  private static void settle(Map<Long, Long> debits) {
+    for (Map.Entry<Long, Long> debit : debits.entrySet()) {
+      ReservationLedger.settle(debit.getKey(), debit.getValue());
+    }
+  }
+
+  private static <K> void add(Map<K, Long> deltas, K key, long delta) {
+    Long total = deltas.get(key);
+    deltas.put(key, (total == null) ? delta : total + delta);
+  }
+}
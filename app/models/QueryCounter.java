@@ -0,0 +1,129 @@
+package models;
+
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanQueryAdapter;
+import com.avaje.ebean.event.BeanQueryRequest;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts every query Ebean executes against the models, including the queries it issues to lazy
+ * load associations, and every row it loads into a model. Besides the totals since the
+ * application started, the queries and rows can be counted per request by starting a
+ * {@link Scope} on the thread serving it. Ebean picks this class up automatically, both as a
+ * {@link BeanQueryAdapter} and as a persist controller, because it is in the models package.
+ * Only model queries pass through a BeanQueryAdapter: inserts, updates and deletes, SqlUpdate,
+ * SqlQuery and plain JDBC statements are not counted.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class QueryCounter extends BeanPersistAdapter implements BeanQueryAdapter {
+
+  /**
+   * The number of queries executed since the application started.
+   */
+  private static final AtomicLong count = new AtomicLong();
+
+  /**
+   * The number of rows loaded since the application started.
+   */
+  private static final AtomicLong rows = new AtomicLong();
+
+  /**
+   * The {@link Scope} of the current thread, or null if it is not counting.
+   */
+  private static final ThreadLocal<Scope> scope = new ThreadLocal<>();
+
+  /**
+   * Gets the number of queries executed so far.
+   * 
+   * @return The number of queries executed since the application started.
+   */
+  public static long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Gets the number of rows loaded so far.
+   * 
+   * @return The number of rows loaded since the application started.
+   */
+  public static long getRows() {
+    return rows.get();
+  }
+
+  /**
+   * Starts counting the queries and rows of the current thread in the given {@link Scope}.
+   * 
+   * @param current The Scope to count in, or null to stop counting.
+   */
+  public static void setScope(Scope current) {
+    if (current == null) {
+      scope.remove();
+    }
+    else {
+      scope.set(current);
+    }
+  }
+
+  /**
+   * Gets the {@link Scope} the current thread is counting in.
+   * 
+   * @return The Scope or null if the thread is not counting.
+   */
+  public static Scope getScope() {
+    return scope.get();
+  }
+
+  @Override
+  public boolean isRegisterFor(Class<?> cls) {
+    return true;
+  }
+
+  @Override
+  public int getExecutionOrder() {
+    return 0;
+  }
+
+  @Override
+  public void preQuery(BeanQueryRequest<?> request) {
+    count.incrementAndGet();
+    Scope current = scope.get();
+    if (current != null) {
+      current.queries.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void postLoad(Object bean, Set<String> includedProperties) {
+    rows.incrementAndGet();
+    Scope current = scope.get();
+    if (current != null) {
+      current.rows.incrementAndGet();
+    }
+  }
+
+  /**
+   * The queries and rows counted for one unit of work, such as a request. A Scope may be shared by
+   * several threads working for the same request.
+   */
+  public static class Scope {
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+
+    /**
+     * @return the number of queries executed in this scope
+     */
+    public long getQueries() {
+      return this.queries.get();
+    }
+
+    /**
+     * @return the number of rows loaded in this scope
+     */
+    public long getRows() {
+      return this.rows.get();
+    }
+  }
+}
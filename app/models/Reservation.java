@@ -0,0 +1,117 @@
+package models;
+
+import java.io.IOException;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * A hold on some units of a {@link StockItem}. Held units are not available to other reservations
+ * until the hold is committed, released or expires. Reservations are kept by the
+ * {@link ReservationLedger}.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class Reservation implements JsonWritable {
+
+  /**
+   * The ID of the reservation.
+   */
+  private final String reservationId;
+
+  /**
+   * The primary key of the {@link StockItem} held.
+   */
+  private final long stockItemKey;
+
+  /**
+   * The stockItemId of the {@link StockItem} held.
+   */
+  private final String stockItemId;
+
+  /**
+   * The number of units held.
+   */
+  private final long quantity;
+
+  /**
+   * When the hold expires, in milliseconds since the epoch.
+   */
+  private final long expiresAt;
+
+  /**
+   * Creates a new {@link Reservation}.
+   * 
+   * @param reservationId The ID of the reservation.
+   * @param stockItemKey The primary key of the StockItem held.
+   * @param stockItemId The stockItemId of the StockItem held.
+   * @param quantity The number of units held.
+   * @param expiresAt When the hold expires, in milliseconds since the epoch.
+   */
+  Reservation(String reservationId, long stockItemKey, String stockItemId, long quantity,
+      long expiresAt) {
+    this.reservationId = reservationId;
+    this.stockItemKey = stockItemKey;
+    this.stockItemId = stockItemId;
+    this.quantity = quantity;
+    this.expiresAt = expiresAt;
+  }
+
+  @Override
+  public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+    json.writeStartObject();
+    if (fields.includes("reservationId")) {
+      json.writeStringField("reservationId", this.reservationId);
+    }
+    if (fields.includes("stockItemId")) {
+      json.writeStringField("stockItemId", this.stockItemId);
+    }
+    if (fields.includes("quantity")) {
+      json.writeNumberField("quantity", this.quantity);
+    }
+    if (fields.includes("expiresAt")) {
+      json.writeNumberField("expiresAt", this.expiresAt);
+    }
+    json.writeEndObject();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[Reservation %s %s %d]", this.reservationId, this.stockItemId,
+        this.quantity);
+  }
+
+  /**
+   * @return the reservationId
+   */
+  public String getReservationId() {
+    return this.reservationId;
+  }
+
+  /**
+   * @return the primary key of the StockItem held
+   */
+  public long getStockItemKey() {
+    return this.stockItemKey;
+  }
+
+  /**
+   * @return the stockItemId
+   */
+  public String getStockItemId() {
+    return this.stockItemId;
+  }
+
+  /**
+   * @return the quantity
+   */
+  public long getQuantity() {
+    return this.quantity;
+  }
+
+  /**
+   * @return when the hold expires, in milliseconds since the epoch
+   */
+  public long getExpiresAt() {
+    return this.expiresAt;
+  }
+}
@@ -0,0 +1,491 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+import com.avaje.ebean.Transaction;
+import java.sql.Timestamp;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds units of {@link StockItem}s for orders until they ship. The units held per StockItem are
+ * counted in memory, under one of a fixed set of striped locks chosen by the StockItem's primary
+ * key, so concurrent reservations of the same StockItem never wait on a database row lock: a
+ * reservation reads the quantity, checks it against the units held under the stripe's lock and
+ * writes its own reservation row. The available quantity of a StockItem is its quantity minus the
+ * units held.
+ * 
+ * <p>
+ * Guarded debits of a quantity, by {@link StockItem#adjustQuantity} and {@link StockTransfer},
+ * hold their units too while their UPDATE is in flight, and only apply if the quantity left covers
+ * the units held by reservations. Units taken off the quantity by a debit or a committed
+ * reservation stop being held only once that transaction has ended, and mark the stripe as
+ * settled: a reservation whose quantity was read before the stripe last settled may have read
+ * units that are already gone, so it reads the quantity again. Saving or deleting a StockItem
+ * entity does not check the units held; a reservation of a deleted StockItem fails to commit.
+ * </p>
+ * 
+ * <p>
+ * A {@link Reservation} is committed, which takes its units off the StockItem's quantity, or
+ * released. Reservations that are neither expire and are released by a sweeper thread. They are
+ * persisted to the reservation table and reloaded on start, so holds survive a restart. The ledger
+ * assumes it is the only one writing the reservation table.
+ * </p>
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class ReservationLedger {
+
+  /**
+   * How long a reservation is held unless requested otherwise, in milliseconds.
+   */
+  public static final long DEFAULT_TIME_TO_LIVE = 15 * 60 * 1000;
+
+  /**
+   * The time between sweeps for expired reservations unless configured otherwise, in
+   * milliseconds.
+   */
+  public static final long DEFAULT_SWEEP_INTERVAL = 1000;
+
+  /**
+   * The number of lock stripes; a power of two.
+   */
+  private static final int STRIPES = 64;
+
+  private static final Stripe[] stripes = new Stripe[STRIPES];
+
+  static {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * The active reservations keyed by reservationId. A reservation is removed from here before it
+   * is committed, released or expired, so only one of them happens.
+   */
+  private static final Map<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+  /**
+   * Orders reservations by expiry time and then by reservationId.
+   */
+  private static final Comparator<Reservation> BY_EXPIRY = new Comparator<Reservation>() {
+    @Override
+    public int compare(Reservation first, Reservation second) {
+      if (first.getExpiresAt() != second.getExpiresAt()) {
+        return (first.getExpiresAt() < second.getExpiresAt()) ? -1 : 1;
+      }
+      return first.getReservationId().compareTo(second.getReservationId());
+    }
+  };
+
+  /**
+   * The active reservations in expiry order. A reservation is removed from here when it is
+   * committed or released, so only active reservations take up memory.
+   */
+  private static final ConcurrentSkipListSet<Reservation> expiries =
+      new ConcurrentSkipListSet<>(BY_EXPIRY);
+
+  /**
+   * The number of reservations that expired.
+   */
+  private static final AtomicLong expired = new AtomicLong();
+
+  private static ScheduledExecutorService sweeper;
+
+  private ReservationLedger() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Loads the reservations persisted in the reservation table and starts sweeping for expired
+   * ones.
+   * 
+   * @param interval The time between sweeps in milliseconds.
+   */
+  public static synchronized void start(long interval) {
+    stop();
+    reservations.clear();
+    expiries.clear();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.held.clear();
+      }
+    }
+    for (SqlRow row : Ebean.createSqlQuery("select reservation_id, stock_item_primary_key,"
+        + " stock_item_id, quantity, expires_at from reservation").findList()) {
+      Reservation reservation =
+          new Reservation(row.getString("reservation_id"), row.getLong("stock_item_primary_key"),
+              row.getString("stock_item_id"), row.getLong("quantity"), row.getTimestamp(
+                  "expires_at").getTime());
+      hold(reservation.getStockItemKey(), reservation.getQuantity());
+      reservations.put(reservation.getReservationId(), reservation);
+      expiries.add(reservation);
+    }
+
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "reservation-sweeper");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep();
+        }
+        catch (RuntimeException e) {
+          play.Logger.error("Releasing expired reservations failed", e);
+        }
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops sweeping for expired reservations.
+   */
+  public static synchronized void stop() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+      sweeper = null;
+    }
+  }
+
+  /**
+   * Holds units of a {@link StockItem} if enough of its quantity is available.
+   * 
+   * @param stockItemId The stockItemId of the StockItem.
+   * @param quantity The number of units to hold.
+   * @param timeToLive How long to hold them, in milliseconds.
+   * @return The new {@link Reservation}, or null if the StockItem does not exist or not enough of
+   *         it is available.
+   */
+  public static Reservation reserve(String stockItemId, long quantity, long timeToLive) {
+    long stockItemKey;
+    Boolean held;
+    do {
+      long readAt = System.nanoTime();
+      SqlRow row = findStockItem(stockItemId);
+      if (row == null) {
+        return null;
+      }
+      stockItemKey = row.getLong("primary_key");
+      held = holdIfAvailable(stockItemKey, readAt, row.getLong("quantity"), quantity);
+    } while (held == null);
+    if (!held) {
+      return null;
+    }
+
+    Reservation reservation =
+        new Reservation(UUID.randomUUID().toString(), stockItemKey, stockItemId, quantity,
+            System.currentTimeMillis() + timeToLive);
+    try {
+      SqlUpdate insert =
+          Ebean.createSqlUpdate("insert into reservation (reservation_id, stock_item_primary_key,"
+              + " stock_item_id, quantity, expires_at) values (:id, :key, :stockItemId,"
+              + " :quantity, :expiresAt)");
+      insert.setParameter("id", reservation.getReservationId());
+      insert.setParameter("key", stockItemKey);
+      insert.setParameter("stockItemId", stockItemId);
+      insert.setParameter("quantity", quantity);
+      insert.setParameter("expiresAt", new Timestamp(reservation.getExpiresAt()));
+      insert.execute();
+    }
+    catch (RuntimeException e) {
+      hold(stockItemKey, -quantity);
+      throw e;
+    }
+    reservations.put(reservation.getReservationId(), reservation);
+    expiries.add(reservation);
+    return reservation;
+  }
+
+  /**
+   * Commits a reservation: its units are taken off the quantity of the {@link StockItem} and
+   * recorded in the {@link StockLedger}. If the quantity has meanwhile dropped below the units
+   * held, the reservation is released instead.
+   * 
+   * @param reservationId The reservationId of the reservation.
+   * @return true if the units were taken, false if there is no such reservation or it could not be
+   *         committed.
+   */
+  public static boolean commit(String reservationId) {
+    Reservation reservation = reservations.remove(reservationId);
+    if (reservation == null) {
+      return false;
+    }
+    expiries.remove(reservation);
+    boolean ended = false;
+    EbeanServer server = Ebean.getServer(null);
+    Transaction transaction = server.beginTransaction();
+    try {
+      SqlUpdate update =
+          server.createSqlUpdate("update stock_item set quantity = quantity - :quantity,"
+              + " version = version + 1 where primary_key = :key and quantity >= :quantity");
+      update.setParameter("quantity", reservation.getQuantity());
+      update.setParameter("key", reservation.getStockItemKey());
+      boolean committed = server.execute(update, transaction) == 1;
+      if (committed) {
+        SqlRow row =
+            StockLedger.findStockItemRow(server, transaction, reservation.getStockItemKey());
+        StockLedger.stockMoved(server, transaction, StockMovement.Kind.ALLOCATE,
+            reservation.getStockItemKey(), reservation.getStockItemId(),
+            row.getLong("product_primary_key"), row.getLong("warehouse_primary_key"),
+            -reservation.getQuantity());
+      }
+      server.execute(deletion(server, reservationId), transaction);
+      transaction.commit();
+      ended = true;
+      return committed;
+    }
+    finally {
+      transaction.end();
+      if (ended) {
+        // The units stay held until the quantity has been taken, so they are never available
+        // twice.
+        settle(reservation.getStockItemKey(), reservation.getQuantity());
+      }
+      else {
+        // The reservation row survived the rollback, so the reservation is still active.
+        activate(reservation);
+      }
+    }
+  }
+
+  /**
+   * Releases a reservation, making its units available again.
+   * 
+   * @param reservationId The reservationId of the reservation.
+   * @return true if the reservation was released, false if there is no such reservation.
+   */
+  public static boolean release(String reservationId) {
+    Reservation reservation = reservations.remove(reservationId);
+    if (reservation == null) {
+      return false;
+    }
+    expiries.remove(reservation);
+    try {
+      deletion(Ebean.getServer(null), reservationId).execute();
+    }
+    catch (RuntimeException e) {
+      activate(reservation);
+      throw e;
+    }
+    hold(reservation.getStockItemKey(), -reservation.getQuantity());
+    return true;
+  }
+
+  /**
+   * Gets an active reservation.
+   * 
+   * @param reservationId The reservationId of the reservation.
+   * @return The reservation or null if there is no such active reservation.
+   */
+  public static Reservation find(String reservationId) {
+    return reservations.get(reservationId);
+  }
+
+  /**
+   * Gets the quantity of a {@link StockItem} that is not held by a reservation.
+   * 
+   * @param stockItemId The stockItemId of the StockItem.
+   * @return The available quantity or null if there is no such StockItem.
+   */
+  public static Long getAvailable(String stockItemId) {
+    while (true) {
+      long readAt = System.nanoTime();
+      SqlRow row = findStockItem(stockItemId);
+      if (row == null) {
+        return null;
+      }
+      long stockItemKey = row.getLong("primary_key");
+      Stripe stripe = stripe(stockItemKey);
+      synchronized (stripe) {
+        if (!stripe.settledSince(readAt)) {
+          return row.getLong("quantity") - stripe.held(stockItemKey);
+        }
+      }
+    }
+  }
+
+  /**
+   * Holds the units of a guarded debit of a {@link StockItem}'s quantity until
+   * {@link #settle(long, long)} is called, after the debiting transaction has ended. The debit must
+   * only apply if the quantity left is at least the units held by reservations.
+   * 
+   * @param stockItemKey The primary key of the StockItem.
+   * @param units The units debited.
+   * @return The units held by reservations and other debits in flight.
+   */
+  static long startDebit(long stockItemKey, long units) {
+    Stripe stripe = stripe(stockItemKey);
+    synchronized (stripe) {
+      long held = stripe.held(stockItemKey);
+      stripe.add(stockItemKey, units);
+      return held;
+    }
+  }
+
+  /**
+   * Holds units of a {@link StockItem} if the quantity read covers them as well as the units
+   * already held. Used by reservations and by debits checked in memory rather than by an UPDATE,
+   * which call {@link #settle(long, long)} once the quantity has been taken.
+   * 
+   * @param stockItemKey The primary key of the StockItem.
+   * @param readAt The {@link System#nanoTime()} from before the quantity was read.
+   * @param quantity The quantity read.
+   * @param units The units to hold.
+   * @return true if the units are held, false if not enough is available, or null if held units
+   *         settled after the quantity was read, which must then be read again.
+   */
+  static Boolean holdIfAvailable(long stockItemKey, long readAt, long quantity, long units) {
+    Stripe stripe = stripe(stockItemKey);
+    synchronized (stripe) {
+      if (stripe.settledSince(readAt)) {
+        return null;
+      }
+      if (quantity - stripe.held(stockItemKey) < units) {
+        return false;
+      }
+      stripe.add(stockItemKey, units);
+      return true;
+    }
+  }
+
+  /**
+   * Stops holding the units of a debit or committed reservation once its transaction has ended,
+   * whether or not it applied.
+   * 
+   * @param stockItemKey The primary key of the StockItem.
+   * @param units The units that were held.
+   */
+  static void settle(long stockItemKey, long units) {
+    Stripe stripe = stripe(stockItemKey);
+    synchronized (stripe) {
+      stripe.add(stockItemKey, -units);
+      stripe.settledAt = System.nanoTime();
+    }
+  }
+
+  /**
+   * @return the number of active reservations
+   */
+  public static int getActiveCount() {
+    return reservations.size();
+  }
+
+  /**
+   * @return the number of reservations that expired
+   */
+  public static long getExpired() {
+    return expired.get();
+  }
+
+  /**
+   * Releases every reservation that has expired, deleting their rows with a single statement.
+   */
+  static void sweep() {
+    boolean any = false;
+    long now = System.currentTimeMillis();
+    Iterator<Reservation> due = expiries.iterator();
+    while (due.hasNext()) {
+      Reservation reservation = due.next();
+      if (reservation.getExpiresAt() > now) {
+        break;
+      }
+      expiries.remove(reservation);
+      if (reservations.remove(reservation.getReservationId()) != null) {
+        hold(reservation.getStockItemKey(), -reservation.getQuantity());
+        expired.incrementAndGet();
+        any = true;
+      }
+    }
+    if (any) {
+      // Every reservation released above expired by now.
+      Ebean.createSqlUpdate("delete from reservation where expires_at <= :now")
+          .setParameter("now", new Timestamp(now)).execute();
+    }
+  }
+
+  /**
+   * Makes a reservation active again after it could not be committed or released.
+   */
+  private static void activate(Reservation reservation) {
+    reservations.put(reservation.getReservationId(), reservation);
+    expiries.add(reservation);
+  }
+
+  private static SqlUpdate deletion(EbeanServer server, String reservationId) {
+    SqlUpdate delete =
+        server.createSqlUpdate("delete from reservation where reservation_id = :id");
+    delete.setParameter("id", reservationId);
+    return delete;
+  }
+
+  private static SqlRow findStockItem(String stockItemId) {
+    return Ebean.createSqlQuery(
+        "select primary_key, quantity from stock_item where stock_item_id = :stockItemId")
+        .setParameter("stockItemId", stockItemId).findUnique();
+  }
+
+  private static void hold(long stockItemKey, long quantity) {
+    Stripe stripe = stripe(stockItemKey);
+    synchronized (stripe) {
+      stripe.add(stockItemKey, quantity);
+    }
+  }
+
+  private static Stripe stripe(long stockItemKey) {
+    return stripes[(int) (stockItemKey ^ (stockItemKey >>> 32)) & (STRIPES - 1)];
+  }
+
+  /**
+   * The units held for the StockItems whose primary keys map to one lock. Guarded by itself.
+   */
+  private static class Stripe {
+    private final Map<Long, Long> held = new HashMap<>();
+
+    /**
+     * When units taken off a quantity last stopped being held, by {@link System#nanoTime()}.
+     */
+    private long settledAt = System.nanoTime();
+
+    /**
+     * @return true if units taken off a quantity stopped being held at or after the given time
+     */
+    boolean settledSince(long nanoTime) {
+      return this.settledAt - nanoTime >= 0;
+    }
+
+    long held(long stockItemKey) {
+      Long units = this.held.get(stockItemKey);
+      return (units == null) ? 0 : units;
+    }
+
+    void add(long stockItemKey, long units) {
+      long total = held(stockItemKey) + units;
+      if (total == 0) {
+        this.held.remove(stockItemKey);
+      }
+      else {
+        this.held.put(stockItemKey, total);
+      }
+    }
+  }
+}
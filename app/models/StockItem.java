@@ -1,11 +1,23 @@
 package models;
 
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Query;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+import com.avaje.ebean.Transaction;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.ManyToOne;
+import javax.persistence.Version;
+import org.codehaus.jackson.JsonGenerator;
 import play.data.validation.Constraints.Required;
 import play.data.validation.ValidationError;
 import play.db.ebean.Model;
@@ -17,7 +29,7 @@ import play.db.ebean.Model;
  * 
  */
 @Entity
-public class StockItem extends Model {
+public class StockItem extends Model implements JsonWritable {
 
   /**
    * Automatically generated ID number.
@@ -53,6 +65,18 @@ public class StockItem extends Model {
   @Required
   private long quantity;
 
+  /**
+   * The quantity below which this {@link StockItem} is low on stock, overriding that of its
+   * {@link Product}; null to use the Product's.
+   */
+  private Long reorderPoint;
+
+  /**
+   * The optimistic locking version of the {@link StockItem}, incremented on every update.
+   */
+  @Version
+  private Long version;
+
   /**
    * Creates a new {@link StockItem} with the given values.
    * 
@@ -67,14 +91,19 @@ public class StockItem extends Model {
     this.quantity = quantity;
   }
 
+  /**
+   * Validates that the {@link Warehouse} and {@link Product} of this {@link StockItem} exist. When
+   * bound from a form they are references resolved by their business IDs, so an existing one always
+   * has a primary key and no query is needed.
+   * 
+   * @return null if OK, the list of errors if not OK.
+   */
   public List<ValidationError> validate() {
     List<ValidationError> errors = new ArrayList<>();
-    if (this.warehouse == null
-        || Warehouse.find().where().eq("warehouseId", this.warehouse.getWarehouseId()).findUnique() == null) {
+    if (this.warehouse == null || this.warehouse.getPrimaryKey() == null) {
       errors.add(new ValidationError("BadWarehouse", "Given Warehouse does not exist."));
     }
-    if (this.product == null
-        || Product.find().where().eq("productId", this.product.getProductId()).findUnique() == null) {
+    if (this.product == null || this.product.getPrimaryKey() == null) {
       errors.add(new ValidationError("BadProduct", "Given Product does not exists."));
     }
     
@@ -89,7 +118,138 @@ public class StockItem extends Model {
   public static Finder<Long, StockItem> find() {
     return new Finder<Long, StockItem>(Long.class, StockItem.class);
   }
+
+  /**
+   * Finds the {@link StockItem} with the given stockItemId through the unique index on that column.
+   * 
+   * @param stockItemId The stockItemId of the StockItem.
+   * @return The matching StockItem or null if there is none.
+   */
+  public static StockItem findByBusinessId(String stockItemId) {
+    return findWithDetails().where().eq("stockItemId", stockItemId).findUnique();
+  }
+
+  /**
+   * Finds the {@link StockItem}s with the given stockItemIds, with their details, in a single
+   * query.
+   * 
+   * @param stockItemIds The stockItemIds of the StockItems.
+   * @return The matching StockItems keyed by stockItemId; stockItemIds with no StockItem are left
+   * out.
+   */
+  @SuppressWarnings("unchecked")
+  public static Map<String, StockItem> findByBusinessIds(Collection<String> stockItemIds) {
+    if (stockItemIds.isEmpty()) {
+      return new HashMap<>();
+    }
+    return (Map<String, StockItem>) findWithDetails().where().in("stockItemId", stockItemIds)
+        .setMapKey("stockItemId").findMap();
+  }
+
+  /**
+   * Gets a query on the {@link StockItem} table that joins in everything {@link #toString()}
+   * renders: the {@link Product}, the {@link Warehouse} and the Warehouse's {@link Address}. Using
+   * it avoids lazy loading up to three rows for every StockItem listed.
+   * 
+   * @return A Query that eagerly fetches the associations of each StockItem.
+   */
+  public static Query<StockItem> findWithDetails() {
+    return find().fetch("product").fetch("warehouse", "warehouseId,name")
+        .fetch("warehouse.address");
+  }
   
+  /**
+   * Atomically adds delta to the quantity of the {@link StockItem} with the given stockItemId using
+   * a single UPDATE statement, so concurrent adjustments never lose updates and no entity has to be
+   * loaded. The {@link StockLedger} is updated in the same transaction.
+   * 
+   * @param stockItemId The stockItemId of the StockItem.
+   * @param delta The amount to add to the quantity; negative to remove stock.
+   * @param nonNegative If true the adjustment is only applied when the quantity stays at or above
+   *          zero, and a removal only when it stays at or above the units held by the
+   *          {@link ReservationLedger}.
+   * @param expectedVersion If not null the adjustment is only applied when the StockItem is still
+   *          at this version.
+   * @return True if the adjustment was applied, false if the StockItem does not exist or one of the
+   *         conditions failed.
+   */
+  public static boolean adjustQuantity(String stockItemId, long delta, boolean nonNegative,
+      Long expectedVersion) {
+    StringBuilder sql =
+        new StringBuilder("update stock_item set quantity = quantity + :delta,"
+            + " version = version + 1 where primary_key = :key");
+    if (nonNegative) {
+      sql.append(" and quantity + :delta >= :held");
+    }
+    if (expectedVersion != null) {
+      sql.append(" and version = :version");
+    }
+    long debit = (nonNegative && delta < 0) ? -delta : 0;
+    EbeanServer server = Ebean.getServer(null);
+    Transaction transaction = server.beginTransaction();
+    Long debited = null;
+    try {
+      SqlRow row = StockLedger.findStockItemRow(server, transaction, stockItemId);
+      if (row == null) {
+        return false;
+      }
+      SqlUpdate update = server.createSqlUpdate(sql.toString());
+      update.setParameter("delta", delta);
+      update.setParameter("key", row.getLong("primary_key"));
+      if (nonNegative) {
+        long held = 0;
+        if (debit > 0) {
+          debited = row.getLong("primary_key");
+          held = ReservationLedger.startDebit(debited, debit);
+        }
+        update.setParameter("held", held);
+      }
+      if (expectedVersion != null) {
+        update.setParameter("version", expectedVersion);
+      }
+      if (server.execute(update, transaction) != 1) {
+        return false;
+      }
+      StockLedger.stockMoved(server, transaction, StockMovement.Kind.ADJUST,
+          row.getLong("primary_key"), stockItemId, row.getLong("product_primary_key"),
+          row.getLong("warehouse_primary_key"), delta);
+      transaction.commit();
+      return true;
+    }
+    finally {
+      transaction.end();
+      if (debited != null) {
+        ReservationLedger.settle(debited, debit);
+      }
+    }
+  }
+
+  @Override
+  public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+    json.writeStartObject();
+    if (fields.includes("stockItemId")) {
+      json.writeStringField("stockItemId", this.stockItemId);
+    }
+    if (fields.includes("product")) {
+      json.writeFieldName("product");
+      this.getProduct().writeJson(json, JsonFields.ALL);
+    }
+    if (fields.includes("warehouse")) {
+      json.writeFieldName("warehouse");
+      this.getWarehouse().writeJson(json, JsonFields.ALL);
+    }
+    if (fields.includes("quantity")) {
+      json.writeNumberField("quantity", this.quantity);
+    }
+    if (fields.includes("reorderPoint") && this.reorderPoint != null) {
+      json.writeNumberField("reorderPoint", this.reorderPoint);
+    }
+    if (fields.includes("version")) {
+      json.writeNumberField("version", (this.version == null) ? 0 : this.version);
+    }
+    json.writeEndObject();
+  }
+
   @Override
   public String toString() {
     return String.format("[StockItem %s %s %s %d]", this.stockItemId, this.getProduct().toString(), this.getWarehouse().toString(), this.quantity);
@@ -165,4 +325,32 @@ public class StockItem extends Model {
   public void setQuantity(long quantity) {
     this.quantity = quantity;
   }
+
+  /**
+   * @return the reorderPoint
+   */
+  public Long getReorderPoint() {
+    return this.reorderPoint;
+  }
+
+  /**
+   * @param reorderPoint the reorderPoint to set
+   */
+  public void setReorderPoint(Long reorderPoint) {
+    this.reorderPoint = reorderPoint;
+  }
+
+  /**
+   * @return the version
+   */
+  public Long getVersion() {
+    return this.version;
+  }
+
+  /**
+   * @param version the version to set
+   */
+  public void setVersion(Long version) {
+    this.version = version;
+  }
 }
@@ -0,0 +1,293 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.PersistenceException;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Imports a stream of {@link StockItem}s. Each distinct {@link Warehouse} and {@link Product} is
+ * resolved only once per import, and the StockItems are inserted in JDBC batches with one
+ * transaction per chunk. The {@link StockLedger} totals are updated once per chunk. Rows that
+ * cannot be imported are reported rather than failing the import.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class StockItemImport {
+
+  /**
+   * The number of rows inserted per transaction.
+   */
+  private final int chunkSize;
+
+  /**
+   * The resolved {@link Warehouse} references keyed by warehouseId; null for unknown IDs.
+   */
+  private final Map<String, Warehouse> warehouses = new HashMap<>();
+
+  /**
+   * The resolved {@link Product} references keyed by productId; null for unknown IDs.
+   */
+  private final Map<String, Product> products = new HashMap<>();
+
+  /**
+   * The {@link StockItem}s waiting for the current chunk to be inserted.
+   */
+  private final List<StockItem> pending = new ArrayList<>();
+
+  /**
+   * The row numbers of the pending {@link StockItem}s.
+   */
+  private final List<Integer> pendingRows = new ArrayList<>();
+
+  /**
+   * The errors of the rows that could not be imported.
+   */
+  private final List<String> errors = new ArrayList<>();
+
+  /**
+   * The number of rows read so far.
+   */
+  private int rows = 0;
+
+  /**
+   * The number of {@link StockItem}s inserted so far.
+   */
+  private int imported = 0;
+
+  /**
+   * Creates a new {@link StockItemImport} that inserts the given number of rows per transaction.
+   * 
+   * @param chunkSize The number of rows inserted per transaction.
+   */
+  public StockItemImport(int chunkSize) {
+    this.chunkSize = Math.max(1, chunkSize);
+  }
+
+  /**
+   * Reads CSV rows of the form <code>stockItemId,warehouse,product,quantity</code>. A header row
+   * starting with <code>stockItemId</code> and blank lines are skipped.
+   * 
+   * @param reader The CSV input.
+   * @throws IOException If the input cannot be read.
+   */
+  public void readCsv(Reader reader) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    String line;
+    while ((line = lines.readLine()) != null) {
+      if (line.trim().isEmpty() || line.startsWith("stockItemId")) {
+        continue;
+      }
+      String[] fields = line.split(",", -1);
+      if (fields.length != 4) {
+        this.rows++;
+        this.errors.add("row " + this.rows + ": expected 4 fields but found " + fields.length
+            + ".");
+        continue;
+      }
+      add(fields[0].trim(), fields[1].trim(), fields[2].trim(), fields[3].trim());
+    }
+    finish();
+  }
+
+  /**
+   * Reads a JSON array of objects with the <code>stockItemId</code>, <code>warehouse</code>,
+   * <code>product</code> and <code>quantity</code> fields. Only one object is held in memory at a
+   * time.
+   * 
+   * @param input The JSON input.
+   * @throws IOException If the input cannot be read or is not a JSON array.
+   */
+  public void readJson(InputStream input) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    JsonParser parser = mapper.getJsonFactory().createJsonParser(input);
+    if (parser.nextToken() != JsonToken.START_ARRAY) {
+      throw new IOException("Expected a JSON array of stock items.");
+    }
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      JsonNode node = mapper.readTree(parser);
+      add(text(node, "stockItemId"), text(node, "warehouse"), text(node, "product"),
+          text(node, "quantity"));
+    }
+    parser.close();
+    finish();
+  }
+
+  /**
+   * Reads an already parsed JSON array of stock item objects.
+   * 
+   * @param array The JSON array.
+   * @throws IOException If the node is not a JSON array.
+   */
+  public void readJson(JsonNode array) throws IOException {
+    if (!array.isArray()) {
+      throw new IOException("Expected a JSON array of stock items.");
+    }
+    for (JsonNode node : array) {
+      add(text(node, "stockItemId"), text(node, "warehouse"), text(node, "product"),
+          text(node, "quantity"));
+    }
+    finish();
+  }
+
+  /**
+   * Adds a row to the import. The row is inserted with the rest of its chunk.
+   * 
+   * @param stockItemId The ID of the new {@link StockItem}.
+   * @param warehouseId The warehouseId of its {@link Warehouse}.
+   * @param productId The productId of its {@link Product}.
+   * @param quantity The quantity of the StockItem.
+   */
+  public void add(String stockItemId, String warehouseId, String productId, String quantity) {
+    this.rows++;
+    if (stockItemId == null || stockItemId.isEmpty()) {
+      this.errors.add("row " + this.rows + ": stockItemId is required.");
+      return;
+    }
+    long parsedQuantity;
+    try {
+      parsedQuantity = Long.parseLong(quantity);
+    }
+    catch (NumberFormatException e) {
+      this.errors.add("row " + this.rows + ": quantity '" + quantity + "' is not a number.");
+      return;
+    }
+    Warehouse warehouse = warehouse(warehouseId);
+    if (warehouse == null) {
+      this.errors.add("row " + this.rows + ": Given Warehouse does not exist.");
+      return;
+    }
+    Product product = product(productId);
+    if (product == null) {
+      this.errors.add("row " + this.rows + ": Given Product does not exists.");
+      return;
+    }
+    this.pending.add(new StockItem(stockItemId, warehouse, product, parsedQuantity));
+    this.pendingRows.add(this.rows);
+    if (this.pending.size() >= this.chunkSize) {
+      flush();
+    }
+  }
+
+  /**
+   * Inserts the rows of the last, partial chunk.
+   */
+  public void finish() {
+    if (!this.pending.isEmpty()) {
+      flush();
+    }
+  }
+
+  /**
+   * Inserts the pending chunk in one batched transaction. If the batch fails, for example because
+   * of a duplicate stockItemId, the rows are retried one at a time so that only the bad rows are
+   * reported.
+   */
+  private void flush() {
+    boolean committed = false;
+    Transaction transaction = Ebean.beginTransaction();
+    StockLedger.deferChanges();
+    try {
+      transaction.setBatchMode(true);
+      transaction.setBatchSize(this.chunkSize);
+      for (StockItem stockItem : this.pending) {
+        stockItem.save();
+      }
+      transaction.flushBatch();
+      transaction.setBatchMode(false);
+      // Update each stock total once for the whole chunk.
+      StockLedger.applyDeferredChanges(transaction);
+      Ebean.commitTransaction();
+      committed = true;
+    }
+    catch (PersistenceException e) {
+      // Fall back to inserting the chunk row by row below.
+    }
+    finally {
+      StockLedger.discardDeferredChanges();
+      Ebean.endTransaction();
+    }
+    if (committed) {
+      this.imported += this.pending.size();
+    }
+    else {
+      retryOneByOne();
+    }
+    this.pending.clear();
+    this.pendingRows.clear();
+  }
+
+  private void retryOneByOne() {
+    for (int i = 0; i < this.pending.size(); i++) {
+      StockItem stockItem = this.pending.get(i);
+      StockItem retry =
+          new StockItem(stockItem.getStockItemId(), stockItem.getWarehouse(),
+              stockItem.getProduct(), stockItem.getQuantity());
+      try {
+        retry.save();
+        this.imported++;
+      }
+      catch (PersistenceException e) {
+        if (BusinessIds.isDuplicate(e)) {
+          this.errors.add("row " + this.pendingRows.get(i) + ": A stock item with ID '"
+              + stockItem.getStockItemId() + "' already exists.");
+        }
+        else {
+          this.errors.add("row " + this.pendingRows.get(i) + ": " + BusinessIds.describe(e));
+        }
+      }
+    }
+  }
+
+  private Warehouse warehouse(String warehouseId) {
+    if (!this.warehouses.containsKey(warehouseId)) {
+      this.warehouses.put(warehouseId, Warehouse.findReference(warehouseId));
+    }
+    return this.warehouses.get(warehouseId);
+  }
+
+  private Product product(String productId) {
+    if (!this.products.containsKey(productId)) {
+      this.products.put(productId, Product.findReference(productId));
+    }
+    return this.products.get(productId);
+  }
+
+  private static String text(JsonNode node, String field) {
+    JsonNode value = node.get(field);
+    return (value == null || value.isNull()) ? null : value.asText();
+  }
+
+  /**
+   * @return the number of rows read
+   */
+  public int getRows() {
+    return this.rows;
+  }
+
+  /**
+   * @return the number of stock items inserted
+   */
+  public int getImported() {
+    return this.imported;
+  }
+
+  /**
+   * @return the errors of the rows that could not be imported
+   */
+  public List<String> getErrors() {
+    return this.errors;
+  }
+}
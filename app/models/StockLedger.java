@@ -0,0 +1,367 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+import com.avaje.ebean.Transaction;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.persistence.PersistenceException;
+
+/**
+ * Keeps the stock totals of each {@link Product} and {@link Warehouse} up to date. Every path that
+ * creates, deletes or changes the quantity of a {@link StockItem} reports the change here in the
+ * same transaction, so a total can be read without summing the StockItems. Each change is also
+ * appended to the {@link StockMovement} journal.
+ * 
+ * Each total is split into up to {@link #STRIPES} counter rows that are summed when the total is
+ * read. A thread always adds its changes to the same row, so concurrent writers to the StockItems
+ * of one Warehouse or Product do not all queue for the lock on a single row, and a transaction
+ * only ever locks one row of each total. Row 0 is created with the Product or Warehouse; the
+ * others are created the first time they are needed.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class StockLedger {
+
+  /**
+   * The changes deferred by the current thread, or null if changes are applied immediately.
+   */
+  private static final ThreadLocal<DeferredChanges> deferred = new ThreadLocal<>();
+
+  /**
+   * The number of counter rows each total may be split into.
+   */
+  static final int STRIPES = 8;
+
+  /**
+   * Appends an entry to the journal, looking up the business IDs it carries.
+   */
+  private static final String JOURNAL_INSERT = "insert into stock_movement"
+      + " (kind, stock_item_primary_key, stock_item_id, product_primary_key, product_id,"
+      + " warehouse_primary_key, warehouse_id, delta) values (?, ?, ?, ?,"
+      + " (select product_id from product where primary_key = ?), ?,"
+      + " (select warehouse_id from warehouse where primary_key = ?), ?)";
+
+  private StockLedger() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Creates the empty stock total of a new {@link Product}.
+   * 
+   * @param server The {@link EbeanServer} to use.
+   * @param transaction The transaction that created the Product.
+   * @param productKey The primary key of the Product.
+   */
+  static void productCreated(EbeanServer server, Transaction transaction, Long productKey) {
+    SqlUpdate insert =
+        server.createSqlUpdate("insert into product_stock_total"
+            + " (product_primary_key, stripe, quantity) values (:key, 0, 0)");
+    insert.setParameter("key", productKey);
+    server.execute(insert, transaction);
+  }
+
+  /**
+   * Creates the empty stock total of a new {@link Warehouse}.
+   * 
+   * @param server The {@link EbeanServer} to use.
+   * @param transaction The transaction that created the Warehouse.
+   * @param warehouseKey The primary key of the Warehouse.
+   */
+  static void warehouseCreated(EbeanServer server, Transaction transaction, Long warehouseKey) {
+    SqlUpdate insert =
+        server.createSqlUpdate("insert into warehouse_stock_total"
+            + " (warehouse_primary_key, stripe, quantity) values (:key, 0, 0)");
+    insert.setParameter("key", warehouseKey);
+    server.execute(insert, transaction);
+  }
+
+  /**
+   * Records that the stock of a {@link StockItem} changed: the change is added to the totals of
+   * its {@link Product} and {@link Warehouse} and appended to the journal.
+   * 
+   * @param server The {@link EbeanServer} to use.
+   * @param transaction The transaction making the change.
+   * @param kind The kind of change.
+   * @param stockItemKey The primary key of the StockItem.
+   * @param stockItemId The stockItemId of the StockItem.
+   * @param productKey The primary key of the Product.
+   * @param warehouseKey The primary key of the Warehouse.
+   * @param delta The change in quantity.
+   */
+  static void stockMoved(EbeanServer server, Transaction transaction, StockMovement.Kind kind,
+      Long stockItemKey, String stockItemId, Long productKey, Long warehouseKey, long delta) {
+    Movement movement =
+        new Movement(kind, stockItemKey, stockItemId, productKey, warehouseKey, delta);
+    DeferredChanges changes = deferred.get();
+    if (changes != null) {
+      changes.add(movement);
+      return;
+    }
+    applyChange(server, transaction, productKey, warehouseKey, delta);
+    SqlUpdate insert = server.createSqlUpdate(JOURNAL_INSERT);
+    for (int i = 0; i < movement.parameters().length; i++) {
+      insert.setParameter(i + 1, movement.parameters()[i]);
+    }
+    server.execute(insert, transaction);
+  }
+
+  /**
+   * Starts collecting the changes made by the current thread instead of applying them one by one.
+   * Used while inserting in JDBC batches, where the changes must not be queued into the batch being
+   * flushed, and so that each total is updated once per batch rather than once per row.
+   */
+  static void deferChanges() {
+    deferred.set(new DeferredChanges());
+  }
+
+  /**
+   * Applies the changes collected since {@link #deferChanges()} and stops collecting.
+   * 
+   * @param transaction The transaction the changes were made in.
+   */
+  static void applyDeferredChanges(Transaction transaction) {
+    DeferredChanges changes = deferred.get();
+    deferred.remove();
+    if (changes == null) {
+      return;
+    }
+    EbeanServer server = Ebean.getServer(null);
+    for (Map.Entry<Long, Long> product : changes.products.entrySet()) {
+      applyChange(server, transaction, "product", product.getKey(), product.getValue());
+    }
+    for (Map.Entry<Long, Long> warehouse : changes.warehouses.entrySet()) {
+      applyChange(server, transaction, "warehouse", warehouse.getKey(), warehouse.getValue());
+    }
+    if (changes.movements.isEmpty()) {
+      return;
+    }
+    // Append the journal entries in a single JDBC batch.
+    try (PreparedStatement insert = transaction.getConnection().prepareStatement(JOURNAL_INSERT)) {
+      for (Movement movement : changes.movements) {
+        Object[] parameters = movement.parameters();
+        for (int i = 0; i < parameters.length; i++) {
+          insert.setObject(i + 1, parameters[i]);
+        }
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    }
+    catch (SQLException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  /**
+   * Stops collecting changes, discarding any that were not applied.
+   */
+  static void discardDeferredChanges() {
+    deferred.remove();
+  }
+
+  private static void applyChange(EbeanServer server, Transaction transaction, Long productKey,
+      Long warehouseKey, long delta) {
+    applyChange(server, transaction, "product", productKey, delta);
+    applyChange(server, transaction, "warehouse", warehouseKey, delta);
+  }
+
+  private static void applyChange(EbeanServer server, Transaction transaction, String table,
+      Long key, long delta) {
+    if (delta == 0) {
+      return;
+    }
+    int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+    SqlUpdate update =
+        server.createSqlUpdate("update " + table + "_stock_total set quantity = quantity + :delta"
+            + " where " + table + "_primary_key = :key and stripe = :stripe");
+    update.setParameter("delta", delta);
+    update.setParameter("key", key);
+    update.setParameter("stripe", stripe);
+    if (server.execute(update, transaction) > 0) {
+      return;
+    }
+    SqlUpdate insert =
+        server.createSqlUpdate("insert into " + table + "_stock_total (" + table
+            + "_primary_key, stripe, quantity) values (:key, :stripe, :delta)");
+    insert.setParameter("key", key);
+    insert.setParameter("stripe", stripe);
+    insert.setParameter("delta", delta);
+    try {
+      server.execute(insert, transaction);
+    }
+    catch (PersistenceException e) {
+      if (!BusinessIds.isDuplicate(e)) {
+        throw e;
+      }
+      // Another thread on the same stripe created the row first.
+      server.execute(update, transaction);
+    }
+  }
+
+  /**
+   * Subtracts the quantities of the {@link StockItem}s of a {@link Product} or {@link Warehouse}
+   * that are about to be deleted with a single statement from every total they count towards. The
+   * quantities are taken from row 0 of each total, which always exists. Must be called in the
+   * deleting transaction, before the delete.
+   * 
+   * @param server The {@link EbeanServer} to use.
+   * @param transaction The transaction deleting the StockItems.
+   * @param owner "product" or "warehouse", whichever the StockItems are deleted for.
+   * @param ownerKey The primary key of the Product or Warehouse.
+   * @param upToKey The largest primary key of the StockItems being deleted.
+   */
+  static void stockItemsDeleted(EbeanServer server, Transaction transaction, String owner,
+      Long ownerKey, long upToKey) {
+    String deleted =
+        " from stock_item s where s." + owner + "_primary_key = :key and s.primary_key <= :upTo";
+    SqlUpdate journal =
+        server.createSqlUpdate("insert into stock_movement (kind, stock_item_primary_key,"
+            + " stock_item_id, product_primary_key, product_id, warehouse_primary_key,"
+            + " warehouse_id, delta) select 'DELETE', s.primary_key, s.stock_item_id,"
+            + " s.product_primary_key, p.product_id, s.warehouse_primary_key, w.warehouse_id,"
+            + " -s.quantity from stock_item s"
+            + " join product p on p.primary_key = s.product_primary_key"
+            + " join warehouse w on w.primary_key = s.warehouse_primary_key"
+            + " where s." + owner + "_primary_key = :key and s.primary_key <= :upTo"
+            + " order by s.primary_key");
+    journal.setParameter("key", ownerKey);
+    journal.setParameter("upTo", upToKey);
+    server.execute(journal, transaction);
+    for (String table : new String[] {"product", "warehouse"}) {
+      String column = table + "_primary_key";
+      SqlUpdate update =
+          server.createSqlUpdate("update " + table + "_stock_total t"
+              + " set quantity = quantity - (select coalesce(sum(s.quantity), 0)" + deleted
+              + " and s." + column + " = t." + column + ")"
+              + " where t.stripe = 0 and t." + column + " in (select s." + column + deleted
+              + ")");
+      update.setParameter("key", ownerKey);
+      update.setParameter("upTo", upToKey);
+      server.execute(update, transaction);
+    }
+  }
+
+  /**
+   * Reads the primary key, stockItemId, product, warehouse and quantity columns of a
+   * {@link StockItem} row.
+   * 
+   * @param server The {@link EbeanServer} to use.
+   * @param transaction The current transaction.
+   * @param stockItemKey The primary key of the StockItem.
+   * @return The row or null if there is no such StockItem.
+   */
+  static SqlRow findStockItemRow(EbeanServer server, Transaction transaction, Long stockItemKey) {
+    return findStockItemRow(server, transaction, "primary_key", stockItemKey);
+  }
+
+  /**
+   * Reads the primary key, stockItemId, product, warehouse and quantity columns of a
+   * {@link StockItem} row.
+   * 
+   * @param server The {@link EbeanServer} to use.
+   * @param transaction The current transaction.
+   * @param stockItemId The stockItemId of the StockItem.
+   * @return The row or null if there is no such StockItem.
+   */
+  static SqlRow findStockItemRow(EbeanServer server, Transaction transaction, String stockItemId) {
+    return findStockItemRow(server, transaction, "stock_item_id", stockItemId);
+  }
+
+  private static SqlRow findStockItemRow(EbeanServer server, Transaction transaction,
+      String column, Object key) {
+    SqlQuery query =
+        server.createSqlQuery("select primary_key, stock_item_id, product_primary_key,"
+            + " warehouse_primary_key, quantity from stock_item where " + column + " = :key");
+    query.setParameter("key", key);
+    return server.findUnique(query, transaction);
+  }
+
+  /**
+   * Gets the total quantity of a {@link Product} across all {@link Warehouse}s.
+   * 
+   * @param productId The productId of the Product.
+   * @return The total quantity or null if there is no such Product.
+   */
+  public static Long getProductTotal(String productId) {
+    SqlRow row =
+        Ebean.createSqlQuery("select sum(t.quantity) as quantity from product_stock_total t"
+            + " join product p on p.primary_key = t.product_primary_key where p.product_id = :id")
+            .setParameter("id", productId).findUnique();
+    // The sum of no rows is null.
+    return row.getLong("quantity");
+  }
+
+  /**
+   * Gets the total quantity of all the {@link StockItem}s held in a {@link Warehouse}.
+   * 
+   * @param warehouseId The warehouseId of the Warehouse.
+   * @return The total quantity or null if there is no such Warehouse.
+   */
+  public static Long getWarehouseTotal(String warehouseId) {
+    SqlRow row =
+        Ebean.createSqlQuery("select sum(t.quantity) as quantity from warehouse_stock_total t"
+            + " join warehouse w on w.primary_key = t.warehouse_primary_key"
+            + " where w.warehouse_id = :id").setParameter("id", warehouseId).findUnique();
+    return row.getLong("quantity");
+  }
+
+  /**
+   * A change to the stock of one StockItem.
+   */
+  private static class Movement {
+    private final StockMovement.Kind kind;
+    private final Long stockItemKey;
+    private final String stockItemId;
+    private final Long productKey;
+    private final Long warehouseKey;
+    private final long delta;
+
+    Movement(StockMovement.Kind kind, Long stockItemKey, String stockItemId, Long productKey,
+        Long warehouseKey, long delta) {
+      this.kind = kind;
+      this.stockItemKey = stockItemKey;
+      this.stockItemId = stockItemId;
+      this.productKey = productKey;
+      this.warehouseKey = warehouseKey;
+      this.delta = delta;
+    }
+
+    /**
+     * @return the parameters of {@link StockLedger#JOURNAL_INSERT}, in order
+     */
+    Object[] parameters() {
+      return new Object[] {this.kind.name(), this.stockItemKey, this.stockItemId,
+          this.productKey, this.productKey, this.warehouseKey, this.warehouseKey, this.delta};
+    }
+  }
+
+  /**
+   * The stock changes collected while changes are deferred, summed per Product and Warehouse,
+   * and the journal entries still to be written. The totals are kept in primary key order so that
+   * they are always updated, and locked, in the same order.
+   */
+  private static class DeferredChanges {
+    private final Map<Long, Long> products = new TreeMap<>();
+    private final Map<Long, Long> warehouses = new TreeMap<>();
+    private final List<Movement> movements = new ArrayList<>();
+
+    private void add(Movement movement) {
+      add(this.products, movement.productKey, movement.delta);
+      add(this.warehouses, movement.warehouseKey, movement.delta);
+      this.movements.add(movement);
+    }
+
+    private static void add(Map<Long, Long> totals, Long key, long delta) {
+      Long total = totals.get(key);
+      totals.put(key, (total == null) ? delta : total + delta);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package models;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.event.BeanPersistAdapter;
+import com.avaje.ebean.event.BeanPersistRequest;
+
+/**
+ * Reports every {@link Product}, {@link Warehouse} and {@link StockItem} persisted through Ebean to
+ * the {@link StockLedger}, including StockItems deleted by cascade. Ebean picks it up automatically
+ * because it is in the models package.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class StockLedgerController extends BeanPersistAdapter {
+
+  @Override
+  public boolean isRegisterFor(Class<?> cls) {
+    return Product.class.equals(cls) || Warehouse.class.equals(cls) || StockItem.class.equals(cls);
+  }
+
+  @Override
+  public void postInsert(BeanPersistRequest<?> request) {
+    Object bean = request.getBean();
+    if (bean instanceof Product) {
+      StockLedger.productCreated(request.getEbeanServer(), request.getTransaction(),
+          ((Product) bean).getPrimaryKey());
+    }
+    else if (bean instanceof Warehouse) {
+      StockLedger.warehouseCreated(request.getEbeanServer(), request.getTransaction(),
+          ((Warehouse) bean).getPrimaryKey());
+    }
+    else if (bean instanceof StockItem) {
+      // After the insert, so that the primary key of the StockItem is known.
+      StockItem stockItem = (StockItem) bean;
+      StockLedger.stockMoved(request.getEbeanServer(), request.getTransaction(),
+          StockMovement.Kind.CREATE, stockItem.getPrimaryKey(), stockItem.getStockItemId(),
+          stockItem.getProduct().getPrimaryKey(), stockItem.getWarehouse().getPrimaryKey(),
+          stockItem.getQuantity());
+    }
+  }
+
+  @Override
+  public boolean preUpdate(BeanPersistRequest<?> request) {
+    if (request.getBean() instanceof StockItem) {
+      StockItem stockItem = (StockItem) request.getBean();
+      EbeanServer server = request.getEbeanServer();
+      Long productKey = stockItem.getProduct().getPrimaryKey();
+      Long warehouseKey = stockItem.getWarehouse().getPrimaryKey();
+      SqlRow old =
+          StockLedger.findStockItemRow(server, request.getTransaction(), stockItem.getPrimaryKey());
+      if (old != null && productKey.equals(old.getLong("product_primary_key"))
+          && warehouseKey.equals(old.getLong("warehouse_primary_key"))) {
+        long delta = stockItem.getQuantity() - old.getLong("quantity");
+        if (delta != 0) {
+          StockLedger.stockMoved(server, request.getTransaction(), StockMovement.Kind.UPDATE,
+              stockItem.getPrimaryKey(), stockItem.getStockItemId(), productKey, warehouseKey,
+              delta);
+        }
+        return true;
+      }
+      // The StockItem moved to another Product or Warehouse: move the old quantity out of the
+      // old totals and the new quantity into the new ones.
+      if (old != null) {
+        StockLedger.stockMoved(server, request.getTransaction(), StockMovement.Kind.UPDATE,
+            stockItem.getPrimaryKey(), old.getString("stock_item_id"),
+            old.getLong("product_primary_key"), old.getLong("warehouse_primary_key"),
+            -old.getLong("quantity"));
+      }
+      StockLedger.stockMoved(server, request.getTransaction(), StockMovement.Kind.UPDATE,
+          stockItem.getPrimaryKey(), stockItem.getStockItemId(), productKey, warehouseKey,
+          stockItem.getQuantity());
+    }
+    return true;
+  }
+
+  @Override
+  public boolean preDelete(BeanPersistRequest<?> request) {
+    if (request.getBean() instanceof StockItem) {
+      // Read the row rather than the bean, which may only be a reference when deleted by cascade.
+      StockItem stockItem = (StockItem) request.getBean();
+      EbeanServer server = request.getEbeanServer();
+      SqlRow old =
+          StockLedger.findStockItemRow(server, request.getTransaction(), stockItem.getPrimaryKey());
+      if (old != null) {
+        StockLedger.stockMoved(server, request.getTransaction(), StockMovement.Kind.DELETE,
+            old.getLong("primary_key"), old.getString("stock_item_id"),
+            old.getLong("product_primary_key"), old.getLong("warehouse_primary_key"),
+            -old.getLong("quantity"));
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,271 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.Transaction;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * One entry of the append-only stock_movement journal: a change to the stock of a
+ * {@link StockItem}. Entries are written by the {@link StockLedger} in the transaction making the
+ * change and are numbered in the order they were written, so a consumer can follow the journal
+ * by remembering the last sequence number it has seen.
+ * 
+ * <p>
+ * Sequence numbers are handed out when an entry is inserted, not when its transaction commits, so
+ * an entry can become visible after entries numbered above it. Readers therefore stop at the first
+ * gap in the numbering and read past it only once the entry after the gap is
+ * {@link #GAP_TIMEOUT} old; by then the missing entry is taken to belong to a transaction that was
+ * rolled back. A transaction still open after that long has its entries skipped by readers that
+ * have moved past them.
+ * </p>
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class StockMovement implements JsonWritable {
+
+  /**
+   * The kinds of change recorded in the journal.
+   */
+  public static enum Kind {
+    CREATE, UPDATE, ADJUST, TRANSFER, ALLOCATE, DELETE
+  }
+
+  /**
+   * How long a gap in the sequence numbers holds readers back, in milliseconds.
+   */
+  static final long GAP_TIMEOUT = 10000;
+
+  /**
+   * The most entries read per query while looking for the end of the journal.
+   */
+  private static final int PAGE_SIZE = 1000;
+
+  /**
+   * The position of this entry in the journal.
+   */
+  private final long sequenceNumber;
+
+  /**
+   * The stockItemId of the {@link StockItem} that changed.
+   */
+  private final String stockItemId;
+
+  /**
+   * The productId of the {@link Product} of the StockItem.
+   */
+  private final String productId;
+
+  /**
+   * The warehouseId of the {@link Warehouse} of the StockItem.
+   */
+  private final String warehouseId;
+
+  /**
+   * The kind of change.
+   */
+  private final Kind kind;
+
+  /**
+   * The change in quantity.
+   */
+  private final long delta;
+
+  /**
+   * When the change was written.
+   */
+  private final Date createdAt;
+
+  private StockMovement(SqlRow row) {
+    this.sequenceNumber = row.getLong("sequence_number");
+    this.stockItemId = row.getString("stock_item_id");
+    this.productId = row.getString("product_id");
+    this.warehouseId = row.getString("warehouse_id");
+    this.kind = Kind.valueOf(row.getString("kind"));
+    this.delta = row.getLong("delta");
+    this.createdAt = row.getTimestamp("created_at");
+  }
+
+  /**
+   * Reads the journal entries after a sequence number, oldest first.
+   * 
+   * @param since The sequence number of the last entry already seen, 0 to start from the
+   * beginning.
+   * @param limit The most entries to read.
+   * @return The entries.
+   */
+  public static List<StockMovement> findSince(long since, int limit) {
+    List<StockMovement> movements = new ArrayList<>();
+    for (SqlRow row : findRowsSince("stock_item_id, product_id, warehouse_id, kind, delta", since,
+        limit)) {
+      movements.add(new StockMovement(row));
+    }
+    return movements;
+  }
+
+  /**
+   * Reads the journal entries after a sequence number, oldest first, up to the first entry that may
+   * still be followed by an uncommitted one.
+   * 
+   * @param columns The columns to read besides sequence_number and created_at.
+   * @param since The sequence number of the last entry already seen, 0 to start from the
+   * beginning.
+   * @param limit The most entries to read.
+   * @return The rows.
+   */
+  static List<SqlRow> findRowsSince(String columns, long since, int limit) {
+    List<SqlRow> rows =
+        Ebean.createSqlQuery("select sequence_number, created_at, " + columns
+            + " from stock_movement where sequence_number > :since order by sequence_number")
+            .setParameter("since", since).setMaxRows(limit).findList();
+    return rows.subList(0, countVisible(rows, since));
+  }
+
+  /**
+   * Finds where a reader starting now should begin: the last entry that no uncommitted entry comes
+   * before.
+   * 
+   * @param server The {@link EbeanServer} to use.
+   * @param transaction The transaction to read in, or null.
+   * @return The sequence number of the entry, or 0 if there is none.
+   */
+  static long findEnd(EbeanServer server, Transaction transaction) {
+    // Walk back from the newest entry to the first one old enough that no gap before it matters.
+    long cutoff = System.currentTimeMillis() - GAP_TIMEOUT;
+    List<SqlRow> recent = new ArrayList<>();
+    long below = Long.MAX_VALUE;
+    long since = 0;
+    boolean found = false;
+    while (!found) {
+      SqlQuery query =
+          server.createSqlQuery("select sequence_number, created_at from stock_movement"
+              + " where sequence_number < :below order by sequence_number desc");
+      query.setParameter("below", below);
+      query.setMaxRows(PAGE_SIZE);
+      List<SqlRow> page = server.findList(query, transaction);
+      for (SqlRow row : page) {
+        recent.add(row);
+        below = row.getLong("sequence_number");
+        if (row.getTimestamp("created_at").getTime() < cutoff) {
+          since = below - 1;
+          found = true;
+          break;
+        }
+      }
+      if (page.size() < PAGE_SIZE) {
+        break;
+      }
+    }
+    Collections.reverse(recent);
+    int visible = countVisible(recent, since);
+    return (visible == 0) ? since : recent.get(visible - 1).getLong("sequence_number");
+  }
+
+  /**
+   * Counts the rows, ordered by sequence number, that come before the first gap that is not yet
+   * {@link #GAP_TIMEOUT} old.
+   */
+  private static int countVisible(List<SqlRow> rows, long since) {
+    long cutoff = System.currentTimeMillis() - GAP_TIMEOUT;
+    long expected = since + 1;
+    for (int i = 0; i < rows.size(); i++) {
+      SqlRow row = rows.get(i);
+      long sequenceNumber = row.getLong("sequence_number");
+      if (sequenceNumber != expected && row.getTimestamp("created_at").getTime() >= cutoff) {
+        return i;
+      }
+      expected = sequenceNumber + 1;
+    }
+    return rows.size();
+  }
+
+  @Override
+  public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+    json.writeStartObject();
+    if (fields.includes("sequenceNumber")) {
+      json.writeNumberField("sequenceNumber", this.sequenceNumber);
+    }
+    if (fields.includes("stockItemId")) {
+      json.writeStringField("stockItemId", this.stockItemId);
+    }
+    if (fields.includes("productId")) {
+      json.writeStringField("productId", this.productId);
+    }
+    if (fields.includes("warehouseId")) {
+      json.writeStringField("warehouseId", this.warehouseId);
+    }
+    if (fields.includes("kind")) {
+      json.writeStringField("kind", this.kind.name());
+    }
+    if (fields.includes("delta")) {
+      json.writeNumberField("delta", this.delta);
+    }
+    if (fields.includes("createdAt")) {
+      json.writeNumberField("createdAt", this.createdAt.getTime());
+    }
+    json.writeEndObject();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[StockMovement %d %s %s %s %s %d]", this.sequenceNumber,
+        this.stockItemId, this.productId, this.warehouseId, this.kind, this.delta);
+  }
+
+  /**
+   * @return the sequenceNumber
+   */
+  public long getSequenceNumber() {
+    return this.sequenceNumber;
+  }
+
+  /**
+   * @return the stockItemId
+   */
+  public String getStockItemId() {
+    return this.stockItemId;
+  }
+
+  /**
+   * @return the productId
+   */
+  public String getProductId() {
+    return this.productId;
+  }
+
+  /**
+   * @return the warehouseId
+   */
+  public String getWarehouseId() {
+    return this.warehouseId;
+  }
+
+  /**
+   * @return the kind
+   */
+  public Kind getKind() {
+    return this.kind;
+  }
+
+  /**
+   * @return the delta
+   */
+  public long getDelta() {
+    return this.delta;
+  }
+
+  /**
+   * @return the createdAt
+   */
+  public Date getCreatedAt() {
+    return this.createdAt;
+  }
+}
@@ -0,0 +1,420 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.persistence.PersistenceException;
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * A move of some quantity of a {@link Product} from the {@link StockItem} of one
+ * {@link Warehouse} to the StockItem of another. A batch of transfers is applied all or nothing in
+ * one short transaction: the transfers are netted per StockItem and each StockItem is changed by a
+ * single UPDATE. A net debit is conditional: it is refused if it would take the quantity below
+ * the units held by the {@link ReservationLedger}, or below zero. A net credit always applies. The
+ * UPDATEs run in ascending primary key order, as do the {@link StockLedger} total updates, so that
+ * concurrent batches always lock rows in the same order and cannot deadlock.
+ * 
+ * <p>
+ * When a Warehouse holds several StockItems of a Product, the one with the lowest primary key is
+ * used.
+ * </p>
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class StockTransfer implements JsonWritable {
+
+  /**
+   * Why a batch of transfers was not applied.
+   */
+  public static enum Failure {
+    /**
+     * One of the Warehouses has no StockItem of the Product.
+     */
+    UNKNOWN_STOCK_ITEM,
+
+    /**
+     * A StockItem would be left with a negative quantity.
+     */
+    INSUFFICIENT_STOCK
+  }
+
+  /**
+   * Moves stock in a single UPDATE. A credit always applies; a debit only applies if the quantity
+   * stays at or above the given number of held units.
+   */
+  private static final String CONDITIONAL_UPDATE = "update stock_item"
+      + " set quantity = quantity + ?, version = version + 1"
+      + " where primary_key = ? and (? >= 0 or quantity + ? >= ?)";
+
+  /**
+   * The productId of the {@link Product} moved.
+   */
+  private final String productId;
+
+  /**
+   * The warehouseId of the {@link Warehouse} the stock is taken from.
+   */
+  private final String fromWarehouseId;
+
+  /**
+   * The warehouseId of the {@link Warehouse} the stock is moved to.
+   */
+  private final String toWarehouseId;
+
+  /**
+   * The quantity moved.
+   */
+  private final long quantity;
+
+  /**
+   * Creates a new {@link StockTransfer}.
+   * 
+   * @param productId The productId of the Product moved.
+   * @param fromWarehouseId The warehouseId of the Warehouse the stock is taken from.
+   * @param toWarehouseId The warehouseId of the Warehouse the stock is moved to.
+   * @param quantity The quantity moved.
+   */
+  public StockTransfer(String productId, String fromWarehouseId, String toWarehouseId,
+      long quantity) {
+    this.productId = productId;
+    this.fromWarehouseId = fromWarehouseId;
+    this.toWarehouseId = toWarehouseId;
+    this.quantity = quantity;
+  }
+
+  /**
+   * Applies a batch of transfers in one transaction, either all of them or none.
+   * 
+   * @param transfers The transfers.
+   * @return The {@link Outcome} of the batch.
+   */
+  public static Outcome apply(List<StockTransfer> transfers) {
+    EbeanServer server = Ebean.getServer(null);
+    Transaction transaction = server.beginTransaction();
+    Map<Long, Long> debits = new TreeMap<>();
+    try {
+      Map<String, StockItemRow> rows = findStockItemRows(transaction, transfers);
+
+      // Net the transfers per StockItem, in primary key order.
+      TreeMap<Long, Long> deltas = new TreeMap<>();
+      Map<Long, StockTransfer> firstDebits = new HashMap<>();
+      for (StockTransfer transfer : transfers) {
+        StockItemRow from = rows.get(key(transfer.productId, transfer.fromWarehouseId));
+        StockItemRow to = rows.get(key(transfer.productId, transfer.toWarehouseId));
+        if (from == null || to == null) {
+          return new Outcome(transfer, Failure.UNKNOWN_STOCK_ITEM);
+        }
+        add(deltas, from.primaryKey, -transfer.quantity);
+        add(deltas, to.primaryKey, transfer.quantity);
+        if (!firstDebits.containsKey(from.primaryKey)) {
+          firstDebits.put(from.primaryKey, transfer);
+        }
+      }
+
+      // Hold the units debited so that they cannot also be reserved while the UPDATEs run.
+      Map<Long, Long> held = new HashMap<>();
+      for (Map.Entry<Long, Long> delta : deltas.entrySet()) {
+        if (delta.getValue() < 0) {
+          held.put(delta.getKey(),
+              ReservationLedger.startDebit(delta.getKey(), -delta.getValue()));
+          debits.put(delta.getKey(), -delta.getValue());
+        }
+      }
+      Long refused = update(transaction, deltas, held);
+      if (refused != null) {
+        // Returning without committing rolls back the UPDATEs already made. Only a row with a net
+        // debit can be refused.
+        return new Outcome(firstDebits.get(refused), Failure.INSUFFICIENT_STOCK);
+      }
+
+      Map<Long, StockItemRow> rowsByKey = new HashMap<>();
+      for (StockItemRow row : rows.values()) {
+        rowsByKey.put(row.primaryKey, row);
+      }
+      StockLedger.deferChanges();
+      try {
+        for (Map.Entry<Long, Long> delta : deltas.entrySet()) {
+          if (delta.getValue() == 0) {
+            continue;
+          }
+          StockItemRow row = rowsByKey.get(delta.getKey());
+          StockLedger.stockMoved(server, transaction, StockMovement.Kind.TRANSFER,
+              row.primaryKey, row.stockItemId, row.productKey, row.warehouseKey, delta.getValue());
+        }
+        StockLedger.applyDeferredChanges(transaction);
+      }
+      finally {
+        StockLedger.discardDeferredChanges();
+      }
+      transaction.commit();
+      return new Outcome(transfers.size());
+    }
+    finally {
+      transaction.end();
+      for (Map.Entry<Long, Long> debit : debits.entrySet()) {
+        ReservationLedger.settle(debit.getKey(), debit.getValue());
+      }
+    }
+  }
+
+  /**
+   * Finds the {@link StockItem} used for each Product and Warehouse named by the transfers with a
+   * single query.
+   * 
+   * @return The StockItem rows keyed by {@link #key(String, String)}.
+   */
+  private static Map<String, StockItemRow> findStockItemRows(Transaction transaction,
+      List<StockTransfer> transfers) {
+    Set<String> productIds = new LinkedHashSet<>();
+    Set<String> warehouseIds = new LinkedHashSet<>();
+    for (StockTransfer transfer : transfers) {
+      productIds.add(transfer.productId);
+      warehouseIds.add(transfer.fromWarehouseId);
+      warehouseIds.add(transfer.toWarehouseId);
+    }
+    Map<String, StockItemRow> rows = new HashMap<>();
+    if (productIds.isEmpty()) {
+      return rows;
+    }
+    String sql =
+        "select s.primary_key, s.stock_item_id, s.product_primary_key, s.warehouse_primary_key,"
+            + " p.product_id, w.warehouse_id from stock_item s"
+            + " join product p on p.primary_key = s.product_primary_key"
+            + " join warehouse w on w.primary_key = s.warehouse_primary_key"
+            + " where p.product_id in (" + placeholders(productIds.size()) + ")"
+            + " and w.warehouse_id in (" + placeholders(warehouseIds.size()) + ")"
+            + " order by s.primary_key";
+    try (PreparedStatement query = transaction.getConnection().prepareStatement(sql)) {
+      int index = 1;
+      for (String productId : productIds) {
+        query.setString(index++, productId);
+      }
+      for (String warehouseId : warehouseIds) {
+        query.setString(index++, warehouseId);
+      }
+      try (ResultSet result = query.executeQuery()) {
+        while (result.next()) {
+          String key = key(result.getString("product_id"), result.getString("warehouse_id"));
+          // Rows arrive in primary key order, so the first one seen is kept.
+          if (!rows.containsKey(key)) {
+            rows.put(key, new StockItemRow(result.getLong("primary_key"),
+                result.getString("stock_item_id"), result.getLong("product_primary_key"),
+                result.getLong("warehouse_primary_key")));
+          }
+        }
+      }
+    }
+    catch (SQLException e) {
+      throw new PersistenceException(e);
+    }
+    return rows;
+  }
+
+  /**
+   * Applies the net change of each {@link StockItem} in a single JDBC batch of conditional
+   * UPDATEs, in primary key order.
+   * 
+   * @param held The units held by reservations of each debited StockItem.
+   * @return The primary key of the first StockItem whose UPDATE was refused, or null if every
+   *         UPDATE applied.
+   */
+  private static Long update(Transaction transaction, TreeMap<Long, Long> deltas,
+      Map<Long, Long> held) {
+    List<Long> keys = new ArrayList<>();
+    try (PreparedStatement update =
+        transaction.getConnection().prepareStatement(CONDITIONAL_UPDATE)) {
+      for (Map.Entry<Long, Long> delta : deltas.entrySet()) {
+        if (delta.getValue() == 0) {
+          continue;
+        }
+        update.setLong(1, delta.getValue());
+        update.setLong(2, delta.getKey());
+        update.setLong(3, delta.getValue());
+        update.setLong(4, delta.getValue());
+        update.setLong(5, held.containsKey(delta.getKey()) ? held.get(delta.getKey()) : 0);
+        update.addBatch();
+        keys.add(delta.getKey());
+      }
+      if (keys.isEmpty()) {
+        return null;
+      }
+      int[] counts = update.executeBatch();
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] == 0) {
+          return keys.get(i);
+        }
+      }
+      return null;
+    }
+    catch (SQLException e) {
+      throw new PersistenceException(e);
+    }
+  }
+
+  private static void add(Map<Long, Long> deltas, Long key, long delta) {
+    Long total = deltas.get(key);
+    deltas.put(key, (total == null) ? delta : total + delta);
+  }
+
+  private static String key(String productId, String warehouseId) {
+    return productId + "\n" + warehouseId;
+  }
+
+  private static String placeholders(int count) {
+    StringBuilder placeholders = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      placeholders.append((i == 0) ? "?" : ", ?");
+    }
+    return placeholders.toString();
+  }
+
+  @Override
+  public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+    json.writeStartObject();
+    if (fields.includes("productId")) {
+      json.writeStringField("productId", this.productId);
+    }
+    if (fields.includes("from")) {
+      json.writeStringField("from", this.fromWarehouseId);
+    }
+    if (fields.includes("to")) {
+      json.writeStringField("to", this.toWarehouseId);
+    }
+    if (fields.includes("quantity")) {
+      json.writeNumberField("quantity", this.quantity);
+    }
+    json.writeEndObject();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[StockTransfer %s %s %s %d]", this.productId, this.fromWarehouseId,
+        this.toWarehouseId, this.quantity);
+  }
+
+  /**
+   * @return the productId
+   */
+  public String getProductId() {
+    return this.productId;
+  }
+
+  /**
+   * @return the fromWarehouseId
+   */
+  public String getFromWarehouseId() {
+    return this.fromWarehouseId;
+  }
+
+  /**
+   * @return the toWarehouseId
+   */
+  public String getToWarehouseId() {
+    return this.toWarehouseId;
+  }
+
+  /**
+   * @return the quantity
+   */
+  public long getQuantity() {
+    return this.quantity;
+  }
+
+  /**
+   * The result of applying a batch of transfers: either the number applied or the first transfer
+   * that could not be applied and why.
+   */
+  public static class Outcome implements JsonWritable {
+    private final int applied;
+    private final StockTransfer refused;
+    private final Failure failure;
+
+    private Outcome(int applied) {
+      this.applied = applied;
+      this.refused = null;
+      this.failure = null;
+    }
+
+    private Outcome(StockTransfer refused, Failure failure) {
+      this.applied = 0;
+      this.refused = refused;
+      this.failure = failure;
+    }
+
+    /**
+     * @return true if every transfer of the batch was applied
+     */
+    public boolean isApplied() {
+      return this.failure == null;
+    }
+
+    /**
+     * @return the number of transfers applied
+     */
+    public int getApplied() {
+      return this.applied;
+    }
+
+    /**
+     * @return the transfer that could not be applied, or null if the batch was applied
+     */
+    public StockTransfer getRefused() {
+      return this.refused;
+    }
+
+    /**
+     * @return why the batch was not applied, or null if it was
+     */
+    public Failure getFailure() {
+      return this.failure;
+    }
+
+    @Override
+    public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+      json.writeStartObject();
+      json.writeNumberField("applied", this.applied);
+      if (this.failure != null) {
+        json.writeStringField("failure", this.failure.name());
+        json.writeFieldName("transfer");
+        this.refused.writeJson(json, JsonFields.ALL);
+      }
+      json.writeEndObject();
+    }
+
+    @Override
+    public String toString() {
+      return isApplied() ? String.format("[Transferred %d]", this.applied) : String.format(
+          "[Transfer refused %s %s]", this.failure, this.refused);
+    }
+  }
+
+  /**
+   * The columns of a {@link StockItem} row needed to move its stock.
+   */
+  private static class StockItemRow {
+    private final long primaryKey;
+    private final String stockItemId;
+    private final long productKey;
+    private final long warehouseKey;
+
+    StockItemRow(long primaryKey, String stockItemId, long productKey, long warehouseKey) {
+      this.primaryKey = primaryKey;
+      this.stockItemId = stockItemId;
+      this.productKey = productKey;
+      this.warehouseKey = warehouseKey;
+    }
+  }
+}
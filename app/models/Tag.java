@@ -1,11 +1,15 @@
 package models;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.ManyToMany;
+import org.codehaus.jackson.JsonGenerator;
 import play.data.validation.Constraints.Required;
 import play.db.ebean.Model;
 
@@ -16,13 +20,24 @@ import play.db.ebean.Model;
  * 
  */
 @Entity
-public class Tag extends Model {
+public class Tag extends Model implements JsonWritable {
 
   /**
    * Automatically generated ID number.
    */
   private static final long serialVersionUID = 5476207418180200244L;
 
+  /**
+   * The read-through cache of {@link Tag}s keyed by tagId.
+   */
+  private static final EntityCache<Tag> cache =
+      new EntityCache<>("tag", Tag.class, "tagId", new EntityCache.Copier<Tag>() {
+        @Override
+        public Tag copy(Tag tag) {
+          return tag.detachedCopy();
+        }
+      });
+
   /**
    * The ID number and primary key of this {@link Tag}.
    */
@@ -66,6 +81,63 @@ public class Tag extends Model {
     return new Finder<Long, Tag>(Long.class, Tag.class);
   }
 
+  /**
+   * Finds the {@link Tag} with the given tagId, from the cache if possible and otherwise
+   * through the unique index on that column.
+   * 
+   * The Tag returned is a detached copy holding its own properties only; its Products must be
+   * loaded through {@link #find()}.
+   * 
+   * @param tagId The tagId of the Tag.
+   * @return The matching Tag or null if there is none.
+   */
+  public static Tag findByBusinessId(String tagId) {
+    return cache.get(tagId);
+  }
+
+  /**
+   * Finds the {@link Tag}s with the given tagIds, from the cache where possible and otherwise with
+   * a single query.
+   * 
+   * @param tagIds The tagIds of the Tags.
+   * @return The matching Tags keyed by tagId; tagIds with no Tag are left out.
+   */
+  public static Map<String, Tag> findByBusinessIds(Collection<String> tagIds) {
+    return cache.getMany(tagIds);
+  }
+
+  /**
+   * @return a copy of this Tag's own properties that is not attached to Ebean
+   */
+  private Tag detachedCopy() {
+    Tag copy = new Tag(this.tagId);
+    copy.primaryKey = this.primaryKey;
+    return copy;
+  }
+
+  @Override
+  public void save() {
+    super.save();
+    cache.invalidate(this.tagId);
+    TagIndex.tagSaved(this.primaryKey, this.tagId);
+  }
+
+  @Override
+  public void delete() {
+    super.delete();
+    cache.invalidate(this.tagId);
+    TagIndex.tagDeleted(this.primaryKey);
+  }
+
+  @Override
+  public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+    json.writeStartObject();
+    if (fields.includes("tagId")) {
+      json.writeStringField("tagId", this.tagId);
+    }
+    json.writeEndObject();
+  }
+
   @Override
   public String toString() {
     return String.format("[Tag %s ])", tagId);
@@ -0,0 +1,331 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.Transaction;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.persistence.PersistenceException;
+
+/**
+ * An in-memory inverted index from each {@link Tag} to the primary keys of its {@link Product}s,
+ * held as one bitmap per Tag so that products matching any or all of several Tags are found with
+ * bitwise OR and AND. The index is loaded from product_tag on start and kept up to date as
+ * Products and Tags are saved and deleted. Product primary keys are used as bit positions, so
+ * only keys that fit in an int can be indexed. Once a tagged Product has a larger key the index is
+ * incomplete and {@link #findProducts(Collection, boolean)} answers null, so that callers filter in
+ * the database instead, until the index is rebuilt.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class TagIndex {
+
+  /**
+   * Guards {@link #products}, {@link #tagKeys} and {@link #complete}.
+   */
+  private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * The primary keys of the Products of each Tag, keyed by the primary key of the Tag.
+   */
+  private static final Map<Long, BitSet> products = new HashMap<>();
+
+  /**
+   * The primary key of each Tag, keyed by tagId.
+   */
+  private static final Map<String, Long> tagKeys = new HashMap<>();
+
+  /**
+   * Whether every tagged Product fits in the bitmaps.
+   */
+  private static boolean complete = true;
+
+  private TagIndex() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Reloads the whole index from the database.
+   */
+  public static void rebuild() {
+    Map<Long, BitSet> loadedProducts = new HashMap<>();
+    Map<String, Long> loadedTagKeys = new HashMap<>();
+    boolean loadedComplete = true;
+    Transaction transaction = Ebean.getServer(null).createTransaction();
+    try {
+      // Plain JDBC so the join table is read row by row rather than as a list of SqlRows.
+      try (PreparedStatement statement =
+          transaction.getConnection().prepareStatement(
+              "select t.primary_key, t.tag_id, pt.product_primary_key from tag t"
+                  + " left join product_tag pt on pt.tag_primary_key = t.primary_key")) {
+        statement.setFetchSize(10000);
+        try (ResultSet rows = statement.executeQuery()) {
+          while (rows.next()) {
+            Long tagKey = rows.getLong(1);
+            loadedTagKeys.put(rows.getString(2), tagKey);
+            BitSet bits = loadedProducts.get(tagKey);
+            if (bits == null) {
+              bits = new BitSet();
+              loadedProducts.put(tagKey, bits);
+            }
+            long productKey = rows.getLong(3);
+            if (rows.wasNull()) {
+              continue;
+            }
+            if (fits(productKey)) {
+              bits.set((int) productKey);
+            }
+            else {
+              loadedComplete = false;
+            }
+          }
+        }
+      }
+    }
+    catch (SQLException e) {
+      throw new PersistenceException(e);
+    }
+    finally {
+      transaction.end();
+    }
+
+    lock.writeLock().lock();
+    try {
+      products.clear();
+      products.putAll(loadedProducts);
+      tagKeys.clear();
+      tagKeys.putAll(loadedTagKeys);
+      complete = loadedComplete;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+    if (!loadedComplete) {
+      warnIncomplete();
+    }
+  }
+
+  /**
+   * Finds the Products tagged with all or any of the given Tags.
+   * 
+   * @param tagIds The tagIds of the Tags.
+   * @param matchAll true to find the Products with every Tag, false for those with any of them.
+   * @return The primary keys of the matching Products as bit positions, or null if some Product
+   *         keys do not fit in the index and the Products must be found in the database.
+   */
+  public static BitSet findProducts(Collection<String> tagIds, boolean matchAll) {
+    BitSet result = null;
+    lock.readLock().lock();
+    try {
+      if (!complete) {
+        return null;
+      }
+      for (String tagId : tagIds) {
+        Long tagKey = tagKeys.get(tagId.trim());
+        BitSet bits = (tagKey == null) ? null : products.get(tagKey);
+        if (bits == null) {
+          if (matchAll) {
+            return new BitSet();
+          }
+          continue;
+        }
+        if (result == null) {
+          result = (BitSet) bits.clone();
+        }
+        else if (matchAll) {
+          result.and(bits);
+        }
+        else {
+          result.or(bits);
+        }
+      }
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+    return (result == null) ? new BitSet() : result;
+  }
+
+  /**
+   * Re-reads the Tags of a saved {@link Product}.
+   * 
+   * @param productKey The primary key of the Product.
+   */
+  static void productSaved(Long productKey) {
+    EbeanServer server = Ebean.getServer(null);
+    SqlQuery query =
+        server.createSqlQuery("select t.primary_key, t.tag_id from product_tag pt"
+            + " join tag t on t.primary_key = pt.tag_primary_key"
+            + " where pt.product_primary_key = :key");
+    query.setParameter("key", productKey);
+    List<SqlRow> rows = query.findList();
+    if (!fits(productKey)) {
+      if (!rows.isEmpty()) {
+        markIncomplete();
+      }
+      return;
+    }
+    int bit = (int) productKey.longValue();
+
+    lock.writeLock().lock();
+    try {
+      for (BitSet bits : products.values()) {
+        bits.clear(bit);
+      }
+      for (SqlRow row : rows) {
+        Long tagKey = row.getLong("primary_key");
+        tagKeys.put(row.getString("tag_id"), tagKey);
+        BitSet bits = products.get(tagKey);
+        if (bits == null) {
+          bits = new BitSet();
+          products.put(tagKey, bits);
+        }
+        bits.set(bit);
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a deleted {@link Product} from every Tag.
+   * 
+   * @param productKey The primary key of the Product.
+   */
+  static void productDeleted(Long productKey) {
+    if (!fits(productKey)) {
+      return;
+    }
+    int bit = (int) productKey.longValue();
+    lock.writeLock().lock();
+    try {
+      for (BitSet bits : products.values()) {
+        bits.clear(bit);
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Re-reads the Products of a saved {@link Tag}.
+   * 
+   * @param tagKey The primary key of the Tag.
+   * @param tagId The tagId of the Tag.
+   */
+  static void tagSaved(Long tagKey, String tagId) {
+    EbeanServer server = Ebean.getServer(null);
+    SqlQuery query =
+        server.createSqlQuery("select product_primary_key from product_tag"
+            + " where tag_primary_key = :key");
+    query.setParameter("key", tagKey);
+    BitSet bits = new BitSet();
+    boolean tagComplete = true;
+    for (SqlRow row : query.findList()) {
+      long productKey = row.getLong("product_primary_key");
+      if (fits(productKey)) {
+        bits.set((int) productKey);
+      }
+      else {
+        tagComplete = false;
+      }
+    }
+
+    lock.writeLock().lock();
+    try {
+      removeTagId(tagKey);
+      tagKeys.put(tagId, tagKey);
+      products.put(tagKey, bits);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+    if (!tagComplete) {
+      markIncomplete();
+    }
+  }
+
+  /**
+   * Removes a deleted {@link Tag}.
+   * 
+   * @param tagKey The primary key of the Tag.
+   */
+  static void tagDeleted(Long tagKey) {
+    lock.writeLock().lock();
+    try {
+      removeTagId(tagKey);
+      products.remove(tagKey);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Empties the index.
+   */
+  public static void clear() {
+    lock.writeLock().lock();
+    try {
+      products.clear();
+      tagKeys.clear();
+      complete = true;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes the tagId mapped to the given Tag, which may have been renamed. Must hold the write
+   * lock.
+   */
+  private static void removeTagId(Long tagKey) {
+    for (Iterator<Long> keys = tagKeys.values().iterator(); keys.hasNext();) {
+      if (tagKey.equals(keys.next())) {
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * Stops answering from the index because a tagged Product could not be added to it.
+   */
+  private static void markIncomplete() {
+    boolean wasComplete;
+    lock.writeLock().lock();
+    try {
+      wasComplete = complete;
+      complete = false;
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+    if (wasComplete) {
+      warnIncomplete();
+    }
+  }
+
+  private static void warnIncomplete() {
+    play.Logger.warn("Product primary keys exceed " + Integer.MAX_VALUE
+        + ", tag filters now run in the database");
+  }
+
+  private static boolean fits(long productKey) {
+    return productKey >= 0 && productKey <= Integer.MAX_VALUE;
+  }
+}
@@ -1,14 +1,17 @@
 package models;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
+import org.codehaus.jackson.JsonGenerator;
 import play.data.validation.Constraints.Required;
-import play.data.validation.ValidationError;
 import play.db.ebean.Model;
 import play.db.ebean.Model.Finder;
 
@@ -19,18 +22,29 @@ import play.db.ebean.Model.Finder;
  * 
  */
 @Entity
-public class Warehouse extends Model {
+public class Warehouse extends Model implements JsonWritable {
 
   /**
    * Serial ID number for the {@link Warehouse}.
    */
   private static final long serialVersionUID = -5901301729351151823L;
 
+  /**
+   * The read-through cache of {@link Warehouse}s keyed by warehouseId.
+   */
+  private static final EntityCache<Warehouse> cache = new EntityCache<>("warehouse",
+      Warehouse.class, "warehouseId", new EntityCache.Copier<Warehouse>() {
+        @Override
+        public Warehouse copy(Warehouse warehouse) {
+          return warehouse.detachedCopy();
+        }
+      });
+
   /**
    * The primary key used to identify each {@link Warehouse}.
    */
   @Id
-  private long primaryKey;
+  private Long primaryKey;
 
   @Required
   private String warehouseId;
@@ -72,13 +86,108 @@ public class Warehouse extends Model {
     return new Finder<Long, Warehouse>(Long.class, Warehouse.class);
   }
 
-  public List<ValidationError> validate() {
-    List<ValidationError> errors = new ArrayList<>();
-    if (Warehouse.find().where().eq("warehouseId", this.warehouseId).findUnique() != null) {
-      errors.add(new ValidationError("AlreadyExists", "A warehouse with ID '" + this.warehouseId
-          + "' already exists."));
+  /**
+   * Finds the {@link Warehouse} with the given warehouseId, from the cache if possible and
+   * otherwise through the unique index on that column.
+   * 
+   * The Warehouse returned is a detached copy holding its own properties and its {@link Address};
+   * its StockItems must be loaded through {@link #find()}.
+   * 
+   * @param warehouseId The warehouseId of the Warehouse.
+   * @return The matching Warehouse or null if there is none.
+   */
+  public static Warehouse findByBusinessId(String warehouseId) {
+    return cache.get(warehouseId);
+  }
+
+  /**
+   * Finds the {@link Warehouse}s with the given warehouseIds, from the cache where possible and
+   * otherwise with a single query.
+   * 
+   * @param warehouseIds The warehouseIds of the Warehouses.
+   * @return The matching Warehouses keyed by warehouseId; warehouseIds with no Warehouse are left
+   * out.
+   */
+  public static Map<String, Warehouse> findByBusinessIds(Collection<String> warehouseIds) {
+    return cache.getMany(warehouseIds);
+  }
+
+  /**
+   * Gets a reference to the {@link Warehouse} with the given warehouseId. The primary key behind
+   * the warehouseId is cached, so repeated calls do not query the database until the reference is
+   * used.
+   * 
+   * @param warehouseId The warehouseId of the Warehouse.
+   * @return A reference to the matching Warehouse or null if there is none.
+   */
+  public static Warehouse findReference(String warehouseId) {
+    return BusinessIds.findReference(find(), "warehouseId", warehouseId);
+  }
+
+  /**
+   * @return a copy of this Warehouse's own properties and Address that is not attached to Ebean
+   */
+  private Warehouse detachedCopy() {
+    Warehouse copy = new Warehouse(this.warehouseId, this.name);
+    copy.primaryKey = this.primaryKey;
+    if (this.address != null) {
+      copy.address = this.address.detachedCopy(copy);
+    }
+    return copy;
+  }
+
+  @Override
+  public void save() {
+    super.save();
+    cache.invalidate(this.warehouseId);
+  }
+
+  @Override
+  public void delete() {
+    super.delete();
+    deleted(this.warehouseId, this.primaryKey);
+  }
+
+  /**
+   * Removes a deleted {@link Warehouse} from the caches and the {@link WarehouseLocator}.
+   * 
+   * @param warehouseId The warehouseId of the Warehouse.
+   * @param primaryKey The primary key of the Warehouse.
+   */
+  static void deleted(String warehouseId, Long primaryKey) {
+    BusinessIds.evict("warehouseId", warehouseId);
+    cache.invalidate(warehouseId);
+    WarehouseLocator.warehouseDeleted(primaryKey);
+  }
+
+  /**
+   * Removes the {@link Warehouse} with the given warehouseId from the cache.
+   * 
+   * @param warehouseId The warehouseId of the Warehouse.
+   */
+  static void invalidate(String warehouseId) {
+    cache.invalidate(warehouseId);
+  }
+
+  @Override
+  public void writeJson(JsonGenerator json, JsonFields fields) throws IOException {
+    json.writeStartObject();
+    if (fields.includes("warehouseId")) {
+      json.writeStringField("warehouseId", this.warehouseId);
+    }
+    if (fields.includes("name")) {
+      json.writeStringField("name", this.name);
+    }
+    if (fields.includes("address")) {
+      json.writeFieldName("address");
+      if (this.address == null) {
+        json.writeNull();
+      }
+      else {
+        this.address.writeJson(json, JsonFields.ALL);
+      }
     }
-    return (errors.size() == 0) ? null : errors;
+    json.writeEndObject();
   }
 
   @Override
@@ -89,14 +198,14 @@ public class Warehouse extends Model {
   /**
    * @return the primaryKey
    */
-  public long getPrimaryKey() {
+  public Long getPrimaryKey() {
     return this.primaryKey;
   }
 
   /**
    * @param primaryKey the primaryKey to set
    */
-  public void setPrimaryKey(long primaryKey) {
+  public void setPrimaryKey(Long primaryKey) {
     this.primaryKey = primaryKey;
   }
 
@@ -0,0 +1,400 @@
+package models;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.Transaction;
+import com.avaje.ebean.TxIsolation;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Finds the {@link Warehouse} closest to a zipcode that holds enough of a {@link Product} without
+ * touching the database. Two in-memory indexes are combined: the Warehouses ordered by the
+ * zipcode of their {@link Address}, kept up to date as Addresses are saved and Warehouses deleted,
+ * and the quantity of each Product held in each Warehouse, kept up to date by following the
+ * {@link StockMovement} journal that every stock change is written to. A lookup walks outwards
+ * from the zipcode in both directions and stops at the first Warehouse with enough stock.
+ * 
+ * <p>
+ * Distance is the numeric difference between zipcodes, which follows geography only roughly:
+ * nearby zipcodes share their leading digits. Stock changes are seen once they are committed and
+ * the journal has been polled, so the quantity found may be a poll interval old.
+ * </p>
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public final class WarehouseLocator {
+
+  /**
+   * The poll interval used unless configured otherwise, in milliseconds.
+   */
+  public static final long DEFAULT_POLL_INTERVAL = 250;
+
+  /**
+   * The most journal entries read per query.
+   */
+  private static final int BATCH_SIZE = 1000;
+
+  /**
+   * Guards {@link #byZipcode}, {@link #warehouses} and {@link #stock}.
+   */
+  private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * The primary keys of the Warehouses at each zipcode.
+   */
+  private static final NavigableMap<Integer, List<Long>> byZipcode = new TreeMap<>();
+
+  /**
+   * The indexed Warehouses keyed by primary key.
+   */
+  private static final Map<Long, Location> warehouses = new HashMap<>();
+
+  /**
+   * The quantity held in each Warehouse, keyed by Product and then Warehouse primary key. Only
+   * non-zero quantities are kept.
+   */
+  private static final Map<Long, Map<Long, Long>> stock = new HashMap<>();
+
+  /**
+   * The sequence number of the last journal entry applied. Only used by the poller thread.
+   */
+  private static long position;
+
+  /**
+   * The sequence numbers of the journal entries after {@link #position} whose changes were already
+   * loaded with the quantities. Only used by the poller thread once started.
+   */
+  private static final Set<Long> loaded = new HashSet<>();
+
+  private static ScheduledExecutorService poller;
+
+  private WarehouseLocator() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  /**
+   * Loads both indexes and starts following the journal from where the loaded quantities end.
+   * 
+   * @param interval The time between polls in milliseconds.
+   */
+  public static synchronized void start(long interval) {
+    stop();
+    EbeanServer server = Ebean.getServer(null);
+    List<SqlRow> locations;
+    List<SqlRow> quantities;
+    long end;
+    List<SqlRow> alreadyLoaded;
+    // Read the quantities and the journal as of the same moment, so that no change is counted
+    // twice or missed. Entries after the end of the journal that were committed by then are
+    // already part of the quantities and are skipped when they are polled.
+    Transaction transaction = server.beginTransaction(TxIsolation.SERIALIZABLE);
+    try {
+      locations =
+          server.findList(server.createSqlQuery("select w.primary_key, w.warehouse_id, a.zipcode"
+              + " from warehouse w join address a on a.warehouse_primary_key = w.primary_key"),
+              transaction);
+      quantities =
+          server.findList(server.createSqlQuery("select product_primary_key,"
+              + " warehouse_primary_key, sum(quantity) as quantity from stock_item"
+              + " group by product_primary_key, warehouse_primary_key"), transaction);
+      end = StockMovement.findEnd(server, transaction);
+      alreadyLoaded =
+          server.findList(server.createSqlQuery("select sequence_number from stock_movement"
+              + " where sequence_number > :end").setParameter("end", end), transaction);
+      transaction.commit();
+    }
+    finally {
+      transaction.end();
+    }
+
+    lock.writeLock().lock();
+    try {
+      byZipcode.clear();
+      warehouses.clear();
+      stock.clear();
+      for (SqlRow row : locations) {
+        add(row.getLong("primary_key"), row.getString("warehouse_id"), row.getInteger("zipcode"));
+      }
+      for (SqlRow row : quantities) {
+        addStock(row.getLong("product_primary_key"), row.getLong("warehouse_primary_key"),
+            row.getLong("quantity"));
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+    position = end;
+    loaded.clear();
+    for (SqlRow row : alreadyLoaded) {
+      loaded.add(row.getLong("sequence_number"));
+    }
+
+    poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "warehouse-locator");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    poller.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          poll();
+        }
+        catch (RuntimeException e) {
+          play.Logger.error("Following the stock movement journal failed", e);
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops following the journal.
+   */
+  public static synchronized void stop() {
+    if (poller != null) {
+      poller.shutdownNow();
+      poller = null;
+    }
+  }
+
+  /**
+   * Finds the {@link Warehouse} closest to a zipcode holding at least a quantity of a
+   * {@link Product}. Of two Warehouses equally far away, the one with the lower zipcode is chosen.
+   * 
+   * @param productKey The primary key of the Product.
+   * @param zipcode The zipcode to search from.
+   * @param quantity The least quantity the Warehouse must hold.
+   * @return The Warehouse's location and quantity, or null if no Warehouse holds enough.
+   */
+  public static Match findNearest(Long productKey, int zipcode, long quantity) {
+    lock.readLock().lock();
+    try {
+      Map<Long, Long> held = stock.get(productKey);
+      if (held == null) {
+        return null;
+      }
+      Iterator<Map.Entry<Integer, List<Long>>> below =
+          byZipcode.headMap(zipcode, true).descendingMap().entrySet().iterator();
+      Iterator<Map.Entry<Integer, List<Long>>> above =
+          byZipcode.tailMap(zipcode, false).entrySet().iterator();
+      Map.Entry<Integer, List<Long>> lower = below.hasNext() ? below.next() : null;
+      Map.Entry<Integer, List<Long>> higher = above.hasNext() ? above.next() : null;
+      while (lower != null || higher != null) {
+        Map.Entry<Integer, List<Long>> next;
+        if (higher == null
+            || (lower != null && zipcode - lower.getKey() <= higher.getKey() - zipcode)) {
+          next = lower;
+          lower = below.hasNext() ? below.next() : null;
+        }
+        else {
+          next = higher;
+          higher = above.hasNext() ? above.next() : null;
+        }
+        for (Long warehouseKey : next.getValue()) {
+          Long available = held.get(warehouseKey);
+          if (available != null && available >= quantity) {
+            return new Match(warehouses.get(warehouseKey), available);
+          }
+        }
+      }
+      return null;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of Warehouses in the zipcode index
+   */
+  public static int getWarehouseCount() {
+    lock.readLock().lock();
+    try {
+      return warehouses.size();
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Indexes the {@link Warehouse} of a saved {@link Address} at its zipcode.
+   * 
+   * @param address The saved Address.
+   */
+  static void addressSaved(Address address) {
+    Warehouse warehouse = address.getWarehouse();
+    if (warehouse == null || warehouse.getPrimaryKey() == null) {
+      return;
+    }
+    lock.writeLock().lock();
+    try {
+      remove(warehouse.getPrimaryKey());
+      add(warehouse.getPrimaryKey(), warehouse.getWarehouseId(), address.getZipcode());
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes a deleted {@link Warehouse} from the zipcode index. Its stock leaves the stock index
+   * through the journal.
+   * 
+   * @param warehouseKey The primary key of the Warehouse.
+   */
+  static void warehouseDeleted(Long warehouseKey) {
+    lock.writeLock().lock();
+    try {
+      remove(warehouseKey);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Applies the journal entries written since the last poll to the stock index.
+   */
+  static void poll() {
+    while (true) {
+      List<SqlRow> entries =
+          StockMovement.findRowsSince("product_primary_key, warehouse_primary_key, delta",
+              position, BATCH_SIZE);
+      if (entries.isEmpty()) {
+        return;
+      }
+      lock.writeLock().lock();
+      try {
+        for (SqlRow entry : entries) {
+          if (!loaded.isEmpty() && loaded.remove(entry.getLong("sequence_number"))) {
+            continue;
+          }
+          addStock(entry.getLong("product_primary_key"), entry.getLong("warehouse_primary_key"),
+              entry.getLong("delta"));
+        }
+      }
+      finally {
+        lock.writeLock().unlock();
+      }
+      position = entries.get(entries.size() - 1).getLong("sequence_number");
+      if (entries.size() < BATCH_SIZE) {
+        return;
+      }
+    }
+  }
+
+  private static void add(Long warehouseKey, String warehouseId, Integer zipcode) {
+    if (zipcode == null) {
+      return;
+    }
+    List<Long> atZipcode = byZipcode.get(zipcode);
+    if (atZipcode == null) {
+      atZipcode = new ArrayList<>(1);
+      byZipcode.put(zipcode, atZipcode);
+    }
+    atZipcode.add(warehouseKey);
+    warehouses.put(warehouseKey, new Location(warehouseId, zipcode));
+  }
+
+  private static void remove(Long warehouseKey) {
+    Location location = warehouses.remove(warehouseKey);
+    if (location == null) {
+      return;
+    }
+    List<Long> atZipcode = byZipcode.get(location.zipcode);
+    atZipcode.remove(warehouseKey);
+    if (atZipcode.isEmpty()) {
+      byZipcode.remove(location.zipcode);
+    }
+  }
+
+  private static void addStock(Long productKey, Long warehouseKey, long delta) {
+    if (productKey == null || warehouseKey == null || delta == 0) {
+      return;
+    }
+    Map<Long, Long> held = stock.get(productKey);
+    if (held == null) {
+      held = new HashMap<>();
+      stock.put(productKey, held);
+    }
+    Long current = held.get(warehouseKey);
+    long total = ((current == null) ? 0 : current) + delta;
+    if (total != 0) {
+      held.put(warehouseKey, total);
+    }
+    else {
+      held.remove(warehouseKey);
+      if (held.isEmpty()) {
+        stock.remove(productKey);
+      }
+    }
+  }
+
+  /**
+   * The warehouseId and zipcode of an indexed Warehouse.
+   */
+  private static class Location {
+    private final String warehouseId;
+    private final int zipcode;
+
+    Location(String warehouseId, int zipcode) {
+      this.warehouseId = warehouseId;
+      this.zipcode = zipcode;
+    }
+  }
+
+  /**
+   * The Warehouse found by {@link WarehouseLocator#findNearest(Long, int, long)} and the
+   * quantity of the Product it holds.
+   */
+  public static class Match {
+    private final Location location;
+    private final long quantity;
+
+    Match(Location location, long quantity) {
+      this.location = location;
+      this.quantity = quantity;
+    }
+
+    /**
+     * @return the warehouseId
+     */
+    public String getWarehouseId() {
+      return this.location.warehouseId;
+    }
+
+    /**
+     * @return the zipcode of the Warehouse
+     */
+    public int getZipcode() {
+      return this.location.zipcode;
+    }
+
+    /**
+     * @return the quantity of the Product held
+     */
+    public long getQuantity() {
+      return this.quantity;
+    }
+  }
+}
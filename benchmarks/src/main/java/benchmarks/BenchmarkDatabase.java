@@ -0,0 +1,74 @@
+package benchmarks;
+
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.inMemoryDatabase;
+import static play.test.Helpers.start;
+import static play.test.Helpers.stop;
+import com.avaje.ebean.Ebean;
+import play.test.FakeApplication;
+
+/**
+ * Starts the application against a fresh in-memory H2 database and fills it with benchmark data.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class BenchmarkDatabase {
+
+  /**
+   * The number of warehouses the stock items are spread across.
+   */
+  public static final int WAREHOUSES = 10;
+
+  /**
+   * The running application.
+   */
+  private final FakeApplication application;
+
+  /**
+   * Starts the application and creates the given number of products, each stocked by one stock
+   * item. Products are named Product-1 to Product-N, stock items StockItem-1 to StockItem-N and
+   * warehouses Warehouse-1 to Warehouse-10.
+   * 
+   * @param rows The number of products and stock items to create.
+   */
+  public BenchmarkDatabase(int rows) {
+    this.application = fakeApplication(inMemoryDatabase());
+    start(this.application);
+
+    // Fill the tables with set-based inserts; going through Ebean would take far longer than the
+    // benchmarks themselves.
+    execute("insert into warehouse (primary_key, warehouse_id, name)"
+        + " select x, 'Warehouse-' || x, 'Warehouse ' || x from system_range(1, " + WAREHOUSES
+        + ")");
+    execute("insert into address (primary_key, warehouse_primary_key, street_address, city, state,"
+        + " zipcode) select x, x, x || ' Main St.', 'Honolulu', 'HI', 96800 + x"
+        + " from system_range(1, " + WAREHOUSES + ")");
+    execute("insert into product (primary_key, product_id, name, description)"
+        + " select x, 'Product-' || x, 'Product ' || x, 'Benchmark product'"
+        + " from system_range(1, " + rows + ")");
+    execute("insert into stock_item (primary_key, stock_item_id, warehouse_primary_key,"
+        + " product_primary_key, quantity, version) select x, 'StockItem-' || x, mod(x, "
+        + WAREHOUSES + ") + 1, x, 100, 1 from system_range(1, " + rows + ")");
+    execute("insert into product_stock_total (product_primary_key, quantity)"
+        + " select primary_key, 100 from product");
+    execute("insert into warehouse_stock_total (warehouse_primary_key, quantity)"
+        + " select warehouse_primary_key, sum(quantity) from stock_item"
+        + " group by warehouse_primary_key");
+    execute("alter sequence warehouse_seq restart with " + (WAREHOUSES + 1));
+    execute("alter sequence address_seq restart with " + (WAREHOUSES + 1));
+    execute("alter sequence product_seq restart with " + (rows + 1));
+    execute("alter sequence stock_item_seq restart with " + (rows + 1));
+  }
+
+  /**
+   * Stops the application, discarding the database.
+   */
+  public void close() {
+    stop(this.application);
+  }
+
+  private static void execute(String sql) {
+    Ebean.createSqlUpdate(sql).execute();
+  }
+}
@@ -0,0 +1,33 @@
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the warehouse benchmarks and records the results as JSON in target/jmh-result.json so they
+ * can be compared between runs. Other JMH command line options can be given as well, for example
+ * <code>-p rows=1000</code> to only run the smallest data set.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class BenchmarkRunner {
+
+  private BenchmarkRunner() {
+    // Empty private constructor to prevent instantiation.
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    Options options =
+        new OptionsBuilder().parent(new CommandLineOptions(args))
+            .include("benchmarks\\..*Benchmark").forks(1).warmupIterations(3)
+            .measurementIterations(5).resultFormat(ResultFormatType.JSON)
+            .result("target/jmh-result.json").build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import models.Product;
+import models.StockItem;
+import models.Warehouse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks looking up entities by their business IDs.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FinderBenchmark {
+
+  /**
+   * The number of products and stock items in the database.
+   */
+  @Param({"1000", "100000", "1000000"})
+  public int rows;
+
+  private BenchmarkDatabase database;
+
+  /**
+   * The number of the row looked up last; lookups cycle through every row.
+   */
+  private int row = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.database = new BenchmarkDatabase(this.rows);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.database.close();
+  }
+
+  @Benchmark
+  public Product findProductWithQuery() {
+    return Product.find().where().eq("productId", "Product-" + nextRow()).findUnique();
+  }
+
+  @Benchmark
+  public Product findProductByBusinessId() {
+    return Product.findByBusinessId("Product-" + nextRow());
+  }
+
+  @Benchmark
+  public Product findProductReference() {
+    return Product.findReference("Product-" + nextRow());
+  }
+
+  @Benchmark
+  public StockItem findStockItemByBusinessId() {
+    return StockItem.findByBusinessId("StockItem-" + nextRow());
+  }
+
+  @Benchmark
+  public Warehouse findWarehouseByBusinessId() {
+    int warehouse = nextRow() % BenchmarkDatabase.WAREHOUSES + 1;
+    return Warehouse.findByBusinessId("Warehouse-" + warehouse);
+  }
+
+  private int nextRow() {
+    this.row = this.row % this.rows + 1;
+    return this.row;
+  }
+}
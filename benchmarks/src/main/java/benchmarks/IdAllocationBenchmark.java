@@ -0,0 +1,83 @@
+package benchmarks;
+
+import com.avaje.ebean.Ebean;
+import com.avaje.ebean.Transaction;
+import java.util.concurrent.TimeUnit;
+import models.Product;
+import models.Tag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks allocating primary keys from Ebean's batched sequence generator against a sequence
+ * round trip per key, which is what inserting cost before keys were fetched in batches, and
+ * inserting {@link Product}s in a JDBC batch with allocated keys.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IdAllocationBenchmark {
+
+  /**
+   * The number of products inserted per batch insert invocation.
+   */
+  private static final int BATCH_ROWS = 1000;
+
+  private BenchmarkDatabase database;
+
+  /**
+   * The number of products created so far, used to give each a new ID.
+   */
+  private long created = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.database = new BenchmarkDatabase(1000);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.database.close();
+  }
+
+  @Benchmark
+  public long sequenceRoundTrip() {
+    return Ebean.createSqlQuery("select next value for tag_seq as next_value").findUnique()
+        .getLong("next_value");
+  }
+
+  @Benchmark
+  public Object allocatedId() {
+    return Ebean.getServer(null).nextId(Tag.class);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_ROWS)
+  public int batchInsertProducts() {
+    Transaction transaction = Ebean.beginTransaction();
+    try {
+      transaction.setBatchMode(true);
+      transaction.setBatchSize(BATCH_ROWS);
+      for (int i = 0; i < BATCH_ROWS; i++) {
+        this.created++;
+        Ebean.save(new Product("Inserted-" + this.created, "Inserted", "Benchmark"));
+      }
+      transaction.commit();
+    }
+    finally {
+      transaction.end();
+    }
+    return BATCH_ROWS;
+  }
+}
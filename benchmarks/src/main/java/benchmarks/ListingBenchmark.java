@@ -0,0 +1,81 @@
+package benchmarks;
+
+import static play.test.Helpers.callAction;
+import static play.test.Helpers.contentAsString;
+import static play.test.Helpers.fakeRequest;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import models.StockItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks the collection index actions and the rendering of their rows.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ListingBenchmark {
+
+  /**
+   * The number of products and stock items in the database.
+   */
+  @Param({"1000", "100000", "1000000"})
+  public int rows;
+
+  private BenchmarkDatabase database;
+
+  /**
+   * A page of stock items with their associations loaded, for the rendering benchmark.
+   */
+  private List<StockItem> stockItems;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.database = new BenchmarkDatabase(this.rows);
+    this.stockItems = StockItem.findWithDetails().setMaxRows(100).findList();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.database.close();
+  }
+
+  @Benchmark
+  public String productIndexFirstPage() {
+    return contentAsString(callAction(controllers.routes.ref.Product.index()));
+  }
+
+  @Benchmark
+  public String productIndexMiddlePage() {
+    return contentAsString(callAction(controllers.routes.ref.Product.index(),
+        fakeRequest("GET", "/products?after=" + (this.rows / 2))));
+  }
+
+  @Benchmark
+  public String stockItemIndexFirstPage() {
+    return contentAsString(callAction(controllers.routes.ref.StockItem.index()));
+  }
+
+  @Benchmark
+  public String stockItemIndexMiddlePage() {
+    return contentAsString(callAction(controllers.routes.ref.StockItem.index(),
+        fakeRequest("GET", "/stockitems?after=" + (this.rows / 2))));
+  }
+
+  @Benchmark
+  public String renderStockItems() {
+    return this.stockItems.toString();
+  }
+}
@@ -0,0 +1,102 @@
+package benchmarks;
+
+import static play.test.Helpers.callAction;
+import static play.test.Helpers.fakeRequest;
+import static play.test.Helpers.status;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import models.StockItem;
+import models.StockItemImport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import play.data.Form;
+import play.test.FakeRequest;
+
+/**
+ * Benchmarks creating {@link StockItem}s: binding the form, the POST /stockitems action with its
+ * validation, and the bulk import, which is measured per row so the two paths can be compared.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StockItemCreateBenchmark {
+
+  /**
+   * The number of rows imported per bulk import invocation.
+   */
+  private static final int BULK_ROWS = 1000;
+
+  /**
+   * The number of products and stock items in the database.
+   */
+  @Param({"1000", "100000", "1000000"})
+  public int rows;
+
+  private BenchmarkDatabase database;
+
+  /**
+   * The number of stock items created so far, used to give each a new ID.
+   */
+  private long created = 0;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    this.database = new BenchmarkDatabase(this.rows);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    this.database.close();
+  }
+
+  @Benchmark
+  public Form<StockItem> bindStockItemForm() {
+    return Form.form(StockItem.class).bind(stockItemData());
+  }
+
+  @Benchmark
+  public int newStockItem() {
+    FakeRequest request = fakeRequest();
+    request.withFormUrlEncodedBody(stockItemData());
+    return status(callAction(controllers.routes.ref.StockItem.newStockItem(), request));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BULK_ROWS)
+  public int bulkImport() throws IOException {
+    StringBuilder csv = new StringBuilder();
+    for (int i = 0; i < BULK_ROWS; i++) {
+      Map<String, String> data = stockItemData();
+      csv.append(data.get("stockItemId") + "," + data.get("warehouse") + ","
+          + data.get("product") + "," + data.get("quantity") + "\n");
+    }
+    StockItemImport stockItemImport = new StockItemImport(BULK_ROWS);
+    stockItemImport.readCsv(new StringReader(csv.toString()));
+    return stockItemImport.getImported();
+  }
+
+  private Map<String, String> stockItemData() {
+    this.created++;
+    Map<String, String> data = new HashMap<>();
+    data.put("stockItemId", "Created-" + this.created);
+    data.put("warehouse", "Warehouse-" + (this.created % BenchmarkDatabase.WAREHOUSES + 1));
+    data.put("product", "Product-" + (this.created % this.rows + 1));
+    data.put("quantity", "5");
+    return data;
+  }
+}
@@ -0,0 +1,11 @@
+# --- Reorder points of products and stock items.
+
+# --- !Ups
+
+alter table product add column reorder_point bigint;
+alter table stock_item add column reorder_point bigint;
+
+# --- !Downs
+
+alter table stock_item drop column reorder_point;
+alter table product drop column reorder_point;
@@ -0,0 +1,35 @@
+# --- Split each stock total into counter rows, summed when read.
+
+# --- !Ups
+
+alter table product_stock_total drop constraint fk_product_stock_total_product;
+alter table product_stock_total drop constraint pk_product_stock_total;
+alter table product_stock_total add column stripe integer default 0 not null;
+alter table product_stock_total add constraint pk_product_stock_total primary key (product_primary_key, stripe);
+alter table product_stock_total add constraint fk_product_stock_total_product foreign key (product_primary_key) references product (primary_key) on delete cascade on update restrict;
+
+alter table warehouse_stock_total drop constraint fk_warehouse_stock_total_warehouse;
+alter table warehouse_stock_total drop constraint pk_warehouse_stock_total;
+alter table warehouse_stock_total add column stripe integer default 0 not null;
+alter table warehouse_stock_total add constraint pk_warehouse_stock_total primary key (warehouse_primary_key, stripe);
+alter table warehouse_stock_total add constraint fk_warehouse_stock_total_warehouse foreign key (warehouse_primary_key) references warehouse (primary_key) on delete cascade on update restrict;
+
+# --- !Downs
+
+update product_stock_total t set quantity = (select sum(s.quantity) from product_stock_total s
+  where s.product_primary_key = t.product_primary_key) where t.stripe = 0;
+delete from product_stock_total where stripe <> 0;
+alter table product_stock_total drop constraint fk_product_stock_total_product;
+alter table product_stock_total drop constraint pk_product_stock_total;
+alter table product_stock_total drop column stripe;
+alter table product_stock_total add constraint pk_product_stock_total primary key (product_primary_key);
+alter table product_stock_total add constraint fk_product_stock_total_product foreign key (product_primary_key) references product (primary_key) on delete cascade on update restrict;
+
+update warehouse_stock_total t set quantity = (select sum(s.quantity) from warehouse_stock_total s
+  where s.warehouse_primary_key = t.warehouse_primary_key) where t.stripe = 0;
+delete from warehouse_stock_total where stripe <> 0;
+alter table warehouse_stock_total drop constraint fk_warehouse_stock_total_warehouse;
+alter table warehouse_stock_total drop constraint pk_warehouse_stock_total;
+alter table warehouse_stock_total drop column stripe;
+alter table warehouse_stock_total add constraint pk_warehouse_stock_total primary key (warehouse_primary_key);
+alter table warehouse_stock_total add constraint fk_warehouse_stock_total_warehouse foreign key (warehouse_primary_key) references warehouse (primary_key) on delete cascade on update restrict;
@@ -0,0 +1,21 @@
+# --- Unique indexes on the business keys used by every details/delete lookup.
+
+# --- !Ups
+
+create unique index uq_product_product_id on product (product_id);
+
+create unique index uq_tag_tag_id on tag (tag_id);
+
+create unique index uq_stock_item_stock_item_id on stock_item (stock_item_id);
+
+create unique index uq_warehouse_warehouse_id on warehouse (warehouse_id);
+
+# --- !Downs
+
+drop index if exists uq_product_product_id;
+
+drop index if exists uq_tag_tag_id;
+
+drop index if exists uq_stock_item_stock_item_id;
+
+drop index if exists uq_warehouse_warehouse_id;
@@ -0,0 +1,9 @@
+# --- Optimistic locking version for stock items.
+
+# --- !Ups
+
+alter table stock_item add column version bigint default 1 not null;
+
+# --- !Downs
+
+alter table stock_item drop column version;
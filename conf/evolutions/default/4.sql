@@ -0,0 +1,34 @@
+# --- Maintained stock totals per product and per warehouse.
+
+# --- !Ups
+
+create table product_stock_total (
+  product_primary_key       bigint not null,
+  quantity                  bigint default 0 not null,
+  constraint pk_product_stock_total primary key (product_primary_key))
+;
+
+create table warehouse_stock_total (
+  warehouse_primary_key     bigint not null,
+  quantity                  bigint default 0 not null,
+  constraint pk_warehouse_stock_total primary key (warehouse_primary_key))
+;
+
+alter table product_stock_total add constraint fk_product_stock_total_product foreign key (product_primary_key) references product (primary_key) on delete cascade on update restrict;
+alter table warehouse_stock_total add constraint fk_warehouse_stock_total_warehouse foreign key (warehouse_primary_key) references warehouse (primary_key) on delete cascade on update restrict;
+
+insert into product_stock_total (product_primary_key, quantity)
+  select p.primary_key, coalesce(sum(s.quantity), 0)
+  from product p left outer join stock_item s on s.product_primary_key = p.primary_key
+  group by p.primary_key;
+
+insert into warehouse_stock_total (warehouse_primary_key, quantity)
+  select w.primary_key, coalesce(sum(s.quantity), 0)
+  from warehouse w left outer join stock_item s on s.warehouse_primary_key = w.primary_key
+  group by w.primary_key;
+
+# --- !Downs
+
+drop table if exists product_stock_total;
+
+drop table if exists warehouse_stock_total;
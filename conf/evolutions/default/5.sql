@@ -0,0 +1,9 @@
+# --- Tag-side index on product_tag for finding the products of a tag.
+
+# --- !Ups
+
+create index ix_product_tag_tag on product_tag (tag_primary_key, product_primary_key);
+
+# --- !Downs
+
+drop index if exists ix_product_tag_tag;
@@ -0,0 +1,21 @@
+# --- Append-only journal of every change to the stock of a stock item.
+
+# --- !Ups
+
+create table stock_movement (
+  sequence_number           bigint auto_increment not null,
+  stock_item_primary_key    bigint not null,
+  stock_item_id             varchar(255),
+  product_primary_key       bigint,
+  product_id                varchar(255),
+  warehouse_primary_key     bigint,
+  warehouse_id              varchar(255),
+  kind                      varchar(16) not null,
+  delta                     bigint not null,
+  created_at                timestamp default current_timestamp not null,
+  constraint pk_stock_movement primary key (sequence_number))
+;
+
+# --- !Downs
+
+drop table if exists stock_movement;
@@ -0,0 +1,9 @@
+# --- Composite stock item index answering warehouse, product and quantity range filters.
+
+# --- !Ups
+
+create index ix_stock_item_warehouse_product_quantity on stock_item (warehouse_primary_key, product_primary_key, quantity);
+
+# --- !Downs
+
+drop index if exists ix_stock_item_warehouse_product_quantity;
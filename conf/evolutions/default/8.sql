@@ -0,0 +1,19 @@
+# --- Holds on stock item units, kept in memory by the reservation ledger and persisted here.
+
+# --- !Ups
+
+create table reservation (
+  reservation_id            varchar(36) not null,
+  stock_item_primary_key    bigint not null,
+  stock_item_id             varchar(255) not null,
+  quantity                  bigint not null,
+  expires_at                timestamp not null,
+  created_at                timestamp default current_timestamp not null,
+  constraint pk_reservation primary key (reservation_id))
+;
+
+create index ix_reservation_expires_at on reservation (expires_at);
+
+# --- !Downs
+
+drop table if exists reservation;
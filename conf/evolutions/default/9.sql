@@ -0,0 +1,13 @@
+# --- Write-behind journal segments whose quantity changes have been applied.
+
+# --- !Ups
+
+create table write_behind_segment (
+  segment_number            bigint not null,
+  flushed_at                timestamp default current_timestamp not null,
+  constraint pk_write_behind_segment primary key (segment_number))
+;
+
+# --- !Downs
+
+drop table if exists write_behind_segment;
@@ -11,11 +11,29 @@ object ApplicationBuild extends Build {
     // Add your project dependencies here,
     javaCore,
     javaJdbc,
-    javaEbean
+    javaEbean,
+    "org.apache.lucene" % "lucene-core" % "4.10.4",
+    "org.apache.lucene" % "lucene-analyzers-common" % "4.10.4",
+    "org.apache.lucene" % "lucene-queryparser" % "4.10.4"
   )
 
+  val jmhVersion      = "1.10.5"
+
   val main = play.Project(appName, appVersion, appDependencies).settings(
     // Add your own project settings here      
   )
 
+  // JMH benchmarks of the model and controller hot paths.
+  // Run with: sbt "project benchmarks" run
+  // Results are written as JSON to benchmarks/target/jmh-result.json.
+  val benchmarks = Project("benchmarks", file("benchmarks")).dependsOn(main).settings(
+    libraryDependencies ++= Seq(
+      "org.openjdk.jmh" % "jmh-core" % jmhVersion,
+      "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion,
+      "play" %% "play-test" % play.core.PlayVersion.current
+    ),
+    mainClass in (Compile, run) := Some("benchmarks.BenchmarkRunner"),
+    fork in run := true
+  )
+
 }
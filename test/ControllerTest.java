@@ -1,13 +1,26 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import models.Address;
+import models.LowStockMonitor;
 import models.Product;
+import models.QuantityWriteBehind;
+import models.QueryCounter;
+import models.ReservationLedger;
 import models.Tag;
 import models.Warehouse;
+import models.WarehouseLocator;
 import models.StockItem;
+import models.StockLedger;
+import models.StockMovement;
+import org.codehaus.jackson.JsonNode;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import play.libs.Json;
 import play.mvc.Result;
 import play.test.FakeApplication;
 import play.test.FakeRequest;
@@ -19,11 +32,17 @@ import static play.test.Helpers.stop;
 import static play.test.Helpers.status;
 import static play.test.Helpers.callAction;
 import static play.test.Helpers.contentAsString;
+import static play.test.Helpers.header;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static play.mvc.Http.Status.NOT_FOUND;
 import static play.mvc.Http.Status.BAD_REQUEST;
+import static play.mvc.Http.Status.CONFLICT;
 import static play.mvc.Http.Status.OK;
+import static play.mvc.Http.Status.ACCEPTED;
+import static play.mvc.Http.Status.UNPROCESSABLE_ENTITY;
 
 public class ControllerTest {
   private FakeApplication application;
@@ -56,6 +75,12 @@ public class ControllerTest {
     result = callAction(controllers.routes.ref.Product.details(productId));
     assertTrue("Product detail", contentAsString(result).contains(productId));
 
+    // Test repeated GET /products/Product-01 is answered from the cache.
+    long before = QueryCounter.getCount();
+    result = callAction(controllers.routes.ref.Product.details(productId));
+    assertTrue("Cached product detail", contentAsString(result).contains(productId));
+    assertEquals("No queries for cached product", before, QueryCounter.getCount());
+
     // Test GET /products/BadProductId and make sure we get a 404
     result = callAction(controllers.routes.ref.Product.details("BadProductId"));
     assertEquals("Product detail (bad)", NOT_FOUND, status(result));
@@ -84,6 +109,201 @@ public class ControllerTest {
     assertEquals("Delete missing product also OK", OK, status(result));
   }
 
+  @Test
+  public void testProductPaging() {
+    for (int i = 1; i <= 3; i++) {
+      new Product("Product-0" + i, "Product " + i, "Paged").save();
+    }
+
+    // Test GET /products?limit=2 returns the first page and a cursor to the next one.
+    Result result =
+        callAction(controllers.routes.ref.Product.index(), fakeRequest("GET", "/products?limit=2"));
+    assertEquals("First page", OK, status(result));
+    assertTrue("First page has Product-01", contentAsString(result).contains("Product-01"));
+    assertFalse("First page stops at limit", contentAsString(result).contains("Product-03"));
+    String cursor = header(controllers.Helpers.NEXT_CURSOR_HEADER, result);
+
+    // Test GET /products?limit=2&after=cursor returns the rest and no further cursor.
+    result =
+        callAction(controllers.routes.ref.Product.index(),
+            fakeRequest("GET", "/products?limit=2&after=" + cursor));
+    assertTrue("Second page has Product-03", contentAsString(result).contains("Product-03"));
+    assertFalse("Second page skips first page", contentAsString(result).contains("Product-01"));
+    assertNull("Last page has no cursor", header(controllers.Helpers.NEXT_CURSOR_HEADER, result));
+
+    // Test GET /products?stream=true answers with a chunked listing.
+    result =
+        callAction(controllers.routes.ref.Product.index(), fakeRequest("GET", "/products?stream=true"));
+    assertEquals("Streamed products", OK, status(result));
+
+    // Test GET /products?limit=0 is rejected.
+    result =
+        callAction(controllers.routes.ref.Product.index(), fakeRequest("GET", "/products?limit=0"));
+    assertEquals("Bad limit", BAD_REQUEST, status(result));
+  }
+
+  @Test
+  public void testProductTagFilter() {
+    Tag red = new Tag("Red");
+    Tag large = new Tag("Large");
+    Product apple = new Product("Product-01", "Apple", "Red");
+    apple.getTags().add(red);
+    Product truck = new Product("Product-02", "Truck", "Red and large");
+    truck.getTags().add(red);
+    truck.getTags().add(large);
+    Product house = new Product("Product-03", "House", "Large");
+    house.getTags().add(large);
+    red.save();
+    large.save();
+    apple.save();
+    truck.save();
+    house.save();
+
+    // Test GET /products?tags=Red,Large returns the products with both tags.
+    Result result =
+        callAction(controllers.routes.ref.Product.index(),
+            fakeRequest("GET", "/products?tags=Red,Large"));
+    assertTrue("All tags", contentAsString(result).contains("Truck"));
+    assertFalse("All tags excludes Apple", contentAsString(result).contains("Apple"));
+
+    // Test GET /products?tags=Red,Large&match=any returns the products with either tag.
+    result =
+        callAction(controllers.routes.ref.Product.index(),
+            fakeRequest("GET", "/products?tags=Red,Large&match=any"));
+    assertTrue("Any tag", contentAsString(result).contains("Apple"));
+    assertTrue("Any tag includes House", contentAsString(result).contains("House"));
+
+    // Test the database fallback used when product keys outgrow the index agrees with it.
+    List<String> redAndLarge = Arrays.asList("Red", "Large");
+    assertEquals("Fallback all tags", 1, Product.findTagged(redAndLarge, true).findRowCount());
+    assertEquals("Fallback any tag", 3, Product.findTagged(redAndLarge, false).findRowCount());
+
+    // Test a deleted product leaves the index.
+    truck.delete();
+    result =
+        callAction(controllers.routes.ref.Product.index(),
+            fakeRequest("GET", "/products?tags=Red,Large"));
+    assertTrue("Deleted product", contentAsString(result).contains("No products"));
+
+    // Test an unknown match mode is rejected.
+    result =
+        callAction(controllers.routes.ref.Product.index(),
+            fakeRequest("GET", "/products?tags=Red&match=some"));
+    assertEquals("Bad match", BAD_REQUEST, status(result));
+  }
+
+  @Test
+  public void testProductSearch() {
+    new Product("Product-01", "Red apple", "A crisp fruit").save();
+    new Product("Product-02", "Green pear", "A red-cheeked fruit").save();
+    new Product("Product-03", "Hammer", "A tool").save();
+
+    // Test GET /products/search?q=red ranks the name match above the description match.
+    Result result =
+        callAction(controllers.routes.ref.Product.search("red"),
+            fakeRequest("GET", "/products/search?q=red"));
+    String content = contentAsString(result);
+    assertTrue("Name match", content.contains("Product-01"));
+    assertTrue("Description match", content.contains("Product-02"));
+    assertTrue("Ranked", content.indexOf("Product-01") < content.indexOf("Product-02"));
+    assertFalse("No match", content.contains("Product-03"));
+    assertEquals("Total", "2", header(controllers.Product.SEARCH_TOTAL_HEADER, result));
+
+    // Test paging with limit and offset.
+    result =
+        callAction(controllers.routes.ref.Product.search("fruit"),
+            fakeRequest("GET", "/products/search?q=fruit&offset=1&limit=1"));
+    assertEquals("Second page", "2", header(controllers.Product.SEARCH_TOTAL_HEADER, result));
+
+    // Test a deleted product is no longer found.
+    Product.findByBusinessId("Product-03").delete();
+    result =
+        callAction(controllers.routes.ref.Product.search("hammer"),
+            fakeRequest("GET", "/products/search?q=hammer"));
+    assertTrue("Deleted product", contentAsString(result).contains("No products"));
+  }
+
+  @Test
+  public void testMultiGet() {
+    new Product("Product-01", "Product 1", "Test!").save();
+    new Product("Product-02", "Product 2", "Test!").save();
+    Product.findByBusinessId("Product-02");
+
+    // Test GET /products?ids=... answers in request order with a marker for the missing ID.
+    Result result =
+        callAction(controllers.routes.ref.Product.index(),
+            fakeRequest("GET", "/products?ids=Product-02,Missing,Product-01").withHeader(
+                "Accept", "application/json"));
+    JsonNode json = Json.parse(contentAsString(result));
+    assertEquals("Three entries", 3, json.size());
+    assertEquals("Request order", "Product-02", json.get(0).get("productId").asText());
+    assertTrue("Not found marker", json.get(1).get("notFound").asBoolean());
+    assertEquals("Missing ID", "Missing", json.get(1).get("productId").asText());
+    assertEquals("Last entry", "Product-01", json.get(2).get("productId").asText());
+
+    // Test GET /stockitems?ids=... in text.
+    result =
+        callAction(controllers.routes.ref.StockItem.index(),
+            fakeRequest("GET", "/stockitems?ids=Missing"));
+    assertTrue("Stock item not found", contentAsString(result).contains("Missing not found"));
+  }
+
+  @Test
+  public void testJsonResponses() {
+    Warehouse warehouse = new Warehouse("Warehouse-01", "Warehouse");
+    warehouse.save();
+    new Address("1 Main St", "Honolulu", "HI", 96822, warehouse).save();
+    Product product = new Product("Product-01", "Product", "Json");
+    product.save();
+    new StockItem("StockItem-01", warehouse, product, 5).save();
+
+    // Test GET /products with Accept: application/json answers with a JSON array.
+    Result result =
+        callAction(controllers.routes.ref.Product.index(),
+            fakeRequest().withHeader("Accept", "application/json"));
+    JsonNode json = Json.parse(contentAsString(result));
+    assertTrue("Product array", json.isArray());
+    assertEquals("Product name", "Product", json.get(0).get("name").asText());
+
+    // Test GET /stockitems/StockItem-01?fields=stockItemId,quantity returns only those fields.
+    result =
+        callAction(controllers.routes.ref.StockItem.details("StockItem-01"),
+            fakeRequest("GET", "/stockitems/StockItem-01?fields=stockItemId,quantity").withHeader(
+                "Accept", "application/json"));
+    json = Json.parse(contentAsString(result));
+    assertEquals("Stock item quantity", 5, json.get("quantity").asLong());
+    assertFalse("Sparse fields", json.has("product"));
+
+    // Test GET /warehouses/Warehouse-01 nests the address.
+    result =
+        callAction(controllers.routes.ref.Warehouse.details("Warehouse-01"),
+            fakeRequest().withHeader("Accept", "application/json"));
+    json = Json.parse(contentAsString(result));
+    assertEquals("Warehouse zipcode", 96822, json.get("address").get("zipcode").asInt());
+
+    // Test GET /tags with Accept: application/json on an empty database is an empty array.
+    result =
+        callAction(controllers.routes.ref.Tag.index(),
+            fakeRequest().withHeader("Accept", "application/json"));
+    assertEquals("Empty tags", "[]", contentAsString(result));
+  }
+
+  @Test
+  public void testMetrics() {
+    callAction(controllers.routes.ref.Product.index());
+    callAction(controllers.routes.ref.Product.details("Product-01"));
+
+    // Test GET /metrics answers in the Prometheus text format.
+    Result result = callAction(controllers.routes.ref.Metrics.index());
+    assertEquals("Metrics", OK, status(result));
+    assertTrue("Query totals", contentAsString(result).contains("ebean_queries_total"));
+    assertTrue("Cache metrics",
+        contentAsString(result).contains("entity_cache_misses_total{cache=\"product\"}"));
+    assertTrue("Database pool", contentAsString(result).contains("db_executor_threads 20"));
+    assertTrue("Async latency",
+        contentAsString(result).contains("route=\"Product.details\""));
+  }
+
   @Test
   public void testTagController() {
     // Test GET /tags on an empty database.
@@ -186,6 +406,546 @@ public class ControllerTest {
     assertEquals("Delete missing stock item also OK", OK, status(result));
   }
   
+  @Test
+  public void testIdempotentCreate() {
+    Warehouse warehouse = new Warehouse("Warehouse-01", "Warehouse 1");
+    warehouse.save();
+    new Product("Product-01", "Test Product", "Test!").save();
+    Map<String, String> stockItemData = new HashMap<>();
+    stockItemData.put("stockItemId", "StockItem-01");
+    stockItemData.put("quantity", "5");
+    stockItemData.put("warehouse", "Warehouse-01");
+    stockItemData.put("product", "Product-01");
+
+    // Test POST /stockitems with an Idempotency-Key creates the stock item.
+    FakeRequest request = fakeRequest("POST", "/stockitems").withHeader("Idempotency-Key", "k1");
+    request.withFormUrlEncodedBody(stockItemData);
+    Result result = callAction(controllers.routes.ref.StockItem.newStockItem(), request);
+    assertEquals("Create stock item", OK, status(result));
+    String created = contentAsString(result);
+
+    // Test a retry with the same key is answered with the stored response.
+    request = fakeRequest("POST", "/stockitems").withHeader("Idempotency-Key", "k1");
+    request.withFormUrlEncodedBody(stockItemData);
+    result = callAction(controllers.routes.ref.StockItem.newStockItem(), request);
+    assertEquals("Replayed status", OK, status(result));
+    assertEquals("Replayed body", created, contentAsString(result));
+    assertEquals("Replayed header", "true", header("Idempotent-Replayed", result));
+    assertEquals("One stock item", 1, StockItem.find().findRowCount());
+
+    // Test reusing the key for a different request is rejected.
+    stockItemData.put("quantity", "6");
+    request = fakeRequest("POST", "/stockitems").withHeader("Idempotency-Key", "k1");
+    request.withFormUrlEncodedBody(stockItemData);
+    result = callAction(controllers.routes.ref.StockItem.newStockItem(), request);
+    assertEquals("Reused key", UNPROCESSABLE_ENTITY, status(result));
+
+    // Test a failed request releases its key so that it can be retried.
+    Map<String, String> productData = new HashMap<>();
+    productData.put("productId", "Product-02");
+    request = fakeRequest("POST", "/products").withHeader("Idempotency-Key", "k2");
+    request.withFormUrlEncodedBody(productData);
+    result = callAction(controllers.routes.ref.Product.newProduct(), request);
+    assertEquals("Invalid product", BAD_REQUEST, status(result));
+    productData.put("name", "Product 2");
+    request = fakeRequest("POST", "/products").withHeader("Idempotency-Key", "k2");
+    request.withFormUrlEncodedBody(productData);
+    result = callAction(controllers.routes.ref.Product.newProduct(), request);
+    assertEquals("Retried product", OK, status(result));
+    assertNull("Not replayed", header("Idempotent-Replayed", result));
+  }
+
+  @Test
+  public void testStockTransfers() {
+    Product product = new Product("Product-01", "Product", "Moved");
+    product.save();
+    Warehouse from = new Warehouse("Warehouse-01", "From");
+    from.save();
+    Warehouse to = new Warehouse("Warehouse-02", "To");
+    to.save();
+    new StockItem("StockItem-01", from, product, 10).save();
+    new StockItem("StockItem-02", to, product, 0).save();
+
+    // Test POST /transfers with a form moves the stock and keeps the totals.
+    Map<String, String> transferData = new HashMap<>();
+    transferData.put("product", "Product-01");
+    transferData.put("from", "Warehouse-01");
+    transferData.put("to", "Warehouse-02");
+    transferData.put("quantity", "4");
+    FakeRequest request = fakeRequest("POST", "/transfers");
+    request.withFormUrlEncodedBody(transferData);
+    Result result = callAction(controllers.routes.ref.Transfers.transfer(), request);
+    assertEquals("Transfer OK", OK, status(result));
+    assertEquals("Source", 6, StockItem.findByBusinessId("StockItem-01").getQuantity());
+    assertEquals("Destination", 4, StockItem.findByBusinessId("StockItem-02").getQuantity());
+    assertEquals("Product total", Long.valueOf(10), StockLedger.getProductTotal("Product-01"));
+    assertEquals("Warehouse total", Long.valueOf(4), StockLedger.getWarehouseTotal("Warehouse-02"));
+
+    // Test a batch that would overdraw a stock item is refused as a whole.
+    String batch =
+        "[{\"product\": \"Product-01\", \"from\": \"Warehouse-02\", \"to\": \"Warehouse-01\","
+            + " \"quantity\": 1}, {\"product\": \"Product-01\", \"from\": \"Warehouse-01\","
+            + " \"to\": \"Warehouse-02\", \"quantity\": 8}]";
+    result =
+        callAction(controllers.routes.ref.Transfers.transfer(),
+            fakeRequest("POST", "/transfers").withJsonBody(Json.parse(batch)));
+    assertEquals("Overdrawn batch", CONFLICT, status(result));
+    assertEquals("Source unchanged", 6, StockItem.findByBusinessId("StockItem-01").getQuantity());
+    assertEquals("Destination unchanged", 4, StockItem.findByBusinessId("StockItem-02")
+        .getQuantity());
+
+    // Test a batch that nets out is applied and journaled once per stock item.
+    batch = batch.replace("\"quantity\": 8", "\"quantity\": 7");
+    result =
+        callAction(controllers.routes.ref.Transfers.transfer(),
+            fakeRequest("POST", "/transfers").withJsonBody(Json.parse(batch)));
+    assertEquals("Netted batch", OK, status(result));
+    assertEquals("Netted source", 0, StockItem.findByBusinessId("StockItem-01").getQuantity());
+    assertEquals("Netted destination", 10, StockItem.findByBusinessId("StockItem-02")
+        .getQuantity());
+    int transferMovements = 0;
+    for (StockMovement movement : StockMovement.findSince(0, 100)) {
+      if (movement.getKind() == StockMovement.Kind.TRANSFER) {
+        transferMovements++;
+      }
+    }
+    assertEquals("One movement per stock item and batch", 4, transferMovements);
+
+    // Test a transfer to a warehouse without a stock item of the product.
+    transferData.put("to", "Warehouse-03");
+    request = fakeRequest("POST", "/transfers");
+    request.withFormUrlEncodedBody(transferData);
+    result = callAction(controllers.routes.ref.Transfers.transfer(), request);
+    assertEquals("Unknown stock item", NOT_FOUND, status(result));
+
+    // Test a transfer into a stock item that is already below zero is applied.
+    Warehouse overdrawn = new Warehouse("Warehouse-03", "Overdrawn");
+    overdrawn.save();
+    new StockItem("StockItem-03", overdrawn, product, -5).save();
+    transferData.put("from", "Warehouse-02");
+    request = fakeRequest("POST", "/transfers");
+    request.withFormUrlEncodedBody(transferData);
+    result = callAction(controllers.routes.ref.Transfers.transfer(), request);
+    assertEquals("Negative destination", OK, status(result));
+    assertEquals("Negative destination credited", -1, StockItem.findByBusinessId("StockItem-03")
+        .getQuantity());
+    assertEquals("Source debited", 6, StockItem.findByBusinessId("StockItem-02").getQuantity());
+  }
+
+  @Test
+  public void testReservations() throws InterruptedException {
+    Warehouse warehouse = new Warehouse("Warehouse-01", "Warehouse 1");
+    warehouse.save();
+    Product product = new Product("Product-01", "Product", "Reserved");
+    product.save();
+    new StockItem("StockItem-01", warehouse, product, 10).save();
+
+    // Test POST /reservations holds units without changing the quantity.
+    Map<String, String> reservationData = new HashMap<>();
+    reservationData.put("stockItem", "StockItem-01");
+    reservationData.put("quantity", "7");
+    FakeRequest request = fakeRequest("POST", "/reservations").withHeader("Accept",
+        "application/json");
+    request.withFormUrlEncodedBody(reservationData);
+    Result result = callAction(controllers.routes.ref.Reservations.reserve(), request);
+    assertEquals("Reserve OK", OK, status(result));
+    String first = Json.parse(contentAsString(result)).get("reservationId").asText();
+    result = callAction(controllers.routes.ref.StockItem.available("StockItem-01"));
+    assertEquals("Available", "3", contentAsString(result));
+    assertEquals("Quantity unchanged", 10, StockItem.findByBusinessId("StockItem-01")
+        .getQuantity());
+
+    // Test a reservation of more than is available is rejected.
+    request = fakeRequest("POST", "/reservations");
+    request.withFormUrlEncodedBody(reservationData);
+    result = callAction(controllers.routes.ref.Reservations.reserve(), request);
+    assertEquals("Overbooked", CONFLICT, status(result));
+
+    // Test a guarded removal cannot take reserved units.
+    assertFalse("Reserved units kept", StockItem.adjustQuantity("StockItem-01", -5, true, null));
+    assertTrue("Unreserved units taken", StockItem.adjustQuantity("StockItem-01", -3, true, null));
+    StockItem.adjustQuantity("StockItem-01", 3, true, null);
+
+    // Test releasing makes the units available again.
+    result = callAction(controllers.routes.ref.Reservations.release(first));
+    assertEquals("Release OK", OK, status(result));
+    result = callAction(controllers.routes.ref.StockItem.available("StockItem-01"));
+    assertEquals("Available again", "10", contentAsString(result));
+
+    // Test committing takes the units off the quantity and the totals.
+    reservationData.put("quantity", "4");
+    request = fakeRequest("POST", "/reservations").withHeader("Accept", "application/json");
+    request.withFormUrlEncodedBody(reservationData);
+    result = callAction(controllers.routes.ref.Reservations.reserve(), request);
+    String second = Json.parse(contentAsString(result)).get("reservationId").asText();
+    result = callAction(controllers.routes.ref.Reservations.commit(second));
+    assertEquals("Commit OK", OK, status(result));
+    assertEquals("Quantity taken", 6, StockItem.findByBusinessId("StockItem-01").getQuantity());
+    assertEquals("Total taken", Long.valueOf(6), StockLedger.getProductTotal("Product-01"));
+    result = callAction(controllers.routes.ref.Reservations.commit(second));
+    assertEquals("Commit once", NOT_FOUND, status(result));
+
+    // Test an expired reservation is released by the sweeper.
+    reservationData.put("ttl", "1");
+    request = fakeRequest("POST", "/reservations").withHeader("Accept", "application/json");
+    request.withFormUrlEncodedBody(reservationData);
+    result = callAction(controllers.routes.ref.Reservations.reserve(), request);
+    String third = Json.parse(contentAsString(result)).get("reservationId").asText();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (ReservationLedger.find(third) != null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertNull("Expired", ReservationLedger.find(third));
+    result = callAction(controllers.routes.ref.StockItem.available("StockItem-01"));
+    assertEquals("Available after expiry", "6", contentAsString(result));
+  }
+
+  @Test
+  public void testLowStockAlerts() throws InterruptedException {
+    Warehouse warehouse = new Warehouse("Warehouse-01", "Warehouse 1");
+    Product product = new Product("Product-01", "Test Product", "Test!");
+    new StockItem("StockItem-01", warehouse, product, 5).save();
+    new StockItem("StockItem-02", warehouse, product, 50).save();
+
+    // Test a product reorder point is evaluated straight away.
+    Result result =
+        callAction(controllers.routes.ref.Product.reorderPoint("Product-01"),
+            fakeRequest("POST", "/products/Product-01/reorderpoint?value=10"));
+    assertEquals("Set product reorder point", OK, status(result));
+    result =
+        callAction(controllers.routes.ref.Alerts.lowStock(),
+            fakeRequest().withHeader("Accept", "application/json"));
+    JsonNode alerts = Json.parse(contentAsString(result));
+    assertEquals("One low stock item", 1, alerts.size());
+    assertEquals("Low stock item", "StockItem-01", alerts.get(0).get("stockItemId").asText());
+    assertEquals("Reorder point", 10, alerts.get(0).get("reorderPoint").asLong());
+
+    // Test a stock item's own reorder point overrides its product's.
+    result =
+        callAction(controllers.routes.ref.StockItem.reorderPoint("StockItem-02"),
+            fakeRequest("POST", "/stockitems/StockItem-02/reorderpoint?value=100"));
+    assertEquals("Set stock item reorder point", OK, status(result));
+    assertEquals("Two low stock items", 2, LowStockMonitor.getLowCount());
+
+    // Test a quantity change is picked up from the journal.
+    callAction(controllers.routes.ref.StockItem.adjust("StockItem-01", 10L));
+    long deadline = System.currentTimeMillis() + 10000;
+    while (LowStockMonitor.getLowCount() > 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    result = callAction(controllers.routes.ref.Alerts.lowStock());
+    assertFalse("Restocked", contentAsString(result).contains("StockItem-01"));
+    assertTrue("Still low", contentAsString(result).contains("StockItem-02"));
+
+    // Test clearing the reorder point falls back to the product's.
+    callAction(controllers.routes.ref.StockItem.reorderPoint("StockItem-02"),
+        fakeRequest("POST", "/stockitems/StockItem-02/reorderpoint"));
+    result = callAction(controllers.routes.ref.Alerts.lowStock());
+    assertEquals("No low stock", "No low stock", contentAsString(result));
+
+    // Test setting the reorder point of a missing product.
+    result =
+        callAction(controllers.routes.ref.Product.reorderPoint("BadProductId"),
+            fakeRequest("POST", "/products/BadProductId/reorderpoint?value=1"));
+    assertEquals("Missing product", NOT_FOUND, status(result));
+  }
+
+  @Test
+  public void testNearestWarehouse() throws InterruptedException {
+    Warehouse honolulu = new Warehouse("Warehouse-01", "Honolulu");
+    new Address("1 Main St.", "Honolulu", "HI", 96801, honolulu).save();
+    Warehouse kaneohe = new Warehouse("Warehouse-02", "Kaneohe");
+    new Address("2 Main St.", "Kaneohe", "HI", 96850, kaneohe).save();
+    Warehouse newYork = new Warehouse("Warehouse-03", "New York");
+    new Address("3 Main St.", "New York", "NY", 10001, newYork).save();
+    Product product = new Product("Product-01", "Test Product", "Test!");
+    new StockItem("StockItem-01", honolulu, product, 5).save();
+    new StockItem("StockItem-02", kaneohe, product, 50).save();
+    new StockItem("StockItem-03", newYork, product, 100).save();
+
+    // Wait for the stock to be read from the journal.
+    long deadline = System.currentTimeMillis() + 10000;
+    while (WarehouseLocator.findNearest(product.getPrimaryKey(), 96810, 100) == null
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+
+    // Test GET /products/Product-01/nearest picks the closest warehouse with enough stock.
+    Result result =
+        callAction(controllers.routes.ref.Product.nearest("Product-01"),
+            fakeRequest("GET", "/products/Product-01/nearest?zip=96810&qty=1"));
+    assertEquals("Closest", "Warehouse-01", contentAsString(result));
+    result =
+        callAction(controllers.routes.ref.Product.nearest("Product-01"),
+            fakeRequest("GET", "/products/Product-01/nearest?zip=96810&qty=10").withHeader(
+                "Accept", "application/json"));
+    JsonNode json = Json.parse(contentAsString(result));
+    assertEquals("Closest with 10", "Warehouse-02", json.get("warehouseId").asText());
+    assertEquals("Quantity held", 50, json.get("quantity").asLong());
+    result =
+        callAction(controllers.routes.ref.Product.nearest("Product-01"),
+            fakeRequest("GET", "/products/Product-01/nearest?zip=96810&qty=60"));
+    assertEquals("Closest with 60", "Warehouse-03", contentAsString(result));
+
+    // Test no warehouse, a missing product and a bad zipcode.
+    result =
+        callAction(controllers.routes.ref.Product.nearest("Product-01"),
+            fakeRequest("GET", "/products/Product-01/nearest?zip=96810&qty=1000"));
+    assertEquals("Not enough anywhere", NOT_FOUND, status(result));
+    result =
+        callAction(controllers.routes.ref.Product.nearest("BadProductId"),
+            fakeRequest("GET", "/products/BadProductId/nearest?zip=96810"));
+    assertEquals("Missing product", NOT_FOUND, status(result));
+    result =
+        callAction(controllers.routes.ref.Product.nearest("Product-01"),
+            fakeRequest("GET", "/products/Product-01/nearest?zip=Honolulu"));
+    assertEquals("Bad zip", BAD_REQUEST, status(result));
+  }
+
+  @Test
+  public void testStockItemListingQueryCount() {
+    Warehouse warehouse = new Warehouse("Warehouse-01", "Warehouse 1");
+    Address address = new Address("11-1111", "Honolulu", "HI", 1234, warehouse);
+    Product product = new Product("Product-01", "Test Product", "Test!");
+    new StockItem("StockItem-01", warehouse, product, 5).save();
+    address.save();
+
+    // Count the queries needed to list a single stock item.
+    long before = QueryCounter.getCount();
+    Result result = callAction(controllers.routes.ref.StockItem.index());
+    assertTrue("One stock item", contentAsString(result).contains("Honolulu"));
+    long queriesForOne = QueryCounter.getCount() - before;
+
+    // Listing ten stock items should take exactly as many queries.
+    for (int i = 2; i <= 10; i++) {
+      Product other = new Product("Product-" + i, "Test Product " + i, "Test!");
+      new StockItem("StockItem-" + i, warehouse, other, i).save();
+    }
+    before = QueryCounter.getCount();
+    result = callAction(controllers.routes.ref.StockItem.index());
+    assertTrue("Ten stock items", contentAsString(result).contains("StockItem-10"));
+    assertEquals("Queries per listing", queriesForOne, QueryCounter.getCount() - before);
+  }
+
+  @Test
+  public void testStockItemBulkImport() {
+    Warehouse warehouse = new Warehouse("Warehouse-01", "Warehouse 1");
+    warehouse.save();
+    new Product("Product-01", "Test Product", "Test!").save();
+
+    // Test POST /stockitems/bulk with two good rows and one with an unknown warehouse.
+    FakeRequest request = fakeRequest();
+    request.withJsonBody(Json.parse("["
+        + "{\"stockItemId\": \"StockItem-01\", \"warehouse\": \"Warehouse-01\","
+        + " \"product\": \"Product-01\", \"quantity\": 5},"
+        + "{\"stockItemId\": \"StockItem-02\", \"warehouse\": \"FAKE\","
+        + " \"product\": \"Product-01\", \"quantity\": 5},"
+        + "{\"stockItemId\": \"StockItem-03\", \"warehouse\": \"Warehouse-01\","
+        + " \"product\": \"Product-01\", \"quantity\": 7}]"));
+    Result result = callAction(controllers.routes.ref.StockItem.bulk(), request);
+    assertEquals("Bulk import", OK, status(result));
+    assertTrue("Imported good rows", contentAsString(result).contains("Imported 2 of 3"));
+    assertTrue("Reported bad row", contentAsString(result).contains("row 2"));
+    assertEquals("Stock items saved", 2, StockItem.find().findRowCount());
+  }
+
+  @Test
+  public void testStockItemAdjust() {
+    Warehouse warehouse = new Warehouse("Warehouse-01", "Warehouse 1");
+    Product product = new Product("Product-01", "Test Product", "Test!");
+    new StockItem("StockItem-01", warehouse, product, 5).save();
+
+    // Test POST /stockitems/StockItem-01/adjust?delta=3
+    Result result = callAction(controllers.routes.ref.StockItem.adjust("StockItem-01", 3L));
+    assertEquals("Adjust up", OK, status(result));
+    assertEquals("Quantity raised", 8, StockItem.findByBusinessId("StockItem-01").getQuantity());
+
+    // Test an adjustment that would make the quantity negative is rejected.
+    result = callAction(controllers.routes.ref.StockItem.adjust("StockItem-01", -9L));
+    assertEquals("Adjust below zero", CONFLICT, status(result));
+    assertEquals("Quantity unchanged", 8, StockItem.findByBusinessId("StockItem-01").getQuantity());
+
+    // Test an adjustment against a stale version is rejected.
+    long version = StockItem.findByBusinessId("StockItem-01").getVersion();
+    result =
+        callAction(controllers.routes.ref.StockItem.adjust("StockItem-01", -1L),
+            fakeRequest("POST", "/stockitems/StockItem-01/adjust?delta=-1&version=" + (version - 1)));
+    assertEquals("Adjust stale version", CONFLICT, status(result));
+
+    // Test adjusting a missing stock item.
+    result = callAction(controllers.routes.ref.StockItem.adjust("BadStockItemId", 1L));
+    assertEquals("Adjust missing stock item", NOT_FOUND, status(result));
+  }
+
+  @Test
+  public void testWriteBehindAdjust() throws IOException {
+    Warehouse warehouse = new Warehouse("Warehouse-01", "Warehouse 1");
+    Product product = new Product("Product-01", "Test Product", "Test!");
+    new StockItem("StockItem-01", warehouse, product, 5).save();
+    File journal = new File("target/test-write-behind");
+    QuantityWriteBehind.start(journal.getPath(), 60000, 1000);
+    try {
+      // Test adjustments are buffered but read back by GET /stockitems/StockItem-01.
+      callAction(controllers.routes.ref.StockItem.adjust("StockItem-01", 3L));
+      Result result = callAction(controllers.routes.ref.StockItem.adjust("StockItem-01", -1L));
+      assertEquals("Adjust buffered", OK, status(result));
+      assertEquals("Row not written yet", 5, StockItem.findByBusinessId("StockItem-01")
+          .getQuantity());
+      result =
+          callAction(controllers.routes.ref.StockItem.details("StockItem-01"),
+              fakeRequest().withHeader("Accept", "application/json"));
+      assertEquals("Read your writes", 7, Json.parse(contentAsString(result)).get("quantity")
+          .asLong());
+
+      // Test the non-negative guard counts the buffered adjustments.
+      result = callAction(controllers.routes.ref.StockItem.adjust("StockItem-01", -8L));
+      assertEquals("Adjust below zero", CONFLICT, status(result));
+
+      // Test a direct removal counts the buffered removal as gone.
+      assertFalse("Buffered removal held",
+          StockItem.adjustQuantity("StockItem-01", -5, true, null));
+
+      // Test a flush writes the net adjustment once and updates the totals.
+      QuantityWriteBehind.flush();
+      assertEquals("Row written", 7, StockItem.findByBusinessId("StockItem-01").getQuantity());
+      assertEquals("Total written", Long.valueOf(7), StockLedger.getProductTotal("Product-01"));
+      assertEquals("Nothing waiting", 0, QuantityWriteBehind.getPendingCount());
+    }
+    finally {
+      QuantityWriteBehind.stop();
+    }
+    assertEquals("Journal emptied", 0, journal.listFiles().length);
+  }
+
+  @Test
+  public void testStockTotals() {
+    Warehouse warehouse1 = new Warehouse("Warehouse-01", "Warehouse 1");
+    Warehouse warehouse2 = new Warehouse("Warehouse-02", "Warehouse 2");
+    Product product = new Product("Product-01", "Test Product", "Test!");
+    new StockItem("StockItem-01", warehouse1, product, 5).save();
+    new StockItem("StockItem-02", warehouse2, product, 7).save();
+
+    // Test GET /products/Product-01/stock sums both warehouses.
+    Result result = callAction(controllers.routes.ref.Product.stock("Product-01"));
+    assertEquals("Product total", "12", contentAsString(result));
+
+    // Test the totals follow adjustments and deletes.
+    callAction(controllers.routes.ref.StockItem.adjust("StockItem-01", -2L));
+    callAction(controllers.routes.ref.StockItem.delete("StockItem-02"));
+    result = callAction(controllers.routes.ref.Product.stock("Product-01"));
+    assertEquals("Product total after changes", "3", contentAsString(result));
+    result = callAction(controllers.routes.ref.Warehouse.stock("Warehouse-01"));
+    assertEquals("Warehouse 1 total", "3", contentAsString(result));
+    result = callAction(controllers.routes.ref.Warehouse.stock("Warehouse-02"));
+    assertEquals("Warehouse 2 total", "0", contentAsString(result));
+
+    // Test GET /products/BadProductId/stock
+    result = callAction(controllers.routes.ref.Product.stock("BadProductId"));
+    assertEquals("Missing product total", NOT_FOUND, status(result));
+  }
+
+  @Test
+  public void testStockItemFilters() {
+    Warehouse warehouse1 = new Warehouse("Warehouse-01", "Warehouse 1");
+    Warehouse warehouse2 = new Warehouse("Warehouse-02", "Warehouse 2");
+    Product product1 = new Product("Product-01", "Product 1", "Test!");
+    Product product2 = new Product("Product-02", "Product 2", "Test!");
+    new StockItem("StockItem-01", warehouse1, product1, 5).save();
+    new StockItem("StockItem-02", warehouse1, product2, 50).save();
+    new StockItem("StockItem-03", warehouse2, product1, 500).save();
+
+    // Test GET /stockitems?warehouse=Warehouse-01&product=Product-01
+    Result result =
+        callAction(controllers.routes.ref.StockItem.index(),
+            fakeRequest("GET", "/stockitems?warehouse=Warehouse-01&product=Product-01"));
+    assertTrue("Matching stock item", contentAsString(result).contains("StockItem-01"));
+    assertFalse("Other product", contentAsString(result).contains("StockItem-02"));
+    assertFalse("Other warehouse", contentAsString(result).contains("StockItem-03"));
+
+    // Test GET /stockitems?minQty=10&maxQty=100
+    result =
+        callAction(controllers.routes.ref.StockItem.index(),
+            fakeRequest("GET", "/stockitems?minQty=10&maxQty=100"));
+    assertTrue("In range", contentAsString(result).contains("StockItem-02"));
+    assertFalse("Below range", contentAsString(result).contains("StockItem-01"));
+    assertFalse("Above range", contentAsString(result).contains("StockItem-03"));
+
+    // Test a bad quantity is rejected.
+    result =
+        callAction(controllers.routes.ref.StockItem.index(),
+            fakeRequest("GET", "/stockitems?minQty=many"));
+    assertEquals("Bad minQty", BAD_REQUEST, status(result));
+  }
+
+  @Test
+  public void testStockMovementJournal() {
+    Warehouse warehouse = new Warehouse("Warehouse-01", "Warehouse 1");
+    Product product = new Product("Product-01", "Test Product", "Test!");
+    new StockItem("StockItem-01", warehouse, product, 5).save();
+    callAction(controllers.routes.ref.StockItem.adjust("StockItem-01", 3L));
+    callAction(controllers.routes.ref.StockItem.delete("StockItem-01"));
+
+    // Test GET /stockitems/changes lists the create, adjustment and delete in order.
+    Result result =
+        callAction(controllers.routes.ref.StockItem.changes(),
+            fakeRequest("GET", "/stockitems/changes").withHeader("Accept", "application/json"));
+    JsonNode json = Json.parse(contentAsString(result));
+    assertEquals("Three movements", 3, json.size());
+    assertEquals("Create", "CREATE", json.get(0).get("kind").asText());
+    assertEquals("Create delta", 5, json.get(0).get("delta").asLong());
+    assertEquals("Adjust delta", 3, json.get(1).get("delta").asLong());
+    assertEquals("Delete delta", -8, json.get(2).get("delta").asLong());
+    assertEquals("Product ID", "Product-01", json.get(2).get("productId").asText());
+
+    // Test GET /stockitems/changes?since=cursor has nothing new and keeps the cursor.
+    String cursor = header(controllers.Helpers.NEXT_CURSOR_HEADER, result);
+    result =
+        callAction(controllers.routes.ref.StockItem.changes(),
+            fakeRequest("GET", "/stockitems/changes?since=" + cursor));
+    assertTrue("No changes", contentAsString(result).contains("No changes"));
+    assertEquals("Same cursor", cursor, header(controllers.Helpers.NEXT_CURSOR_HEADER, result));
+  }
+
+  @Test
+  public void testBulkDelete() throws InterruptedException {
+    Warehouse warehouse1 = new Warehouse("Warehouse-01", "Warehouse 1");
+    Warehouse warehouse2 = new Warehouse("Warehouse-02", "Warehouse 2");
+    Product product1 = new Product("Product-01", "Product 1", "Test!");
+    Product product2 = new Product("Product-02", "Product 2", "Test!");
+    new StockItem("StockItem-01", warehouse1, product1, 5).save();
+    new StockItem("StockItem-02", warehouse1, product2, 7).save();
+    new StockItem("StockItem-03", warehouse2, product1, 11).save();
+    new Address("1 Main St", "Honolulu", "HI", 96822, warehouse1).save();
+
+    // Test DELETE /warehouses/Warehouse-01 removes its stock items and updates product totals.
+    Result result = callAction(controllers.routes.ref.Warehouse.delete("Warehouse-01"));
+    assertEquals("Delete warehouse", OK, status(result));
+    assertNull("Warehouse gone", Warehouse.findByBusinessId("Warehouse-01"));
+    assertNull("Stock items gone", StockItem.findByBusinessId("StockItem-01"));
+    assertEquals("Address gone", 0, Address.find().findRowCount());
+    result = callAction(controllers.routes.ref.Product.stock("Product-01"));
+    assertEquals("Product 1 total", "11", contentAsString(result));
+    result = callAction(controllers.routes.ref.Product.stock("Product-02"));
+    assertEquals("Product 2 total", "0", contentAsString(result));
+
+    // Test DELETE /products/Product-01?async=true deletes in chunks and reports progress.
+    result =
+        callAction(controllers.routes.ref.Product.delete("Product-01"),
+            fakeRequest("DELETE", "/products/Product-01?async=true"));
+    assertEquals("Async delete accepted", ACCEPTED, status(result));
+    String location = header("Location", result);
+    String jobId = location.substring(location.lastIndexOf('/') + 1);
+    for (int i = 0; i < 100 && !contentAsString(
+        callAction(controllers.routes.ref.Jobs.details(jobId))).contains("DONE"); i++) {
+      Thread.sleep(50);
+    }
+    result = callAction(controllers.routes.ref.Jobs.details(jobId));
+    assertTrue("Job done", contentAsString(result).contains("DONE 1/1"));
+    assertNull("Product gone", Product.findByBusinessId("Product-01"));
+    result = callAction(controllers.routes.ref.Warehouse.stock("Warehouse-02"));
+    assertEquals("Warehouse 2 total", "0", contentAsString(result));
+  }
+
   @Test
   public void testWarehouseController() {
     // Test GET /warehouses on an empty database.
@@ -221,6 +981,12 @@ public class ControllerTest {
     assertEquals("Create new warehouse", OK, status(result));
     assertEquals("Check address", Address.find().findList().size(), 1);
 
+    // Test POST /warehouses with a duplicate warehouseId (rejected by the unique index)
+    request = fakeRequest();
+    request.withFormUrlEncodedBody(warehouseData);
+    result = callAction(controllers.routes.ref.Warehouse.newWarehouse(), request);
+    assertEquals("Create duplicate warehouse fails", BAD_REQUEST, status(result));
+
     // Test POST /warehouses (with simulated, invalid form data)
     request = fakeRequest();
     warehouseData.clear();
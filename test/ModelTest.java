@@ -4,10 +4,15 @@ import static play.test.Helpers.fakeApplication;
 import static play.test.Helpers.inMemoryDatabase;
 import static play.test.Helpers.start;
 import static play.test.Helpers.stop;
+import com.avaje.ebean.Ebean;
+import java.sql.Timestamp;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import models.Address;
 import models.Product;
 import models.StockItem;
+import models.StockMovement;
 import models.Tag;
 import models.Warehouse;
 import org.junit.After;
@@ -114,4 +119,52 @@ public class ModelTest {
     tag.delete();
     assertTrue("No more tags in database", Tag.find().findList().isEmpty());
   }
+
+  /**
+   * Test primary keys are allocated in blocks from the sequences.
+   */
+  @Test
+  public void testIdAllocation() {
+    long before = productSequenceValue();
+    for (int i = 1; i <= 3; i++) {
+      new Product(String.valueOf(i), "Product", "Description").save();
+    }
+    assertEquals("One block fetched for three inserts", 50, productSequenceValue() - before);
+
+    // Test allocated keys never repeat across blocks.
+    Set<Object> keys = new HashSet<>();
+    for (int i = 0; i < 120; i++) {
+      assertTrue("Unique key", keys.add(Ebean.getServer(null).nextId(Tag.class)));
+    }
+  }
+
+  /**
+   * Test readers of the journal wait at a gap in the sequence numbers until it is old.
+   */
+  @Test
+  public void testJournalGap() {
+    Warehouse warehouse = new Warehouse("Warehouse", "Warehouse");
+    Product product = new Product("Product", "Product", "Description");
+    new StockItem("StockItem", warehouse, product, 5).save();
+    assertEquals("Create journaled", 1, StockMovement.findSince(0, 10).size());
+
+    // Leave out one sequence number, as an uncommitted transaction would.
+    Ebean.createSqlUpdate("insert into stock_movement (sequence_number, stock_item_primary_key,"
+        + " kind, delta) select max(sequence_number) + 2, 0, 'ADJUST', 1 from stock_movement")
+        .execute();
+    assertEquals("Held back at the gap", 1, StockMovement.findSince(0, 10).size());
+
+    Ebean.createSqlUpdate("update stock_movement set created_at = :createdAt"
+        + " where kind = 'ADJUST'").setParameter("createdAt",
+        new Timestamp(System.currentTimeMillis() - 60000)).execute();
+    assertEquals("Read past an old gap", 2, StockMovement.findSince(0, 10).size());
+  }
+
+  /**
+   * @return the last value taken from the sequence of Product primary keys
+   */
+  private static long productSequenceValue() {
+    return Ebean.createSqlQuery("select current_value from information_schema.sequences"
+        + " where sequence_name = 'PRODUCT_SEQ'").findUnique().getLong("current_value");
+  }
 }